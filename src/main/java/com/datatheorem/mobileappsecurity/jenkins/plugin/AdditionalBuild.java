@@ -0,0 +1,52 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.Serializable;
+
+/**
+ * A build uploaded by the same step as the main build to upload.
+ * <p>
+ * Each additional build is searched in the same workspace walk as the main build, optionally with its mapping file,
+ * and is uploaded alongside the other builds with the same configuration (proxy, release type...).
+ * </p>
+ */
+public class AdditionalBuild extends AbstractDescribableImpl<AdditionalBuild> implements Serializable {
+    private  String buildToUpload;
+    private  String mappingFileToUpload = null;
+
+    @DataBoundConstructor
+    public AdditionalBuild(String buildToUpload) {
+        this.buildToUpload = buildToUpload;
+    }
+
+    public String getBuildToUpload() {
+        return buildToUpload;
+    }
+
+    public String getMappingFileToUpload() {
+        return mappingFileToUpload;
+    }
+
+    @DataBoundSetter
+    public void setMappingFileToUpload(String mappingFileToUpload) {
+        this.mappingFileToUpload = mappingFileToUpload;
+    }
+
+    boolean hasMappingFile() {
+        return mappingFileToUpload != null && !mappingFileToUpload.isEmpty();
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<AdditionalBuild> {
+
+        @Override
+        public String getDisplayName() {
+            return "Additional build";
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin;
+
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.SendBuildMessage;
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Results of the uploads started by the asynchronous step, stored with the build.
+ * <p>
+ * The running uploads are only known by the controller memory. Once completed, their result is stored in the build
+ * so waitForDataTheoremUpload can get it at any time, even after a restart of the controller.
+ * Each upload writes its log to a file of the build directory, since the step which started it is already over.
+ * </p>
+ */
+public class AsyncUploadResults extends InvisibleAction {
+
+    private static final Logger LOGGER = Logger.getLogger(AsyncUploadResults.class.getName());
+    private static final String UPLOADS_DIRECTORY = "datatheorem-uploads";
+
+    // Uploads still running, indexed by upload id
+    private static final Map<String, CompletableFuture<SendBuildMessage>> RUNNING = new ConcurrentHashMap<>();
+
+    // Result of the completed uploads of the build, indexed by upload id
+    private final Map<String, SendBuildMessage> results = new ConcurrentHashMap<>();
+
+    static String newUploadId() {
+        return UUID.randomUUID().toString();
+    }
+
+    static void start(String uploadId) {
+        // Register a running upload, before its id is given to the pipeline
+        RUNNING.put(uploadId, new CompletableFuture<>());
+    }
+
+    static void complete(Run<?, ?> run, String uploadId, SendBuildMessage message) {
+        /*
+         * Store the result of an upload in the build and notify the steps waiting for it
+         */
+        synchronized (run) {
+            AsyncUploadResults action = run.getAction(AsyncUploadResults.class);
+            if (action == null) {
+                action = new AsyncUploadResults();
+                run.addAction(action);
+            }
+            action.results.put(uploadId, message);
+        }
+        try {
+            run.save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to save the Data Theorem upload result of " + run, e);
+        }
+        CompletableFuture<SendBuildMessage> running = RUNNING.remove(uploadId);
+        if (running != null) {
+            running.complete(message);
+        }
+    }
+
+    static CompletableFuture<SendBuildMessage> find(Run<?, ?> run, String uploadId) {
+        /*
+         * @return: the result of the upload, completed once the upload is over, null for an unknown upload
+         */
+        CompletableFuture<SendBuildMessage> running = RUNNING.get(uploadId);
+        if (running != null) {
+            return running;
+        }
+        AsyncUploadResults action = run.getAction(AsyncUploadResults.class);
+        if (action != null && action.results.containsKey(uploadId)) {
+            return CompletableFuture.completedFuture(action.results.get(uploadId));
+        }
+        return null;
+    }
+
+    static File stagingDirectory(Run<?, ?> run, String uploadId) {
+        // Copy of the workspace files sent by the upload, deleted once the upload is over
+        return new File(run.getRootDir(), UPLOADS_DIRECTORY + "/" + uploadId);
+    }
+
+    static File logFile(Run<?, ?> run, String uploadId) {
+        return new File(run.getRootDir(), UPLOADS_DIRECTORY + "/" + uploadId + ".log");
+    }
+}
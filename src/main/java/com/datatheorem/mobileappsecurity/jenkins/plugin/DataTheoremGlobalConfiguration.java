@@ -0,0 +1,263 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin;
+
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.BlockingUploadTransport;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.SendBuildAction;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.SinkUploadTransport;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.UploadTransport;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.BandwidthLimiter;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.util.FormValidation;
+import jenkins.model.GlobalConfiguration;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Configuration of the plugin shared by all the jobs of the controller.
+ * <p>
+ * The upload bandwidth is shared by all the uploads running at the same time, whatever their job:
+ * the uploads of the controller take turns on a common token bucket, an upload made by an agent gets a fixed share.
+ * The uploads wait in a common queue when the number of concurrent uploads is capped.
+ * The requests are sent by one of the UploadTransport extensions: a blocking transport, one thread per request,
+ * an asynchronous transport whose few I/O threads write all the requests, or a local sink for the benchmarks.
+ * The local sink and the replacement of the upload_init endpoint, by an https URL or a local http service, are only
+ * available when Jenkins runs with the ALLOW_TEST_ENDPOINTS system property: each upload using one of them prints a
+ * warning in its build log.
+ * </p>
+ */
+@Extension
+@Symbol("dataTheorem")
+public class DataTheoremGlobalConfiguration extends GlobalConfiguration {
+
+    // Bytes per second of 1 Mbit/s
+    private static final long MEGABIT = 1000L * 1000L / 8L;
+
+    // Allows the SINK transport and the replacement of the upload_init endpoint, for the tests and the benchmarks
+    static /* not final */ boolean ALLOW_TEST_ENDPOINTS = Boolean.getBoolean(
+            DataTheoremGlobalConfiguration.class.getName() + ".allowTestEndpoints"
+    );
+
+    private  int maxUploadBandwidth = 0;
+    private  int maxConcurrentUploads = 0;
+    private  int maxConcurrentUploadsPerApiKey = 0;
+    private  String uploadTransport = "BLOCKING";
+    // Empty for the endpoint of the Upload API
+    private  String uploadInitUrl = "";
+
+    private final transient BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(0);
+    private final transient UploadScheduler uploadScheduler = new UploadScheduler(0, 0);
+
+    public DataTheoremGlobalConfiguration() {
+        load();
+        bandwidthLimiter.setBytesPerSecond(maxUploadBandwidth * MEGABIT);
+        uploadScheduler.setLimits(maxConcurrentUploads, maxConcurrentUploadsPerApiKey);
+    }
+
+    public static DataTheoremGlobalConfiguration get() {
+        return ExtensionList.lookupSingleton(DataTheoremGlobalConfiguration.class);
+    }
+
+    public int getMaxUploadBandwidth() {
+        return maxUploadBandwidth;
+    }
+
+    @DataBoundSetter
+    public void setMaxUploadBandwidth(int maxUploadBandwidth) {
+        // The running uploads use the new limit from their next write
+        this.maxUploadBandwidth = maxUploadBandwidth;
+        bandwidthLimiter.setBytesPerSecond(Math.max(0, maxUploadBandwidth) * MEGABIT);
+        save();
+    }
+
+    public int getMaxConcurrentUploads() {
+        return maxConcurrentUploads;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        this.maxConcurrentUploads = maxConcurrentUploads;
+        uploadScheduler.setLimits(maxConcurrentUploads, maxConcurrentUploadsPerApiKey);
+        save();
+    }
+
+    public int getMaxConcurrentUploadsPerApiKey() {
+        return maxConcurrentUploadsPerApiKey;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentUploadsPerApiKey(int maxConcurrentUploadsPerApiKey) {
+        this.maxConcurrentUploadsPerApiKey = maxConcurrentUploadsPerApiKey;
+        uploadScheduler.setLimits(maxConcurrentUploads, maxConcurrentUploadsPerApiKey);
+        save();
+    }
+
+    public String getUploadTransport() {
+        return uploadTransport;
+    }
+
+    @DataBoundSetter
+    public void setUploadTransport(String uploadTransport) {
+        // The running uploads keep their transport
+        this.uploadTransport = uploadTransport;
+        save();
+    }
+
+    public List<UploadTransport> getTransports() {
+        return UploadTransport.all().stream()
+                .filter(transport -> ALLOW_TEST_ENDPOINTS || !isTestTransport(transport))
+                .collect(Collectors.toList());
+    }
+
+    public boolean isTestEndpointsAllowed() {
+        return ALLOW_TEST_ENDPOINTS;
+    }
+
+    public UploadTransport createUploadTransport() {
+        /*
+         * @return: the transport of a new upload, blocking when the configured transport is not installed
+         *   or is the local sink while the test endpoints are not allowed
+         */
+        UploadTransport transport = UploadTransport.byName(uploadTransport);
+        if (transport == null || (isTestTransport(transport) && !ALLOW_TEST_ENDPOINTS)) {
+            return new BlockingUploadTransport();
+        }
+        return transport;
+    }
+
+    public void configureTransport(SendBuildAction sendBuild, PrintStream logger) {
+        /*
+         * Set the transport and the endpoint of the upload_init call
+         * The build log tells when the build isn't sent to Data Theorem
+         */
+        UploadTransport transport = createUploadTransport();
+        sendBuild.setTransport(transport);
+        if (isTestTransport(transport)) {
+            logger.println(
+                    "WARNING: the " + transport.getName() + " upload transport is selected in the Data Theorem " +
+                    "configuration, the build is not sent to Data Theorem"
+            );
+        }
+        if (ALLOW_TEST_ENDPOINTS && isAllowedUploadInitUrl(uploadInitUrl)) {
+            sendBuild.setUploadInitUrl(uploadInitUrl);
+            logger.println(
+                    "WARNING: the upload_init endpoint is replaced by " + uploadInitUrl + " in the Data Theorem " +
+                    "configuration, the API key and the build are sent to it instead of Data Theorem"
+            );
+        }
+    }
+
+    private static boolean isTestTransport(UploadTransport transport) {
+        return transport instanceof SinkUploadTransport;
+    }
+
+    static boolean isAllowedUploadInitUrl(String url) {
+        /*
+         * @return: true for an https URL, or an http URL of a service running on this host
+         */
+        if (url == null || url.isEmpty()) {
+            return false;
+        }
+        try {
+            URI uri = new URI(url);
+            if ("https".equals(uri.getScheme())) {
+                return uri.getHost() != null;
+            }
+            String host = uri.getHost();
+            return "http".equals(uri.getScheme()) && host != null
+                    && ("localhost".equals(host) || host.startsWith("127.") || "[::1]".equals(host));
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    public String getUploadInitUrl() {
+        return uploadInitUrl;
+    }
+
+    @DataBoundSetter
+    public void setUploadInitUrl(String uploadInitUrl) {
+        this.uploadInitUrl = uploadInitUrl == null ? "" : uploadInitUrl.trim();
+        save();
+    }
+
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    public UploadScheduler getUploadScheduler() {
+        return uploadScheduler;
+    }
+
+    public FormValidation doCheckMaxUploadBandwidth(@QueryParameter(value = "maxUploadBandwidth") int value) {
+        if (value < 0) {
+            return FormValidation.error("The upload bandwidth can't be negative");
+        }
+        return FormValidation.ok();
+    }
+
+    public FormValidation doCheckMaxConcurrentUploads(@QueryParameter(value = "maxConcurrentUploads") int value) {
+        if (value < 0) {
+            return FormValidation.error("The number of concurrent uploads can't be negative");
+        }
+        return FormValidation.ok();
+    }
+
+    public FormValidation doCheckMaxConcurrentUploadsPerApiKey(
+            @QueryParameter(value = "maxConcurrentUploadsPerApiKey") int value
+    ) {
+        if (value < 0) {
+            return FormValidation.error("The number of concurrent uploads can't be negative");
+        }
+        return FormValidation.ok();
+    }
+
+    public FormValidation doCheckUploadTransport(@QueryParameter(value = "uploadTransport") String value) {
+        if (value != null && !value.isEmpty() && UploadTransport.byName(value) == null) {
+            return FormValidation.error("Unknown upload transport: " + value);
+        }
+        if (value != null && isTestTransport(UploadTransport.byName(value))) {
+            if (!ALLOW_TEST_ENDPOINTS) {
+                return FormValidation.error(
+                        "This transport is only available for the tests, when Jenkins runs with -D" +
+                        DataTheoremGlobalConfiguration.class.getName() + ".allowTestEndpoints=true"
+                );
+            }
+            return FormValidation.warning("The builds are not sent to Data Theorem with this transport");
+        }
+        return FormValidation.ok();
+    }
+
+    public FormValidation doCheckUploadInitUrl(@QueryParameter(value = "uploadInitUrl") String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return FormValidation.ok();
+        }
+        if (!ALLOW_TEST_ENDPOINTS) {
+            return FormValidation.error(
+                    "The upload_init endpoint can only be replaced for the tests, when Jenkins runs with -D" +
+                    DataTheoremGlobalConfiguration.class.getName() + ".allowTestEndpoints=true"
+            );
+        }
+        try {
+            new URI(value.trim());
+        } catch (URISyntaxException e) {
+            return FormValidation.error("Invalid upload_init URL: " + e.getMessage());
+        }
+        if (!isAllowedUploadInitUrl(value.trim())) {
+            // The API key is sent in the headers of the call
+            return FormValidation.error("The upload_init URL must be an https URL, or an http URL of this host");
+        }
+        return FormValidation.warning("The builds are uploaded to this endpoint instead of Data Theorem");
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Data Theorem";
+    }
+}
@@ -1,73 +1,105 @@
 package com.datatheorem.mobileappsecurity.jenkins.plugin;
 
-import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.ListFiles;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.ArtifactSearch;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.FileMetadata;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.MatchSelection;
 import groovy.lang.Tuple2;
-import hudson.FilePath;
 import hudson.model.Run;
+import jenkins.util.VirtualFile;
 
 import java.io.*;
-import java.nio.file.FileSystems;
-import java.nio.file.PathMatcher;
-import java.nio.file.Paths;
-import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 
 /**
- * Find the absolute path of a build name.
+ * Find the path of a build name.
  * <p>
- * This action first looks if the build is on the artifact directory.
+ * This action first looks if the build is in the artifacts of the run, through its artifact manager.
  * Then the action searches for the build on the current job workspace directory.
+ * When several files respect the build name, the match selection of the workspace files decides which one is sent.
  * If he doesn't find any builds the action return null
  * </p>
  */
 class FindBuildPathAction {
 
     private final String buildName;
-    private final FilePath workspace;
+    private final WorkspaceFiles workspaceFiles;
     private final Run<?, ?> runner;
     private final PrintStream logger;
+    private String artifactPath = null;
+    private VirtualFile artifact = null;
 
-    FindBuildPathAction(String buildName, FilePath workspace, Run<?, ?> runner, PrintStream logger)
+    FindBuildPathAction(String buildName, WorkspaceFiles workspaceFiles, Run<?, ?> runner, PrintStream logger)
     {
 
         this.buildName = buildName;
-        this.workspace = workspace;
+        this.workspaceFiles = workspaceFiles;
         this.runner = runner;
         this.logger = logger;
     }
 
 
-    private boolean isSimilarToBuildName(String fileName) {
+    private static int maxArtifactMatches(MatchSelection matchSelection) {
         /*
-         * Test if the filename respects the buildName pattern
+         * @return: the number of artifact matches needed to select the build
          */
-        PathMatcher matcher =
-                FileSystems.getDefault().getPathMatcher("glob:" + buildName);
-        return matcher.matches(Paths.get(fileName));
+        switch (matchSelection) {
+            case FIRST:
+                return 1;
+            case FAIL_ON_AMBIGUOUS:
+                return 2;
+            default:
+                return Integer.MAX_VALUE;
+        }
+    }
+
+    public VirtualFile getArtifact() {
+        // The artifact found by perform, null when the build is in the workspace
+        return artifact;
     }
 
-    @SuppressWarnings("deprecation")
     public Tuple2<String, Boolean> perform() {
         /*
-         *  Find the absolute path of a build name
-         *  @return: absolute path to the build if exist, null otherwise
+         *  Find the path of a build name
+         *  @return: the path to the build relative to the artifacts or the workspace if exist, null otherwise
          *  @return: boolean "isBuildStoredInArtifactFolder" when the build is stored in the artifact directory
          */
 
-        for (Run<?, ?>.Artifact artifact : runner.getArtifacts()) {
-            if (isSimilarToBuildName(artifact.getFileName())) {
-                return new Tuple2<>(
-                        runner.getArtifactsDir().toString() + '/' + artifact.relativePath, true
-                );
+        MatchSelection matchSelection = workspaceFiles.getMatchSelection();
+        try {
+            Map<String, VirtualFile> artifacts = new ArtifactSearch(buildName).find(
+                    runner.getArtifactManager().root(),
+                    maxArtifactMatches(matchSelection)
+            );
+            if (matchSelection == MatchSelection.FAIL_ON_AMBIGUOUS && artifacts.size() > 1) {
+                logger.println("Several artifacts respect the build name " + buildName + " : " + artifacts.keySet());
+                return null;
             }
+            for (Map.Entry<String, VirtualFile> candidate : artifacts.entrySet()) {
+                if (artifact == null || candidate.getValue().lastModified() > artifact.lastModified()) {
+                    artifactPath = candidate.getKey();
+                    artifact = candidate.getValue();
+                }
+            }
+            if (artifact != null) {
+                return new Tuple2<>(artifactPath, true);
+            }
+        } catch (IOException e) {
+            logger.println("Unable to search the artifacts: " + e.toString());
+            artifactPath = null;
+            artifact = null;
         }
 
         try {
-            Collection<String> files = workspace.act(new ListFiles()).values();
-            for (String file : files) {
-                if (isSimilarToBuildName(file)) {
-                        return new Tuple2<>(file, false);
-                }
+            List<String> ambiguousMatches = workspaceFiles.findAmbiguousMatches(buildName);
+            if (!ambiguousMatches.isEmpty()) {
+                logger.println("Several builds respect the build name " + buildName + " : " + ambiguousMatches);
+                return null;
+            }
+            FileMetadata file = workspaceFiles.find(buildName);
+            if (file != null) {
+                return new Tuple2<>(file.getRelativePath(), false);
             }
         } catch (IOException |
                 InterruptedException e) {
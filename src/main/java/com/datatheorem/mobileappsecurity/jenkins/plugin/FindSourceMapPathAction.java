@@ -1,43 +1,32 @@
 package com.datatheorem.mobileappsecurity.jenkins.plugin;
 
-import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.ListFiles;
-import hudson.FilePath;
-import hudson.model.Run;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.FileMetadata;
 
 import java.io.IOException;
 import java.io.PrintStream;
-import java.nio.file.FileSystems;
-import java.nio.file.PathMatcher;
-import java.nio.file.Paths;
-import java.util.Collection;
+import java.util.List;
 
 public class FindSourceMapPathAction {
     final String sourceMapName;
-    private final FilePath workspace;
+    private final WorkspaceFiles workspaceFiles;
     private final PrintStream logger;
 
-    public FindSourceMapPathAction(String sourceMapName, FilePath workspace, PrintStream logger) {
+    public FindSourceMapPathAction(String sourceMapName, WorkspaceFiles workspaceFiles, PrintStream logger) {
         this.sourceMapName = sourceMapName;
-        this.workspace = workspace;
+        this.workspaceFiles = workspaceFiles;
         this.logger = logger;
     }
 
-    private boolean isSimilarToSourceMapName(String fileName) {
-        /*
-         * Test if the filename respects the source map name pattern
-         */
-        PathMatcher matcher =
-                FileSystems.getDefault().getPathMatcher("glob:" + sourceMapName);
-        return matcher.matches(Paths.get(fileName));
-    }
-
     public String perform(){
         try {
-            Collection<String> files = workspace.act(new ListFiles()).values();
-            for (String file : files) {
-                if (isSimilarToSourceMapName(file)) {
-                    return file;
-                }
+            List<String> ambiguousMatches = workspaceFiles.findAmbiguousMatches(sourceMapName);
+            if (!ambiguousMatches.isEmpty()) {
+                logger.println("Several mapping files respect the name " + sourceMapName + " : " + ambiguousMatches);
+                return null;
+            }
+            FileMetadata file = workspaceFiles.find(sourceMapName);
+            if (file != null) {
+                return file.getRelativePath();
             }
         } catch (IOException |
                 InterruptedException e) {
@@ -0,0 +1,230 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin;
+
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.SendBuildMessage;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import org.jenkinsci.plugins.structs.describable.DescribableModel;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pipeline step uploading the builds to Data Theorem without holding the executor during the transfer.
+ * <p>
+ * The step takes the same arguments as sendBuildToDataTheorem. It finds the builds in the workspace and copies them
+ * to the build directory on the controller, then it returns the id of the upload and the transfer goes on in the
+ * background: the node block can end while the build is sent.
+ * The result of the upload is obtained with the waitForDataTheoremUpload step, which marks the build unstable when
+ * the upload failed. The upload isn't resumed when the controller restarts.
+ * At most MAX_UPLOADS background uploads run at the same time, the next ones wait in a queue of their own before
+ * the upload queue of the controller. A waiting upload holds no thread.
+ * </p>
+ */
+public class SendBuildToDataTheoremAsyncStep extends Step implements Serializable {
+
+    private static final Logger LOGGER = Logger.getLogger(SendBuildToDataTheoremAsyncStep.class.getName());
+
+    // Number of uploads running in the background at the same time
+    static final int MAX_UPLOADS = Integer.getInteger(
+            SendBuildToDataTheoremAsyncStep.class.getName() + ".maxUploads", 8
+    );
+
+    // Slots of the background uploads: the builds of the waiting uploads stay staged on the controller
+    private static final UploadScheduler BACKGROUND_UPLOADS = new UploadScheduler(MAX_UPLOADS, 0);
+
+    private final SendBuildToDataTheoremPublisher publisher;
+
+    SendBuildToDataTheoremAsyncStep(SendBuildToDataTheoremPublisher publisher) {
+        this.publisher = publisher;
+    }
+
+    public SendBuildToDataTheoremPublisher getPublisher() {
+        return publisher;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) {
+        return new Execution(context, publisher);
+    }
+
+    private static final class Execution extends StepExecution {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SendBuildToDataTheoremPublisher publisher;
+        private transient volatile Future<?> task;
+
+        Execution(StepContext context, SendBuildToDataTheoremPublisher publisher) {
+            super(context);
+            this.publisher = publisher;
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            Run<?, ?> run = getContext().get(Run.class);
+            FilePath workspace = getContext().get(FilePath.class);
+            TaskListener listener = getContext().get(TaskListener.class);
+            // The search and the copy of the builds don't wait for the background uploads
+            task = Computer.threadPoolForRemoting.submit(() -> prepareAndUpload(run, workspace, listener));
+            return false;
+        }
+
+        private void prepareAndUpload(Run<?, ?> run, FilePath workspace, TaskListener listener) {
+            /*
+             * Find and copy the builds while the step is running, then end the step and queue the upload of the builds
+             */
+            String uploadId = AsyncUploadResults.newUploadId();
+            FilePath stagingDirectory = new FilePath(AsyncUploadResults.stagingDirectory(run, uploadId));
+            StreamTaskListener uploadListener = null;
+            SendBuildToDataTheoremPublisher.PreparedUpload upload;
+            try {
+                listener.getLogger().println("Data Theorem upload build plugin starting...");
+                File logFile = AsyncUploadResults.logFile(run, uploadId);
+                stagingDirectory.mkdirs();
+                uploadListener = new StreamTaskListener(logFile, true, StandardCharsets.UTF_8);
+                upload = publisher.prepareUpload(run, workspace, listener, stagingDirectory, uploadListener);
+                if (upload == null) {
+                    // The result of the run is already set
+                    close(uploadListener, stagingDirectory);
+                    getContext().onSuccess(null);
+                    return;
+                }
+            } catch (Exception e) {
+                close(uploadListener, stagingDirectory);
+                getContext().onFailure(e);
+                return;
+            }
+
+            listener.getLogger().println(
+                    "The builds are sent to Data Theorem in the background, " +
+                    "call waitForDataTheoremUpload with the id " + uploadId + " to get the result"
+            );
+            AsyncUploadResults.start(uploadId);
+            getContext().onSuccess(uploadId);
+
+            // The upload waits for a background slot, then for a slot in the upload queue: no thread waits for it
+            StreamTaskListener log = uploadListener;
+            CompletableFuture<SendBuildMessage> result = BACKGROUND_UPLOADS.schedule(
+                    null,
+                    0,
+                    null,
+                    null,
+                    0,
+                    null,
+                    log.getLogger(),
+                    Computer.threadPoolForRemoting,
+                    upload
+            );
+            result.whenComplete((message, e) -> complete(run, uploadId, message, e, log, stagingDirectory));
+        }
+
+        private static void complete(
+                Run<?, ?> run,
+                String uploadId,
+                SendBuildMessage message,
+                Throwable failure,
+                StreamTaskListener uploadListener,
+                FilePath stagingDirectory
+        ) {
+            /*
+             * Store the result of the upload, even when the upload ended with an Error,
+             * so waitForDataTheoremUpload never waits for an upload which won't complete
+             */
+            SendBuildMessage result = failure == null
+                    ? message
+                    : new SendBuildMessage(false, "Data Theorem upload error: " + unwrap(failure).toString());
+            try {
+                if (!result.message.isEmpty()) {
+                    uploadListener.getLogger().println(result.message);
+                }
+                close(uploadListener, stagingDirectory);
+            } finally {
+                AsyncUploadResults.complete(run, uploadId, result);
+            }
+        }
+
+        private static Throwable unwrap(Throwable e) {
+            return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        }
+
+        private static void close(StreamTaskListener uploadListener, FilePath stagingDirectory) {
+            try {
+                if (uploadListener != null) {
+                    uploadListener.close();
+                }
+                stagingDirectory.deleteRecursive();
+            } catch (IOException | InterruptedException e) {
+                LOGGER.log(Level.WARNING, "Unable to clean the Data Theorem upload " + stagingDirectory, e);
+            }
+        }
+
+        @Override
+        public void stop(Throwable cause) throws Exception {
+            // Only called while the builds are searched or copied, the upload itself runs after the step
+            Future<?> running = task;
+            if (running != null) {
+                running.cancel(true);
+            }
+            getContext().onFailure(cause);
+        }
+
+        @Override
+        public void onResume() {
+            getContext().onFailure(new AbortException(
+                    "Jenkins restarted before the builds were copied for the Data Theorem upload"
+            ));
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return new HashSet<>(Arrays.asList(Run.class, FilePath.class, TaskListener.class));
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "sendBuildToDataTheoremAsync";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Upload build to Data Theorem in the background";
+        }
+
+        @Override
+        public Step newInstance(Map<String, Object> arguments) throws Exception {
+            // The step takes the arguments of the publisher
+            return new SendBuildToDataTheoremAsyncStep(
+                    new DescribableModel<>(SendBuildToDataTheoremPublisher.class).instantiate(arguments)
+            );
+        }
+
+        @Override
+        public Map<String, Object> defineArguments(Step step) throws UnsupportedOperationException {
+            return DescribableModel.uninstantiate2_(((SendBuildToDataTheoremAsyncStep) step).getPublisher()).toMap();
+        }
+    }
+}
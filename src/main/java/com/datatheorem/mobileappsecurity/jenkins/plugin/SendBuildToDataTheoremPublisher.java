@@ -2,8 +2,14 @@ package com.datatheorem.mobileappsecurity.jenkins.plugin;
 
 import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.ApplicationCredential;
 import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.Proxy;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.RetryPolicy;
 import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.SendBuildAction;
 import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.SendBuildMessage;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.BandwidthLimiter;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.DirectoryExcludes;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.FileMetadata;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.MatchSelection;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.ThrottledEntity;
 import groovy.lang.Tuple2;
 import hudson.Extension;
 import hudson.FilePath;
@@ -15,15 +21,30 @@ import hudson.tasks.Publisher;
 import hudson.util.FormValidation;
 import hudson.util.Secret;
 import jenkins.tasks.SimpleBuildStep;
+import jenkins.util.VirtualFile;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import javax.annotation.Nonnull;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * This class aims to provide a simple plugin to automatically upload builds to Data Theorem Upload API.
@@ -51,6 +72,23 @@ public class SendBuildToDataTheoremPublisher extends Publisher implements Simple
     private  String applicationCredentialComments = null;
     private  String releaseType = null;
     private  String externalId = null;
+    private  boolean useWorkspaceIndex = false;
+    private  int discoveryParallelism = 0;
+    private  String matchSelection = null;
+    private  String discoveryExcludes = null;
+    private  int uploadChunkSize = 0;
+    private  int maxUploadAttempts = 0;
+    private  int uploadRetryDelay = 0;
+    private  List<AdditionalBuild> additionalBuilds = new ArrayList<>();
+    private  int uploadConcurrency = 0;
+    private  boolean compressMappingFile = false;
+    private  boolean deduplicateUploads = false;
+    private  boolean forceUpload = false;
+    private  int uploadPriority = 0;
+    private  boolean coalesceUploads = false;
+
+    // Number of builds uploaded at the same time when the concurrency isn't configured
+    static final int DEFAULT_UPLOAD_CONCURRENCY = 4;
 
     @DataBoundConstructor
     public SendBuildToDataTheoremPublisher(
@@ -98,138 +136,730 @@ public class SendBuildToDataTheoremPublisher extends Publisher implements Simple
             TaskListener listener
     ) throws InterruptedException, IOException {
 
-        SendBuildAction sendBuild;
         listener.getLogger().println("Data Theorem upload build plugin starting...");
 
+        PreparedUpload upload = prepareUpload(run, workspace, listener, null, listener);
+        if (upload == null) {
+            // The result of the run is already set
+            return;
+        }
+        // The uploads are composed without blocking, the build step only waits for their result here
+        CompletableFuture<SendBuildMessage> result = upload.upload();
+        SendBuildMessage sendBuildResult;
+        try {
+            sendBuildResult = result.get();
+        } catch (InterruptedException e) {
+            // The build was aborted: stop the uploads
+            result.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            sendBuildResult = new SendBuildMessage(false, "Data Theorem upload error: " + e.getCause().toString());
+        }
+
+        if (!sendBuildResult.message.isEmpty()) {
+            listener.getLogger().println(sendBuildResult.message);
+        }
+        if (sendBuildResult.superseded) {
+            // A newer build of the application is uploaded instead
+            run.setResult(Result.NOT_BUILT);
+            return;
+        }
+        if (!sendBuildResult.success) {
+            run.setResult(Result.UNSTABLE);
+            return;
+        }
+       run.setResult(Result.SUCCESS);
+    }
+
+    interface PreparedUpload {
+        // Start the upload of the builds found by prepareUpload, cancelling the result stops it
+        CompletableFuture<SendBuildMessage> upload();
+    }
+
+    PreparedUpload prepareUpload(
+            Run<?, ?> run,
+            FilePath workspace,
+            TaskListener listener,
+            FilePath stagingDirectory,
+            TaskListener uploadListener
+    ) throws InterruptedException, IOException {
+        /*
+         * Validate the configuration, find the builds to upload and configure their upload
+         * When a staging directory is given, the workspace files are copied to it and uploaded from the controller,
+         * so the upload doesn't need the workspace anymore
+         * The upload itself logs to uploadListener
+         * @return: the upload of the builds, null when there is nothing to upload (the result of the run is set)
+         */
+
         Result result = run.getResult();
         if (result != null && result.isWorseOrEqualTo(Result.UNSTABLE)) {
             listener.getLogger().println(
                     "Skipping Data Theorem CI/CD because the previous step result is: " + Result.UNSTABLE.toString()
             );
             run.setResult(result);
-            return;
+            return null;
         }
 
-        listener.getLogger().println("Uploading the build to Data Theorem : " + this.buildToUpload);
-        // First find the path to the build to upload
-        FindBuildPathAction buildToSend = new FindBuildPathAction(this.buildToUpload, workspace, run, listener.getLogger());
-        Tuple2<String, Boolean> findPathResult = buildToSend.perform();
-        if (findPathResult == null) {
-            listener.getLogger().println("Unable to find any build with name : " + this.buildToUpload);
+        if (matchSelection != null && !matchSelection.isEmpty()
+                && !Arrays.asList("FIRST", "NEWEST", "FAIL_ON_AMBIGUOUS").contains(matchSelection)) {
+            listener.getLogger().println("Only FIRST, NEWEST and FAIL_ON_AMBIGUOUS match selections are allowed");
             run.setResult(Result.UNSTABLE);
-            return;
+            return null;
         }
 
-        // Check if the build is in artifact folder or the workspace
-        String buildPath = findPathResult.getFirst();
-        Boolean isBuildStoredInArtifactFolder = findPathResult.getSecond();
+        if (uploadConcurrency < 0) {
+            listener.getLogger().println("The number of concurrent uploads can't be negative");
+            run.setResult(Result.UNSTABLE);
+            return null;
+        }
 
-        String findSourceMapResult = null;
-        if (!(mappingFileToUpload == null || mappingFileToUpload.isEmpty())){
-            FindSourceMapPathAction findSourceMapPathAction = new FindSourceMapPathAction(this.mappingFileToUpload, workspace, listener.getLogger());
-             findSourceMapResult = findSourceMapPathAction.perform();
-            if (findSourceMapResult == null) {
-                listener.getLogger().println("Unable to find any mapping file with name : " + this.mappingFileToUpload);
+        List<AdditionalBuild> builds = getBuildsToUpload();
+        List<String> patterns = new ArrayList<>();
+        List<String> buildPatterns = new ArrayList<>();
+        for (AdditionalBuild build : builds) {
+            if (patterns.contains(build.getBuildToUpload())) {
+                listener.getLogger().println("The build " + build.getBuildToUpload() + " is listed several times");
                 run.setResult(Result.UNSTABLE);
-                return;
+                return null;
+            }
+            listener.getLogger().println("Uploading the build to Data Theorem : " + build.getBuildToUpload());
+            patterns.add(build.getBuildToUpload());
+            buildPatterns.add(build.getBuildToUpload());
+            if (build.hasMappingFile()) {
+                patterns.add(build.getMappingFileToUpload());
+            }
+        }
+
+        // Configure proxy and credentials, shared by the uploads of every build
+        // They are checked before the search: the upload links may be requested while the workspace is searched
+
+        String secretKey = null;
+        Proxy proxy = null;
+        ApplicationCredential applicationCredential = null;
+        List<PrefetchedUploadInit> uploadInits = new ArrayList<>();
+        if (!dontUpload) {
+            secretKey = getSecretKey(run, listener);
+
+            if (proxyHostname == null || proxyHostname.isEmpty()) {
+                listener.getLogger().println("No proxy configuration");
+            }
+            else
+            {
+                listener.getLogger().println("Proxy Configuration is : " + proxyHostname + ":" + proxyPort);
+                try {
+                    proxy = new Proxy(
+                            listener,
+                            proxyHostname,
+                            proxyPort,
+                            proxyUsername,
+                            proxyPassword.getPlainText(),
+                            proxyUnsecuredConnection
+                    );
+                } catch (IllegalArgumentException e){
+                    run.setResult(Result.UNSTABLE);
+                    return null;
+                }
+
+            }
+
+            if (releaseType != null && !releaseType.isEmpty()){
+                if (!Arrays.asList("ENTERPRISE", "PRE_PROD").contains(releaseType)){
+                    listener.getLogger().println("Only PRE_PROD and ENTERPRISE release type are allowed");
+                    run.setResult(Result.UNSTABLE);
+                    return null;
+
+                }
+            }
+
+            if (externalId != null && !externalId.isEmpty()) {
+                listener.getLogger().println("Uploading with external ID");
+            }
+
+            if (uploadChunkSize < 0 || uploadChunkSize > 1024) {
+                listener.getLogger().println("The upload chunk size should be between 0 and 1024 MiB");
+                run.setResult(Result.UNSTABLE);
+                return null;
+            }
+
+            if (applicationCredentialUsername != null && !applicationCredentialUsername.isEmpty()) {
+                // Set application credentials
+                try{
+                    applicationCredential = new ApplicationCredential(
+                            listener,
+                            applicationCredentialUsername,
+                            applicationCredentialPassword.getPlainText()
+                    );
+
+                    if (applicationCredentialComments != null && !applicationCredentialComments.isEmpty()) {
+                        applicationCredential.setComments(applicationCredentialComments);
+                    }
+                } catch (IllegalArgumentException e) {
+                    run.setResult(Result.UNSTABLE);
+                    return null;
+                }
+            }
+
+            if (canPrefetchUploadInit(builds.size(), stagingDirectory)) {
+                for (int i = 0; i < builds.size(); i++) {
+                    uploadInits.add(new PrefetchedUploadInit(secretKey, uploadListener, proxy));
+                }
             }
-            listener.getLogger().println("Found the mapping file at path: " + findSourceMapResult);
+        }
+
+        // The builds and the mapping files are searched together in the workspace with a single call to the agent
+        WorkspaceFiles workspaceFiles = new WorkspaceFiles(workspace, patterns.toArray(new String[0]));
+        workspaceFiles.setUseWorkspaceIndex(useWorkspaceIndex);
+        workspaceFiles.setDiscoveryParallelism(discoveryParallelism);
+        if (matchSelection != null && !matchSelection.isEmpty()) {
+            workspaceFiles.setMatchSelection(MatchSelection.valueOf(matchSelection));
+        }
+        workspaceFiles.setDiscoveryExcludes(DirectoryExcludes.parse(discoveryExcludes));
+        workspaceFiles.setLocationHints(WorkspaceLocationHints.fromPreviousBuilds(run));
+        // The agent hashes the builds while it resolves them, to skip the builds already uploaded.
+        // Hashing reads the whole build once more, so it only happens when the deduplication is enabled
+        boolean deduplicate = deduplicateUploads && !forceUpload && !dontUpload;
+        workspaceFiles.setComputeDigest(deduplicate);
+        workspaceFiles.setDigestPatterns(buildPatterns);
+
+        List<FoundBuild> foundBuilds = new ArrayList<>();
+        for (AdditionalBuild build : builds) {
+            FoundBuild foundBuild = findBuild(build, workspaceFiles, run, listener);
+            if (foundBuild == null) {
+                uploadInits.forEach(PrefetchedUploadInit::cancel);
+                run.setResult(Result.UNSTABLE);
+                return null;
+            }
+            foundBuilds.add(foundBuild);
+        }
+
+        // Remember where the files were found, the next build checks these locations first
+        Map<String, String> foundLocations = workspaceFiles.getFoundLocations();
+        if (!foundLocations.isEmpty()) {
+            run.addOrReplaceAction(new WorkspaceLocationHints(foundLocations));
         }
 
         // If the user only wants to check if the path was correct we don't call the Upload API
         if (dontUpload) {
             listener.getLogger().println("Skipping upload... \"Don't Upload\" option enabled");
             run.setResult(Result.SUCCESS);
-            return;
+            return null;
         }
 
-        // Configure proxy and credentials
+        // Then prepare the upload of the builds to DT
 
-        sendBuild = new SendBuildAction(
-                    getSecretKey(run, listener),
-                    listener,
+        if (stagingDirectory != null && sendBuildDirectlyFromRemote) {
+            listener.getLogger().println("The builds are sent from the controller once copied from the workspace");
+        }
+        String uploadReleaseType = releaseType != null && !releaseType.isEmpty() ? releaseType : "PRE_PROD";
+        Map<String, PreparedUpload> uploads = new LinkedHashMap<>();
+        for (int i = 0; i < foundBuilds.size(); i++) {
+            FoundBuild foundBuild = foundBuilds.get(i);
+            String buildName = foundBuild.build.getBuildToUpload();
+            // Without a prefetched call, the upload requests its link once it got its slot in the upload queue
+            PrefetchedUploadInit uploadInit = uploadInits.isEmpty() ? null : uploadInits.get(i);
+            String sha256 = !deduplicate || secretKey == null ? null : buildDigest(foundBuild, workspaceFiles, listener);
+            UploadLedger.Entry previousUpload = sha256 == null
+                    ? null
+                    : UploadLedger.get().find(sha256, secretKey, uploadReleaseType);
+            if (previousUpload != null) {
+                SendBuildMessage skipped = new SendBuildMessage(
+                        true,
+                        "Skipping the upload of " + buildName + ": the same build (SHA-256 " + sha256 + ") was " +
+                        "already uploaded with this API key as " + uploadReleaseType + " by " +
+                        previousUpload.getUploadedBy() + " on " + new Date(previousUpload.getTimestamp()) +
+                        ". Check the forceUpload option to upload it again"
+                );
+                if (uploadInit != null) {
+                    uploadInit.cancel();
+                }
+                uploads.put(buildName, () -> CompletableFuture.completedFuture(skipped));
+                continue;
+            }
+
+            SendBuildAction sendBuild = createSendBuildAction(
+                    foundBuild,
+                    secretKey,
                     workspace,
-                    buildPath,
-                    findSourceMapResult,
-                    isBuildStoredInArtifactFolder
+                    workspaceFiles,
+                    listener,
+                    uploadListener,
+                    proxy,
+                    applicationCredential,
+                    stagingDirectory == null ? null : stagingDirectory.child(String.valueOf(i))
+            );
+            PreparedUpload send;
+            if (stagingDirectory != null) {
+                send = sendBuild::performAsync;
+            }
+            else {
+                send = () -> upload(sendBuild, foundBuild, workspace, uploadListener);
+            }
+            PreparedUpload upload = scheduled(
+                    () -> uploadInit != null ? uploadInit.thenUpload(sendBuild, send) : send.upload(),
+                    secretKey,
+                    uploadReleaseType,
+                    run,
+                    buildName,
+                    uploadListener
             );
+            if (sha256 != null) {
+                upload = recordInLedger(upload, sha256, secretKey, uploadReleaseType, run.getExternalizableId());
+            }
+            uploads.put(buildName, upload);
+        }
 
-        if (proxyHostname == null || proxyHostname.isEmpty()) {
-            listener.getLogger().println("No proxy configuration");
+        if (uploads.size() == 1) {
+            return uploads.values().iterator().next();
         }
-        else
-        {
-            listener.getLogger().println("Proxy Configuration is : " + proxyHostname + ":" + proxyPort);
-            try {
-                Proxy proxy = new Proxy(
-                        listener,
-                        proxyHostname,
-                        proxyPort,
-                        proxyUsername,
-                        proxyPassword.getPlainText(),
-                        proxyUnsecuredConnection
-                );
-                sendBuild.setProxy(proxy);
-            } catch (IllegalArgumentException e){
-                run.setResult(Result.UNSTABLE);
-                return;
+        return () -> uploadConcurrently(uploads, uploadListener);
+    }
+
+    private boolean canPrefetchUploadInit(int builds, FilePath stagingDirectory) {
+        /*
+         * The upload link is only requested during the search when the upload starts right after it:
+         * a link waiting in the upload queue may expire
+         * @return: true when the uploads of the builds can't wait for a slot and are sent from the controller
+         */
+        if (sendBuildDirectlyFromRemote || stagingDirectory != null) {
+            // The agent requests its own link, and the background uploads may wait for a thread
+            return false;
+        }
+        int threads = uploadConcurrency > 0 ? uploadConcurrency : DEFAULT_UPLOAD_CONCURRENCY;
+        return builds <= threads && DataTheoremGlobalConfiguration.get().getUploadScheduler().isUnlimited();
+    }
+
+    private static final class PrefetchedUploadInit {
+        // upload_init call started before the search of the build
+
+        private final SendBuildAction call;
+        private final CompletableFuture<SendBuildMessage> result;
+
+        PrefetchedUploadInit(String secretKey, TaskListener listener, Proxy proxy) {
+            // The call only needs the API key and the proxy, the build is not known yet
+            this.call = new SendBuildAction(secretKey, listener, null, null, null, false);
+            if (proxy != null) {
+                call.setProxy(proxy);
             }
+            // The upload of the build prints the warnings of the configuration
+            DataTheoremGlobalConfiguration.get().configureTransport(call, TaskListener.NULL.getLogger());
+            this.result = call.uploadInitAsync();
+        }
 
+        CompletableFuture<SendBuildMessage> thenUpload(SendBuildAction sendBuild, PreparedUpload send) {
+            /*
+             * Give the result of the call to the upload of the build once it completes, then start the upload
+             * The upload makes its own call when the prefetched one didn't complete
+             */
+            CompletableFuture<SendBuildMessage> upload = new CompletableFuture<>();
+            result.whenComplete((message, e) -> {
+                if (e == null) {
+                    sendBuild.setPrefetchedUploadInit(message, call.getUploadUrl());
+                }
+                if (!upload.isDone()) {
+                    forward(send.upload(), upload);
+                }
+            });
+            return upload;
         }
 
-        if (releaseType != null && !releaseType.isEmpty()){
-            if (!Arrays.asList("ENTERPRISE", "PRE_PROD").contains(releaseType)){
-                listener.getLogger().println("Only PRE_PROD and ENTERPRISE release type are allowed");
-                run.setResult(Result.UNSTABLE);
-                return;
+        void cancel() {
+            result.cancel(true);
+        }
+    }
+
+    private static final class FoundBuild {
+        // Location of a build to upload and of its mapping file
+
+        private final AdditionalBuild build;
+        private final FindBuildPathAction buildPathAction;
+        private final String buildPath;
+        private final boolean isBuildStoredInArtifactFolder;
+        private final String mappingFilePath;
+
+        FoundBuild(
+                AdditionalBuild build,
+                FindBuildPathAction buildPathAction,
+                String buildPath,
+                boolean isBuildStoredInArtifactFolder,
+                String mappingFilePath
+        ) {
+            this.build = build;
+            this.buildPathAction = buildPathAction;
+            this.buildPath = buildPath;
+            this.isBuildStoredInArtifactFolder = isBuildStoredInArtifactFolder;
+            this.mappingFilePath = mappingFilePath;
+        }
+    }
+
+    private FoundBuild findBuild(
+            AdditionalBuild build,
+            WorkspaceFiles workspaceFiles,
+            Run<?, ?> run,
+            TaskListener listener
+    ) {
+        /*
+         * Find the path of a build and of its mapping file
+         * @return: the location of the files, null if one of them can't be found
+         */
+        FindBuildPathAction buildToSend = new FindBuildPathAction(
+                build.getBuildToUpload(), workspaceFiles, run, listener.getLogger()
+        );
+        Tuple2<String, Boolean> findPathResult = buildToSend.perform();
+        if (findPathResult == null) {
+            listener.getLogger().println("Unable to find any build with name : " + build.getBuildToUpload());
+            listener.getLogger().println(
+                    "The directories " + DirectoryExcludes.DEFAULT_EXCLUDES + " are only searched when the build name " +
+                    "explicitly goes through them"
+            );
+            return null;
+        }
+
+        String findSourceMapResult = null;
+        if (build.hasMappingFile()) {
+            FindSourceMapPathAction findSourceMapPathAction = new FindSourceMapPathAction(
+                    build.getMappingFileToUpload(), workspaceFiles, listener.getLogger()
+            );
+            findSourceMapResult = findSourceMapPathAction.perform();
+            if (findSourceMapResult == null) {
+                listener.getLogger().println("Unable to find any mapping file with name : " + build.getMappingFileToUpload());
+                return null;
+            }
+            listener.getLogger().println("Found the mapping file at path: " + findSourceMapResult);
+        }
+        return new FoundBuild(build, buildToSend, findPathResult.getFirst(), findPathResult.getSecond(), findSourceMapResult);
+    }
 
+    private SendBuildAction createSendBuildAction(
+            FoundBuild foundBuild,
+            String secretKey,
+            FilePath workspace,
+            WorkspaceFiles workspaceFiles,
+            TaskListener listener,
+            TaskListener uploadListener,
+            Proxy proxy,
+            ApplicationCredential applicationCredential,
+            FilePath stagingDirectory
+    ) throws IOException, InterruptedException {
+        FilePath uploadRoot = workspace;
+        String buildPath = foundBuild.buildPath;
+        String mappingFilePath = foundBuild.mappingFilePath;
+        if (stagingDirectory != null) {
+            listener.getLogger().println("Copying the files to upload from the workspace to the controller...");
+            if (!foundBuild.isBuildStoredInArtifactFolder) {
+                buildPath = stage(workspace, buildPath, stagingDirectory.child("build"));
             }
-            sendBuild.setReleaseType(releaseType);
+            if (mappingFilePath != null) {
+                mappingFilePath = stage(workspace, mappingFilePath, stagingDirectory.child("mapping"));
+            }
+            uploadRoot = stagingDirectory;
         }
 
+        SendBuildAction sendBuild = new SendBuildAction(
+                secretKey,
+                uploadListener,
+                uploadRoot,
+                buildPath,
+                mappingFilePath,
+                foundBuild.isBuildStoredInArtifactFolder
+        );
+
+        if (foundBuild.isBuildStoredInArtifactFolder) {
+            listener.getLogger().println("Found the build in the artifacts: " + foundBuild.buildPath);
+            sendBuild.setBuildArtifact(foundBuild.buildPathAction.getArtifact());
+        }
+        // The metadata collected during the search saves the calls to the agent while uploading
+        else {
+            sendBuild.setBuildMetadata(workspaceFiles.find(foundBuild.build.getBuildToUpload()));
+        }
+        if (foundBuild.mappingFilePath != null) {
+            sendBuild.setSourceMapMetadata(workspaceFiles.find(foundBuild.build.getMappingFileToUpload()));
+        }
+
+        if (proxy != null) {
+            sendBuild.setProxy(proxy);
+        }
+        sendBuild.setBandwidthLimiter(DataTheoremGlobalConfiguration.get().getBandwidthLimiter());
+        DataTheoremGlobalConfiguration.get().configureTransport(sendBuild, listener.getLogger());
+        if (releaseType != null && !releaseType.isEmpty()) {
+            sendBuild.setReleaseType(releaseType);
+        }
         if (externalId != null && !externalId.isEmpty()) {
-            listener.getLogger().println("Uploading with external ID");
             sendBuild.setExternalId(externalId);
         }
+        sendBuild.setCompressSourceMap(compressMappingFile);
+        if (uploadChunkSize > 0) {
+            // The chunk size is configured in MiB
+            sendBuild.setUploadChunkSize(uploadChunkSize * 1024 * 1024);
+        }
 
-        if (applicationCredentialUsername != null && !applicationCredentialUsername.isEmpty()) {
-            // Set application credentials
-            try{
-                ApplicationCredential applicationCredential = new ApplicationCredential(
-                        listener,
-                        applicationCredentialUsername,
-                        applicationCredentialPassword.getPlainText()
-                );
+        // 0 keeps the default value, also used by the jobs configured before these options existed
+        sendBuild.setRetryPolicy(new RetryPolicy(
+                maxUploadAttempts > 0 ? maxUploadAttempts : RetryPolicy.DEFAULT_MAX_ATTEMPTS,
+                uploadRetryDelay > 0 ? uploadRetryDelay * 1000L : RetryPolicy.DEFAULT_INITIAL_DELAY,
+                RetryPolicy.DEFAULT_MAX_DELAY
+        ));
 
-                if (applicationCredentialComments != null && !applicationCredentialComments.isEmpty()) {
-                    applicationCredential.setComments(applicationCredentialComments);
-                }
+        if (applicationCredential != null) {
+            sendBuild.setApplicationCredential(applicationCredential);
+        }
+        return sendBuild;
+    }
 
-                sendBuild.setApplicationCredential(applicationCredential);
-            } catch (IllegalArgumentException e) {
-                run.setResult(Result.UNSTABLE);
-                return;
+    private static String buildDigest(FoundBuild foundBuild, WorkspaceFiles workspaceFiles, TaskListener listener)
+            throws IOException, InterruptedException {
+        /*
+         * SHA-256 of a build, identifying it in the upload ledger
+         * The digest of a workspace build is computed by the agent during the search,
+         * an artifact is only hashed when it is stored on the controller
+         * @return: the digest, null when the build would have to be downloaded to compute it
+         */
+        if (!foundBuild.isBuildStoredInArtifactFolder) {
+            FileMetadata metadata = workspaceFiles.find(foundBuild.build.getBuildToUpload());
+            return metadata != null ? metadata.getSha256() : null;
+        }
+        VirtualFile artifact = foundBuild.buildPathAction.getArtifact();
+        if (artifact == null) {
+            try (InputStream in = Files.newInputStream(new File(foundBuild.buildPath).toPath())) {
+                return DigestUtils.sha256Hex(in);
+            }
+        }
+        if ("file".equals(artifact.toURI().getScheme())) {
+            try (InputStream in = artifact.open()) {
+                return DigestUtils.sha256Hex(in);
             }
         }
+        listener.getLogger().println(
+                "The build is stored outside of the controller, it is uploaded without checking the previous uploads"
+        );
+        return null;
+    }
 
-        // Then upload the build to DT
+    private static PreparedUpload recordInLedger(
+            PreparedUpload upload,
+            String sha256,
+            String apiKey,
+            String releaseType,
+            String uploadedBy
+    ) {
+        /*
+         * @return: the upload, recording the build in the upload ledger when it succeeds
+         */
+        return () -> {
+            CompletableFuture<SendBuildMessage> result = upload.upload();
+            result.thenAccept(message -> {
+                if (message.success) {
+                    UploadLedger.get().record(sha256, apiKey, releaseType, uploadedBy);
+                }
+            });
+            return result;
+        };
+    }
 
-        SendBuildMessage sendBuildResult;
-        if (sendBuildDirectlyFromRemote){
-            sendBuildResult = workspace.act(sendBuild);
+    private PreparedUpload scheduled(
+            PreparedUpload upload,
+            String apiKey,
+            String releaseType,
+            Run<?, ?> run,
+            String buildName,
+            TaskListener listener
+    ) {
+        /*
+         * @return: the upload, started by a thread of the controller once it gets a slot in the upload queue
+         *   When the uploads are coalesced, a waiting upload is superseded by the upload of a newer build of the same
+         *   application: the same external ID, or else the same build of the same job
+         */
+        UploadScheduler scheduler = DataTheoremGlobalConfiguration.get().getUploadScheduler();
+        String coalescingKey = null;
+        if (coalesceUploads) {
+            coalescingKey = releaseType + ":" + (externalId != null && !externalId.isEmpty()
+                    ? "externalId:" + externalId
+                    : "job:" + run.getParent().getFullName() + ":" + buildName);
+        }
+        String key = coalescingKey;
+        return () -> scheduler.schedule(
+                apiKey,
+                uploadPriority,
+                releaseType,
+                key,
+                run.getTimeInMillis(),
+                run.getExternalizableId(),
+                listener.getLogger(),
+                Computer.threadPoolForRemoting,
+                upload
+        );
+    }
+
+    private static String stage(FilePath workspace, String relativePath, FilePath directory)
+            throws IOException, InterruptedException {
+        /*
+         * Copy a workspace file to the staging directory
+         * @return: the path of the copy relative to the parent of the directory
+         */
+        FilePath source = workspace.child(relativePath);
+        directory.mkdirs();
+        source.copyTo(directory.child(source.getName()));
+        return directory.getName() + "/" + source.getName();
+    }
+
+    private CompletableFuture<SendBuildMessage> upload(
+            SendBuildAction sendBuild,
+            FoundBuild foundBuild,
+            FilePath workspace,
+            TaskListener listener
+    ) {
+        if (sendBuildDirectlyFromRemote && foundBuild.isBuildStoredInArtifactFolder) {
+            // The artifact manager is only available on the controller
+            listener.getLogger().println("The build is an artifact, it is sent from the controller");
+            return sendBuild.performAsync();
+        }
+        else if (sendBuildDirectlyFromRemote){
+            // The agent sends the build: a remoting thread of the controller waits for the agent
+            CompletableFuture<SendBuildMessage> result = new CompletableFuture<>();
+            Future<?> task = Computer.threadPoolForRemoting.submit(() -> {
+                try {
+                    result.complete(uploadFromAgent(sendBuild, workspace, listener));
+                } catch (Exception | Error e) {
+                    result.completeExceptionally(e);
+                }
+            });
+            result.whenComplete((message, e) -> {
+                if (result.isCancelled()) {
+                    // Interrupt the call to the agent
+                    task.cancel(true);
+                }
+            });
+            return result;
         }
         else{
-            sendBuildResult = sendBuild.perform();
+            return sendBuild.performAsync();
         }
+    }
 
-        if (!sendBuildResult.message.isEmpty()) {
-            listener.getLogger().println(sendBuildResult.message);
+    private static SendBuildMessage uploadFromAgent(SendBuildAction sendBuild, FilePath workspace, TaskListener listener)
+            throws IOException, InterruptedException {
+        BandwidthLimiter limiter = DataTheoremGlobalConfiguration.get().getBandwidthLimiter();
+        if (!limiter.isLimited()) {
+            return workspace.act(sendBuild);
         }
-        if (!sendBuildResult.success) {
-            run.setResult(Result.UNSTABLE);
-            return;
+        // The agent can't share the bandwidth of the controller while sending: its share is reserved until the end
+        try (BandwidthLimiter.Stream share = limiter.reserve()) {
+            sendBuild.setAgentBandwidthLimit(share.getAllocation());
+            listener.getLogger().println(
+                    "Upload bandwidth reserved for the agent: " + ThrottledEntity.describe(share.getAllocation())
+            );
+            return workspace.act(sendBuild);
         }
-       run.setResult(Result.SUCCESS);
+    }
+
+    private CompletableFuture<SendBuildMessage> uploadConcurrently(
+            Map<String, PreparedUpload> uploads,
+            TaskListener listener
+    ) {
+        /*
+         * Upload the builds, a bounded number at a time, the failure of an upload doesn't stop the others
+         * @return: the results of every upload aggregated in a single message
+         */
+        int concurrency = Math.min(
+                uploads.size(), uploadConcurrency > 0 ? uploadConcurrency : DEFAULT_UPLOAD_CONCURRENCY
+        );
+        listener.getLogger().println("Uploading " + uploads.size() + " builds, " + concurrency + " at a time");
+        return new ConcurrentUploads(uploads).start(concurrency);
+    }
+
+    private static final class ConcurrentUploads {
+        // Uploads of several builds: each upload which ends starts the next waiting one
+
+        private final Iterator<Map.Entry<String, PreparedUpload>> waiting;
+        private final Map<String, CompletableFuture<SendBuildMessage>> results = new LinkedHashMap<>();
+        private final List<CompletableFuture<SendBuildMessage>> running = new ArrayList<>();
+        private boolean cancelled = false;
+
+        ConcurrentUploads(Map<String, PreparedUpload> uploads) {
+            this.waiting = uploads.entrySet().iterator();
+            for (String buildName : uploads.keySet()) {
+                results.put(buildName, new CompletableFuture<>());
+            }
+        }
+
+        CompletableFuture<SendBuildMessage> start(int concurrency) {
+            /*
+             * @return: the summary of the uploads once they all ended, cancelling it cancels the running uploads
+             */
+            CompletableFuture<SendBuildMessage> summary = CompletableFuture
+                    .allOf(results.values().toArray(new CompletableFuture<?>[0]))
+                    .thenApply(ignored -> {
+                        Map<String, SendBuildMessage> messages = new LinkedHashMap<>();
+                        results.forEach((buildName, result) -> messages.put(buildName, result.join()));
+                        return SendBuildMessage.summarize(messages);
+                    });
+            summary.whenComplete((message, e) -> {
+                if (summary.isCancelled()) {
+                    cancel();
+                }
+            });
+            for (int i = 0; i < concurrency; i++) {
+                startNext();
+            }
+            return summary;
+        }
+
+        private void startNext() {
+            Map.Entry<String, PreparedUpload> upload;
+            synchronized (this) {
+                if (cancelled || !waiting.hasNext()) {
+                    return;
+                }
+                upload = waiting.next();
+            }
+            CompletableFuture<SendBuildMessage> result = results.get(upload.getKey());
+            CompletableFuture<SendBuildMessage> started;
+            try {
+                started = upload.getValue().upload();
+            } catch (RuntimeException e) {
+                started = new CompletableFuture<>();
+                started.completeExceptionally(e);
+            }
+            synchronized (this) {
+                running.add(started);
+            }
+            started.whenComplete((message, e) -> {
+                result.complete(e == null
+                        ? message
+                        : new SendBuildMessage(false, "Data Theorem upload error: " + unwrap(e).toString())
+                );
+                startNext();
+            });
+        }
+
+        private synchronized void cancel() {
+            cancelled = true;
+            for (CompletableFuture<SendBuildMessage> upload : running) {
+                upload.cancel(true);
+            }
+        }
+    }
+
+    private static <T> void forward(CompletableFuture<T> from, CompletableFuture<T> to) {
+        /*
+         * Complete a future with the result of another one, cancelling it cancels the other one
+         */
+        from.whenComplete((value, e) -> {
+            if (e != null) {
+                to.completeExceptionally(e);
+            } else {
+                to.complete(value);
+            }
+        });
+        to.whenComplete((value, e) -> {
+            if (to.isCancelled()) {
+                from.cancel(true);
+            }
+        });
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        // The failure of an upload, wrapped by the stages composed with it
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
     }
 
     @Override
@@ -318,6 +948,75 @@ public class SendBuildToDataTheoremPublisher extends Publisher implements Simple
         return externalId;
     }
 
+    public boolean getUseWorkspaceIndex() {
+        return useWorkspaceIndex;
+    }
+
+    public int getDiscoveryParallelism() {
+        return discoveryParallelism;
+    }
+
+    public String getMatchSelection() {
+        return matchSelection;
+    }
+
+    public String getDiscoveryExcludes() {
+        return discoveryExcludes;
+    }
+
+    public int getUploadChunkSize() {
+        return uploadChunkSize;
+    }
+
+    public int getMaxUploadAttempts() {
+        return maxUploadAttempts;
+    }
+
+    public int getUploadRetryDelay() {
+        return uploadRetryDelay;
+    }
+
+    public List<AdditionalBuild> getAdditionalBuilds() {
+        // null for the jobs configured before this option existed
+        return additionalBuilds == null ? new ArrayList<>() : additionalBuilds;
+    }
+
+    public int getUploadConcurrency() {
+        return uploadConcurrency;
+    }
+
+    public boolean isCompressMappingFile() {
+        return compressMappingFile;
+    }
+
+    public boolean isDeduplicateUploads() {
+        return deduplicateUploads;
+    }
+
+    public boolean isForceUpload() {
+        return forceUpload;
+    }
+
+    public int getUploadPriority() {
+        return uploadPriority;
+    }
+
+    public boolean isCoalesceUploads() {
+        return coalesceUploads;
+    }
+
+    List<AdditionalBuild> getBuildsToUpload() {
+        /*
+         * @return: the main build followed by the additional builds
+         */
+        AdditionalBuild mainBuild = new AdditionalBuild(buildToUpload);
+        mainBuild.setMappingFileToUpload(mappingFileToUpload);
+        List<AdditionalBuild> builds = new ArrayList<>();
+        builds.add(mainBuild);
+        builds.addAll(getAdditionalBuilds());
+        return builds;
+    }
+
     @DataBoundSetter
     public void setDataTheoremUploadApiKey(String dataTheoremUploadApiKey) {
         /*
@@ -397,6 +1096,76 @@ public class SendBuildToDataTheoremPublisher extends Publisher implements Simple
         this.externalId = externalId;
     }
 
+    @DataBoundSetter
+    public void setUseWorkspaceIndex(boolean useWorkspaceIndex) {
+        this.useWorkspaceIndex = useWorkspaceIndex;
+    }
+
+    @DataBoundSetter
+    public void setDiscoveryParallelism(int discoveryParallelism) {
+        this.discoveryParallelism = discoveryParallelism;
+    }
+
+    @DataBoundSetter
+    public void setMatchSelection(String matchSelection) {
+        this.matchSelection = matchSelection;
+    }
+
+    @DataBoundSetter
+    public void setDiscoveryExcludes(String discoveryExcludes) {
+        this.discoveryExcludes = discoveryExcludes;
+    }
+
+    @DataBoundSetter
+    public void setUploadChunkSize(int uploadChunkSize) {
+        this.uploadChunkSize = uploadChunkSize;
+    }
+
+    @DataBoundSetter
+    public void setMaxUploadAttempts(int maxUploadAttempts) {
+        this.maxUploadAttempts = maxUploadAttempts;
+    }
+
+    @DataBoundSetter
+    public void setUploadRetryDelay(int uploadRetryDelay) {
+        this.uploadRetryDelay = uploadRetryDelay;
+    }
+
+    @DataBoundSetter
+    public void setAdditionalBuilds(List<AdditionalBuild> additionalBuilds) {
+        this.additionalBuilds = additionalBuilds == null ? new ArrayList<>() : new ArrayList<>(additionalBuilds);
+    }
+
+    @DataBoundSetter
+    public void setUploadConcurrency(int uploadConcurrency) {
+        this.uploadConcurrency = uploadConcurrency;
+    }
+
+    @DataBoundSetter
+    public void setCompressMappingFile(boolean compressMappingFile) {
+        this.compressMappingFile = compressMappingFile;
+    }
+
+    @DataBoundSetter
+    public void setDeduplicateUploads(boolean deduplicateUploads) {
+        this.deduplicateUploads = deduplicateUploads;
+    }
+
+    @DataBoundSetter
+    public void setForceUpload(boolean forceUpload) {
+        this.forceUpload = forceUpload;
+    }
+
+    @DataBoundSetter
+    public void setUploadPriority(int uploadPriority) {
+        this.uploadPriority = uploadPriority;
+    }
+
+    @DataBoundSetter
+    public void setCoalesceUploads(boolean coalesceUploads) {
+        this.coalesceUploads = coalesceUploads;
+    }
+
     @Extension
     // Define the symbols needed to call the jenkins plugin in a DSL pipeline
     @Symbol({
@@ -416,6 +1185,20 @@ public class SendBuildToDataTheoremPublisher extends Publisher implements Simple
         "applicationCredentialComments",
         "releaseType",
         "externalId",
+        "useWorkspaceIndex",
+        "discoveryParallelism",
+        "matchSelection",
+        "discoveryExcludes",
+        "uploadChunkSize",
+        "maxUploadAttempts",
+        "uploadRetryDelay",
+        "additionalBuilds",
+        "uploadConcurrency",
+        "compressMappingFile",
+        "deduplicateUploads",
+        "forceUpload",
+        "uploadPriority",
+        "coalesceUploads",
     })
     public static final class DescriptorImpl extends BuildStepDescriptor<Publisher> {
 
@@ -448,6 +1231,38 @@ public class SendBuildToDataTheoremPublisher extends Publisher implements Simple
             return FormValidation.ok();
         }
 
+        public FormValidation doCheckDiscoveryParallelism(@QueryParameter(value = "discoveryParallelism") int value) {
+            if (value < 0)
+                return FormValidation.error("The number of threads can't be negative");
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckUploadChunkSize(@QueryParameter(value = "uploadChunkSize") int value) {
+            if (value < 0)
+                return FormValidation.error("The chunk size can't be negative");
+            if (value > 1024)
+                return FormValidation.error("The chunk size can't be more than 1024 MiB");
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckMaxUploadAttempts(@QueryParameter(value = "maxUploadAttempts") int value) {
+            if (value < 0)
+                return FormValidation.error("The number of attempts can't be negative");
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckUploadRetryDelay(@QueryParameter(value = "uploadRetryDelay") int value) {
+            if (value < 0)
+                return FormValidation.error("The delay can't be negative");
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckUploadConcurrency(@QueryParameter(value = "uploadConcurrency") int value) {
+            if (value < 0)
+                return FormValidation.error("The number of concurrent uploads can't be negative");
+            return FormValidation.ok();
+        }
+
         @Override
         public String getDisplayName() {
             return "Upload build to Data Theorem";
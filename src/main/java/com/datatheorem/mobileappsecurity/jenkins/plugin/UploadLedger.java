@@ -0,0 +1,132 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin;
+
+import hudson.XmlFile;
+import jenkins.model.Jenkins;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Builds successfully uploaded to Data Theorem, stored on the controller.
+ * <p>
+ * An upload is identified by the SHA-256 of the build, the API key and the release type:
+ * a byte-identical build uploaded again with the same key and release type is skipped unless the upload is forced.
+ * The API key is only stored as a digest. The oldest uploads are forgotten once the ledger is full.
+ * </p>
+ */
+public class UploadLedger {
+
+    private static final Logger LOGGER = Logger.getLogger(UploadLedger.class.getName());
+
+    // Number of uploads remembered by the ledger
+    static /* not final */ int MAX_ENTRIES = Integer.getInteger(UploadLedger.class.getName() + ".maxEntries", 1000);
+
+    private static UploadLedger instance = null;
+
+    private final transient XmlFile file;
+    // Uploads indexed by key, from the oldest to the newest
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+    UploadLedger(XmlFile file) {
+        this.file = file;
+    }
+
+    public static synchronized UploadLedger get() {
+        /*
+         * @return: the ledger of the controller, loaded from the Jenkins root directory the first time
+         */
+        if (instance == null) {
+            instance = new UploadLedger(new XmlFile(
+                    new File(Jenkins.get().getRootDir(), UploadLedger.class.getName() + ".xml")
+            ));
+            instance.load();
+        }
+        return instance;
+    }
+
+    synchronized void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            file.unmarshal(this);
+        } catch (IOException e) {
+            // The uploads are not deduplicated until the ledger is written again
+            LOGGER.log(Level.WARNING, "Unable to load the Data Theorem upload ledger " + file, e);
+        }
+    }
+
+    public synchronized Entry find(String sha256, String apiKey, String releaseType) {
+        /*
+         * @return: the previous upload of the same build with the same API key and release type, null if none
+         */
+        return entries.get(key(sha256, apiKey, releaseType));
+    }
+
+    public synchronized void record(String sha256, String apiKey, String releaseType, String uploadedBy) {
+        /*
+         * Remember a successful upload and save the ledger
+         * A failure to save is logged: the upload itself succeeded
+         */
+        String key = key(sha256, apiKey, releaseType);
+        // The last upload of a build moves it to the end of the ledger
+        entries.remove(key);
+        entries.put(key, new Entry(sha256, releaseType, uploadedBy, System.currentTimeMillis()));
+        Iterator<String> oldest = entries.keySet().iterator();
+        while (entries.size() > Math.max(1, MAX_ENTRIES)) {
+            oldest.next();
+            oldest.remove();
+        }
+        try {
+            file.write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to save the Data Theorem upload ledger " + file, e);
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static String key(String sha256, String apiKey, String releaseType) {
+        return sha256 + ":" + DigestUtils.sha256Hex(apiKey) + ":" + releaseType;
+    }
+
+    public static final class Entry {
+        // Successful upload of a build
+
+        private final String sha256;
+        private final String releaseType;
+        // Run which uploaded the build
+        private final String uploadedBy;
+        private final long timestamp;
+
+        Entry(String sha256, String releaseType, String uploadedBy, long timestamp) {
+            this.sha256 = sha256;
+            this.releaseType = releaseType;
+            this.uploadedBy = uploadedBy;
+            this.timestamp = timestamp;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+
+        public String getReleaseType() {
+            return releaseType;
+        }
+
+        public String getUploadedBy() {
+            return uploadedBy;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+}
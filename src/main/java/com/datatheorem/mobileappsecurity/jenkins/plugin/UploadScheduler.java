@@ -0,0 +1,350 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin;
+
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.SendBuildMessage;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Queue of the uploads of the controller, shared by all the jobs.
+ * <p>
+ * The number of uploads sending their build at the same time is capped globally and for each API key.
+ * The waiting uploads start by decreasing priority, the ENTERPRISE builds before the PRE_PROD builds
+ * of the same priority, then in their order of arrival. An upload which can't start because its API key
+ * is at its cap lets the next uploads of the other API keys start.
+ * </p>
+ * <p>
+ * The uploads of a job which coalesces its uploads have a coalescing key: a waiting upload is superseded
+ * by a newer build with the same key, it leaves the queue without sending its build.
+ * The uploads already started are never superseded.
+ * </p>
+ * <p>
+ * No thread waits for a slot: each upload has a ticket, granted when the upload starts or is superseded,
+ * and the upload is started by an executor once its ticket is granted.
+ * </p>
+ */
+public class UploadScheduler {
+
+    // 0 for no limit
+    private int maxConcurrentUploads;
+    private int maxConcurrentUploadsPerApiKey;
+
+    private final PriorityQueue<Ticket> waiting = new PriorityQueue<>();
+    // Running uploads indexed by the digest of their API key
+    private final Map<String, Integer> runningPerApiKey = new HashMap<>();
+    private int running = 0;
+    private long arrivals = 0;
+
+    public UploadScheduler(int maxConcurrentUploads, int maxConcurrentUploadsPerApiKey) {
+        this.maxConcurrentUploads = maxConcurrentUploads;
+        this.maxConcurrentUploadsPerApiKey = maxConcurrentUploadsPerApiKey;
+    }
+
+    public synchronized void setLimits(int maxConcurrentUploads, int maxConcurrentUploadsPerApiKey) {
+        // Raising a limit starts the waiting uploads, lowering it lets the running uploads end
+        this.maxConcurrentUploads = maxConcurrentUploads;
+        this.maxConcurrentUploadsPerApiKey = maxConcurrentUploadsPerApiKey;
+        startWaitingUploads();
+    }
+
+    CompletableFuture<SendBuildMessage> schedule(
+            String apiKey,
+            int priority,
+            String releaseType,
+            String coalescingKey,
+            long generation,
+            String owner,
+            PrintStream logger,
+            Executor executor,
+            SendBuildToDataTheoremPublisher.PreparedUpload upload
+    ) {
+        /*
+         * Queue the upload, it is started by the executor once it gets a slot and the slot is released when it ends
+         * No thread waits for the slot. Cancelling the result removes a waiting upload from the queue, or cancels
+         * the running upload
+         * @return: the result of the upload, superseded when a newer build took its place in the queue
+         */
+        Ticket ticket = add(apiKey, priority, releaseType, coalescingKey, generation, owner, logger);
+        CompletableFuture<SendBuildMessage> result = new CompletableFuture<>();
+        ticket.granted.thenRunAsync(() -> {
+            if (ticket.supersededBy != null) {
+                result.complete(SendBuildMessage.superseded(
+                        "The upload was superseded by " + ticket.supersededBy + ", a newer build of the same " +
+                        "application, before it started"
+                ));
+                return;
+            }
+            if (result.isDone()) {
+                // Cancelled while the upload was handed to the executor
+                release(ticket);
+                return;
+            }
+            CompletableFuture<SendBuildMessage> running;
+            try {
+                running = upload.upload();
+            } catch (RuntimeException | Error e) {
+                release(ticket);
+                result.completeExceptionally(e);
+                return;
+            }
+            running.whenComplete((message, e) -> {
+                release(ticket);
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    result.complete(message);
+                }
+            });
+            result.whenComplete((message, e) -> {
+                if (result.isCancelled()) {
+                    running.cancel(true);
+                }
+            });
+        }, executor);
+        result.whenComplete((message, e) -> {
+            if (result.isCancelled()) {
+                withdraw(ticket);
+            }
+        });
+        return result;
+    }
+
+    Ticket enqueue(String apiKey, int priority, String releaseType, PrintStream logger)
+            throws InterruptedException {
+        return enqueue(apiKey, priority, releaseType, null, 0, null, logger);
+    }
+
+    Ticket enqueue(
+            String apiKey,
+            int priority,
+            String releaseType,
+            String coalescingKey,
+            long generation,
+            String owner,
+            PrintStream logger
+    ) throws InterruptedException {
+        /*
+         * Wait until the upload can start or is superseded
+         * An upload interrupted while waiting leaves the queue
+         * @return: the slot of the upload, or the superseded ticket which holds no slot
+         */
+        Ticket ticket = add(apiKey, priority, releaseType, coalescingKey, generation, owner, logger);
+        try {
+            ticket.granted.get();
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                if (!withdraw(ticket) && ticket.started) {
+                    release(ticket);
+                }
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            // The ticket is never completed exceptionally
+            throw new IllegalStateException(e.getCause());
+        }
+        return ticket;
+    }
+
+    private synchronized Ticket add(
+            String apiKey,
+            int priority,
+            String releaseType,
+            String coalescingKey,
+            long generation,
+            String owner,
+            PrintStream logger
+    ) {
+        /*
+         * Queue an upload, its ticket is granted when it starts or is superseded
+         * Its position in the queue is printed when it changes
+         */
+        Ticket ticket = new Ticket(
+                DigestUtils.sha256Hex(apiKey == null ? "" : apiKey),
+                priority,
+                "ENTERPRISE".equals(releaseType),
+                arrivals++,
+                logger
+        );
+        if (coalescingKey != null) {
+            ticket.coalesce(coalescingKey, generation, owner);
+            if (supersedeWaitingUploads(ticket, logger)) {
+                ticket.granted.complete(ticket);
+                return ticket;
+            }
+        }
+        waiting.add(ticket);
+        startWaitingUploads();
+        return ticket;
+    }
+
+    private synchronized boolean withdraw(Ticket ticket) {
+        /*
+         * Remove a waiting upload from the queue, the uploads behind it may start now
+         * @return: false when the upload already started or was superseded
+         */
+        if (ticket.started || ticket.supersededBy != null) {
+            return false;
+        }
+        waiting.remove(ticket);
+        startWaitingUploads();
+        return true;
+    }
+
+    private boolean supersedeWaitingUploads(Ticket ticket, PrintStream logger) {
+        /*
+         * Drop the waiting uploads of older builds with the same coalescing key and API key,
+         * their ticket is granted as superseded
+         * The uploads of the same build (same generation) don't supersede each other
+         * @return: true if the ticket itself is superseded by a newer build already waiting
+         */
+        for (Ticket other : waiting) {
+            if (ticket.coalesces(other) && other.generation > ticket.generation) {
+                ticket.supersededBy = other.owner;
+                return true;
+            }
+        }
+        for (Iterator<Ticket> others = waiting.iterator(); others.hasNext(); ) {
+            Ticket other = others.next();
+            if (ticket.coalesces(other) && other.generation < ticket.generation) {
+                other.supersededBy = ticket.owner;
+                others.remove();
+                logger.println("Superseding the waiting upload of " + other.owner);
+                other.granted.complete(other);
+            }
+        }
+        return false;
+    }
+
+    synchronized void release(Ticket ticket) {
+        running--;
+        runningPerApiKey.merge(ticket.apiKeyDigest, -1, Integer::sum);
+        runningPerApiKey.remove(ticket.apiKeyDigest, 0);
+        startWaitingUploads();
+    }
+
+    synchronized boolean isUnlimited() {
+        // Without any cap the uploads never wait for a slot
+        return maxConcurrentUploads <= 0 && maxConcurrentUploadsPerApiKey <= 0;
+    }
+
+    synchronized int getRunning() {
+        return running;
+    }
+
+    synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    private void startWaitingUploads() {
+        /*
+         * Start the waiting uploads by order of priority, skipping the ones whose API key is at its cap,
+         * then print the new position of the uploads still waiting
+         */
+        List<Ticket> queue = new ArrayList<>(waiting);
+        queue.sort(null);
+        List<Ticket> started = new ArrayList<>();
+        for (Ticket ticket : queue) {
+            if (maxConcurrentUploads > 0 && running >= maxConcurrentUploads) {
+                break;
+            }
+            int runningForApiKey = runningPerApiKey.getOrDefault(ticket.apiKeyDigest, 0);
+            if (maxConcurrentUploadsPerApiKey > 0 && runningForApiKey >= maxConcurrentUploadsPerApiKey) {
+                continue;
+            }
+            waiting.remove(ticket);
+            ticket.started = true;
+            running++;
+            runningPerApiKey.put(ticket.apiKeyDigest, runningForApiKey + 1);
+            if (ticket.reportedPosition > 0) {
+                ticket.logger.println("Upload slot granted");
+            }
+            started.add(ticket);
+        }
+        for (Ticket ticket : waiting) {
+            int position = position(ticket);
+            if (position != ticket.reportedPosition) {
+                ticket.logger.println(
+                        "Waiting for an upload slot: position " + position + " in the queue, " +
+                        running + " upload(s) running"
+                );
+                ticket.reportedPosition = position;
+            }
+        }
+        // Granted last: an upload run by the granting thread may end and start the next ones
+        for (Ticket ticket : started) {
+            ticket.granted.complete(ticket);
+        }
+    }
+
+    private int position(Ticket ticket) {
+        int position = 1;
+        for (Ticket other : waiting) {
+            if (other.compareTo(ticket) < 0) {
+                position++;
+            }
+        }
+        return position;
+    }
+
+    static final class Ticket implements Comparable<Ticket> {
+        // Upload waiting for a slot or running
+
+        private final String apiKeyDigest;
+        private final int priority;
+        private final boolean enterprise;
+        private final long arrival;
+        private final PrintStream logger;
+        // Completed when the upload starts or is superseded, the upload runs when its ticket is granted
+        private final CompletableFuture<Ticket> granted = new CompletableFuture<>();
+        private boolean started = false;
+        // Position in the queue last printed, 0 before the upload waits
+        private int reportedPosition = 0;
+        // Application of the upload when the uploads are coalesced, null otherwise
+        private String coalescingKey = null;
+        // Age of the build, a newer build supersedes the older ones
+        private long generation = 0;
+        // Run which queued the upload
+        private String owner = null;
+        // Run of the newer build which superseded this upload, null while it isn't superseded
+        private String supersededBy = null;
+
+        Ticket(String apiKeyDigest, int priority, boolean enterprise, long arrival, PrintStream logger) {
+            this.apiKeyDigest = apiKeyDigest;
+            this.priority = priority;
+            this.enterprise = enterprise;
+            this.arrival = arrival;
+            this.logger = logger;
+        }
+
+        void coalesce(String coalescingKey, long generation, String owner) {
+            this.coalescingKey = coalescingKey;
+            this.generation = generation;
+            this.owner = owner;
+        }
+
+        boolean coalesces(Ticket other) {
+            return coalescingKey != null && coalescingKey.equals(other.coalescingKey)
+                    && apiKeyDigest.equals(other.apiKeyDigest);
+        }
+
+        @Override
+        public int compareTo(Ticket other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            if (enterprise != other.enterprise) {
+                return enterprise ? -1 : 1;
+            }
+            return Long.compare(arrival, other.arrival);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin;
+
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.SendBuildMessage;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Pipeline step waiting for an upload started by sendBuildToDataTheoremAsync.
+ * <p>
+ * The step prints the log of the upload and returns true when the upload succeeded.
+ * A failed upload marks the build unstable, like the sendBuildToDataTheorem step.
+ * No executor is needed while waiting.
+ * </p>
+ */
+public class WaitForDataTheoremUploadStep extends Step implements Serializable {
+
+    private final String uploadId;
+
+    @DataBoundConstructor
+    public WaitForDataTheoremUploadStep(String uploadId) {
+        this.uploadId = uploadId;
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) {
+        return new Execution(context, uploadId);
+    }
+
+    private static final class Execution extends StepExecution {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String uploadId;
+
+        Execution(StepContext context, String uploadId) {
+            super(context);
+            this.uploadId = uploadId;
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            TaskListener listener = getContext().get(TaskListener.class);
+            if (uploadId == null || uploadId.isEmpty()) {
+                // sendBuildToDataTheoremAsync returns null when nothing was uploaded
+                listener.getLogger().println("No Data Theorem upload to wait for");
+                getContext().onSuccess(false);
+                return true;
+            }
+            waitForResult();
+            return false;
+        }
+
+        private void waitForResult() throws IOException, InterruptedException {
+            Run<?, ?> run = getContext().get(Run.class);
+            CompletableFuture<SendBuildMessage> result = AsyncUploadResults.find(run, uploadId);
+            if (result == null) {
+                getContext().onFailure(new AbortException(
+                        "Unknown Data Theorem upload " + uploadId + ", it may have been stopped by a restart of Jenkins"
+                ));
+                return;
+            }
+            result.thenAccept(message -> report(run, message));
+        }
+
+        private void report(Run<?, ?> run, SendBuildMessage message) {
+            try {
+                TaskListener listener = getContext().get(TaskListener.class);
+                File logFile = AsyncUploadResults.logFile(run, uploadId);
+                if (logFile.isFile()) {
+                    listener.getLogger().write(Files.readAllBytes(logFile.toPath()));
+                }
+                if (message.superseded) {
+                    run.setResult(Result.NOT_BUILT);
+                }
+                else if (!message.success) {
+                    run.setResult(Result.UNSTABLE);
+                }
+                getContext().onSuccess(message.success);
+            } catch (IOException | InterruptedException e) {
+                getContext().onFailure(e);
+            }
+        }
+
+        @Override
+        public void stop(Throwable cause) {
+            // The upload goes on, only the wait is stopped
+            getContext().onFailure(cause);
+        }
+
+        @Override
+        public void onResume() {
+            try {
+                waitForResult();
+            } catch (IOException | InterruptedException e) {
+                getContext().onFailure(e);
+            }
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return new HashSet<>(Arrays.asList(Run.class, TaskListener.class));
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "waitForDataTheoremUpload";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Wait for an upload of build to Data Theorem";
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin;
+
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.FileMetadata;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.MatchSelection;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.ResolveUploadPlan;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.UploadPlan;
+import hudson.FilePath;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Files of the job workspace needed by the upload.
+ * <p>
+ * All the patterns are resolved together the first time a file is requested, with a single call to the agent.
+ * When every file is found elsewhere (ex: in the artifact directory) the agent is not called at all.
+ * The locations found by the previous build are checked before searching the workspace.
+ * </p>
+ */
+public class WorkspaceFiles {
+
+    private final FilePath workspace;
+    private final String[] patterns;
+    private boolean computeDigest = false;
+    private boolean useWorkspaceIndex = false;
+    private int discoveryParallelism = 0;
+    private MatchSelection matchSelection = MatchSelection.FIRST;
+    private List<String> discoveryExcludes = new ArrayList<>();
+    private Map<String, String> locationHints = new LinkedHashMap<>();
+    private List<String> digestPatterns = new ArrayList<>();
+    private UploadPlan plan = null;
+
+    public WorkspaceFiles(FilePath workspace, String... patterns) {
+        this.workspace = workspace;
+        this.patterns = patterns;
+    }
+
+    public FilePath getWorkspace() {
+        return workspace;
+    }
+
+    public void setComputeDigest(boolean computeDigest) {
+        this.computeDigest = computeDigest;
+    }
+
+    public void setDigestPatterns(List<String> digestPatterns) {
+        // Only the files of these patterns are hashed, all of them when empty
+        this.digestPatterns = digestPatterns;
+    }
+
+    public void setUseWorkspaceIndex(boolean useWorkspaceIndex) {
+        this.useWorkspaceIndex = useWorkspaceIndex;
+    }
+
+    public void setDiscoveryParallelism(int discoveryParallelism) {
+        this.discoveryParallelism = discoveryParallelism;
+    }
+
+    public MatchSelection getMatchSelection() {
+        return matchSelection;
+    }
+
+    public void setMatchSelection(MatchSelection matchSelection) {
+        this.matchSelection = matchSelection;
+    }
+
+    public void setDiscoveryExcludes(List<String> discoveryExcludes) {
+        this.discoveryExcludes = discoveryExcludes;
+    }
+
+    public void setLocationHints(Map<String, String> locationHints) {
+        this.locationHints = locationHints;
+    }
+
+    public synchronized Map<String, String> getFoundLocations() {
+        /*
+         * @return: the relative path of the files found in the workspace, indexed by pattern
+         * Empty when the workspace wasn't searched
+         */
+        Map<String, String> locations = new LinkedHashMap<>();
+        for (String pattern : patterns) {
+            if (plan != null && plan.get(pattern) != null) {
+                locations.put(pattern, plan.get(pattern).getRelativePath());
+            }
+        }
+        return locations;
+    }
+
+    public synchronized FileMetadata find(String pattern) throws IOException, InterruptedException {
+        /*
+         * Find the workspace file respecting the pattern, chosen according to the match selection
+         * @return: the file metadata if exist, null otherwise
+         */
+        return plan().get(pattern);
+    }
+
+    public synchronized List<String> findAmbiguousMatches(String pattern) throws IOException, InterruptedException {
+        /*
+         * @return: the workspace files respecting the pattern when the FAIL_ON_AMBIGUOUS selection found several
+         */
+        return plan().getAmbiguousMatches(pattern);
+    }
+
+    private UploadPlan plan() throws IOException, InterruptedException {
+        if (plan == null) {
+            ResolveUploadPlan resolveUploadPlan = new ResolveUploadPlan(computeDigest, patterns);
+            resolveUploadPlan.setUseWorkspaceIndex(useWorkspaceIndex);
+            resolveUploadPlan.setDiscoveryParallelism(discoveryParallelism);
+            resolveUploadPlan.setMatchSelection(matchSelection);
+            resolveUploadPlan.setDiscoveryExcludes(discoveryExcludes);
+            resolveUploadPlan.setLocationHints(locationHints);
+            resolveUploadPlan.setDigestPatterns(digestPatterns);
+            plan = workspace.act(resolveUploadPlan);
+        }
+        return plan;
+    }
+}
@@ -0,0 +1,47 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Workspace location of the files found by an upload, stored with the build.
+ * <p>
+ * The build of a job almost always lands at the same relative path: the next upload first checks the locations
+ * of the previous one on the agent, and only searches the workspace when they don't respect the patterns anymore.
+ * </p>
+ */
+public class WorkspaceLocationHints extends InvisibleAction {
+
+    // Number of previous builds checked for hints, a build which stopped before the search has none
+    private static final int MAX_PREVIOUS_BUILDS = 5;
+
+    // Relative path of the file found in the workspace, indexed by the pattern which found it
+    private final Map<String, String> locations;
+
+    public WorkspaceLocationHints(Map<String, String> locations) {
+        this.locations = new LinkedHashMap<>(locations);
+    }
+
+    public Map<String, String> getLocations() {
+        return Collections.unmodifiableMap(locations);
+    }
+
+    static Map<String, String> fromPreviousBuilds(Run<?, ?> run) {
+        /*
+         * @return: the locations found by the last previous build which searched the workspace, empty if none
+         */
+        Run<?, ?> previous = run.getPreviousBuild();
+        for (int i = 0; previous != null && i < MAX_PREVIOUS_BUILDS; i++) {
+            WorkspaceLocationHints hints = previous.getAction(WorkspaceLocationHints.class);
+            if (hints != null) {
+                return hints.getLocations();
+            }
+            previous = previous.getPreviousBuild();
+        }
+        return Collections.emptyMap();
+    }
+}
@@ -0,0 +1,360 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild;
+
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.ContentSource;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.DeferredContentStream;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.ThrottledEntity;
+import hudson.Extension;
+import hudson.init.Terminator;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleResponseConsumer;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+import org.apache.hc.core5.http.nio.support.AsyncRequestBuilder;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Requests sent by the shared HttpClient 5 asynchronous clients, one per proxy configuration.
+ * <p>
+ * The requests are written by the few I/O threads of the clients: the calling thread only waits for the response,
+ * or doesn't wait at all with send. HTTP/2 is negotiated with the servers supporting it.
+ * The request body is recorded once without reading the builds, then the I/O threads read the files of the
+ * controller and the blocks received from the agents as the sockets accept them.
+ * The bodies which can only be read by blocking (throttled uploads, artifact managers) are sent by the blocking
+ * transport.
+ * </p>
+ */
+@Extension
+public class AsyncUploadTransport implements UploadTransport {
+
+    private static final Logger LOGGER = Logger.getLogger(AsyncUploadTransport.class.getName());
+
+    // Number of I/O threads of each client
+    static /* not final */ int IO_THREADS = Integer.getInteger(AsyncUploadTransport.class.getName() + ".ioThreads", 2);
+    // Size of the buffer of each request between its content and the socket
+    static /* not final */ int BUFFER_SIZE = Integer.getInteger(
+            AsyncUploadTransport.class.getName() + ".bufferSize", 256 * 1024
+    );
+    // Delay after which a request waiting for its content checks it again (ex: the agent task ended)
+    private static final long RETRY_DELAY = 100L;
+
+    // Key of the clients without proxy
+    private static final Object NO_PROXY = new Object();
+    private static final Map<Object, CloseableHttpAsyncClient> CLIENTS = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Data Theorem upload transport timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final UploadTransport fallback = new BlockingUploadTransport();
+
+    @Override
+    public String getName() {
+        return "ASYNC";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Asynchronous (shared I/O threads, HTTP/2)";
+    }
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request, Proxy proxy) throws IOException, InterruptedException {
+        CompletableFuture<HttpResponse> response = send(request, proxy);
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            // Stop the request and the transfers reading its content
+            response.cancel(true);
+            throw e;
+        } catch (CancellationException e) {
+            throw new IOException("The request was cancelled", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> send(HttpUriRequest request, Proxy proxy) {
+        HttpEntity entity = request instanceof HttpEntityEnclosingRequest
+                ? ((HttpEntityEnclosingRequest) request).getEntity()
+                : null;
+        DeferredContentStream body = null;
+        if (entity != null) {
+            if (entity instanceof ThrottledEntity) {
+                // The bandwidth limiter waits for its tokens
+                return fallback.send(request, proxy);
+            }
+            body = new DeferredContentStream();
+            try {
+                entity.writeTo(body);
+            } catch (DeferredContentStream.UnsupportedContentException e) {
+                LOGGER.log(Level.FINE, "Request sent by the blocking transport: " + e.getMessage());
+                return fallback.send(request, proxy);
+            } catch (IOException e) {
+                CompletableFuture<HttpResponse> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        }
+
+        AsyncRequestBuilder builder = AsyncRequestBuilder.create(request.getMethod()).setUri(request.getURI());
+        for (Header header : request.getAllHeaders()) {
+            builder.addHeader(header.getName(), header.getValue());
+        }
+        if (body != null) {
+            builder.setEntity(new SourceEntityProducer(body, entity));
+        }
+
+        CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+        Future<SimpleHttpResponse> exchange = client(proxy).execute(
+                builder.build(),
+                SimpleResponseConsumer.create(),
+                new FutureCallback<SimpleHttpResponse>() {
+                    @Override
+                    public void completed(SimpleHttpResponse result) {
+                        response.complete(convert(result));
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        response.completeExceptionally(e);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        response.cancel(false);
+                    }
+                }
+        );
+        response.whenComplete((result, e) -> {
+            if (response.isCancelled()) {
+                exchange.cancel(true);
+            }
+        });
+        return response;
+    }
+
+    private static HttpResponse convert(SimpleHttpResponse result) {
+        /*
+         * @return: the response as an HttpClient 4 response, with its body in memory
+         */
+        BasicHttpResponse response = new BasicHttpResponse(
+                new BasicStatusLine(HttpVersion.HTTP_1_1, result.getCode(), result.getReasonPhrase())
+        );
+        for (org.apache.hc.core5.http.Header header : result.getHeaders()) {
+            response.addHeader(header.getName(), header.getValue());
+        }
+        byte[] body = result.getBodyBytes();
+        if (body != null) {
+            ByteArrayEntity entity = new ByteArrayEntity(body);
+            if (result.getContentType() != null) {
+                entity.setContentType(result.getContentType().toString());
+            }
+            response.setEntity(entity);
+        }
+        return response;
+    }
+
+    static CloseableHttpAsyncClient client(Proxy proxy) {
+        /*
+         * @return: the shared client using the proxy configuration, created and started on the first use
+         */
+        return CLIENTS.computeIfAbsent(proxy == null ? NO_PROXY : proxy.getClientKey(), key -> create(proxy));
+    }
+
+    private static CloseableHttpAsyncClient create(Proxy proxy) {
+        PoolingAsyncClientConnectionManagerBuilder connections = PoolingAsyncClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(UploadHttpClients.MAX_CONNECTIONS)
+                .setMaxConnPerRoute(UploadHttpClients.MAX_CONNECTIONS);
+        HttpAsyncClientBuilder clientBuilder = HttpAsyncClients.custom();
+        if (proxy != null) proxy.add_to_async_client(clientBuilder, connections);
+
+        CloseableHttpAsyncClient client = clientBuilder
+                .setConnectionManager(connections.build())
+                .setIOReactorConfig(IOReactorConfig.custom().setIoThreadCount(Math.max(1, IO_THREADS)).build())
+                .setVersionPolicy(HttpVersionPolicy.NEGOTIATE)
+                // build the client without automatic retry mechanism
+                .disableAutomaticRetries()
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofSeconds(UploadHttpClients.IDLE_TIMEOUT))
+                .build();
+        client.start();
+        return client;
+    }
+
+    @Terminator
+    public static void closeAll() {
+        /*
+         * Close the clients and their connections when Jenkins stops
+         */
+        for (Object key : CLIENTS.keySet()) {
+            CloseableHttpAsyncClient client = CLIENTS.remove(key);
+            if (client != null) {
+                client.close(CloseMode.GRACEFUL);
+            }
+        }
+    }
+
+    private static final class SourceEntityProducer implements AsyncEntityProducer {
+        // Request body written by the I/O threads: the content is read when the socket can take more bytes
+
+        private final DeferredContentStream body;
+        private final long contentLength;
+        private final String contentType;
+        private final String contentEncoding;
+        private final ByteBuffer buffer = ByteBuffer.allocate(Math.max(1024, BUFFER_SIZE));
+        private ContentSource source = null;
+        private boolean ended = false;
+        private boolean streamEnded = false;
+        // The content has nothing to read, the request waits for its callback
+        private volatile boolean waiting = false;
+
+        SourceEntityProducer(DeferredContentStream body, HttpEntity entity) {
+            this.body = body;
+            this.contentLength = entity.getContentLength();
+            this.contentType = entity.getContentType() != null ? entity.getContentType().getValue() : null;
+            this.contentEncoding = entity.getContentEncoding() != null ? entity.getContentEncoding().getValue() : null;
+        }
+
+        @Override
+        public synchronized void produce(DataStreamChannel channel) throws IOException {
+            if (streamEnded) {
+                return;
+            }
+            if (source == null) {
+                source = body.open();
+            }
+            waiting = false;
+            while (true) {
+                if (buffer.position() > 0) {
+                    buffer.flip();
+                    channel.write(buffer);
+                    buffer.compact();
+                    if (buffer.position() > 0) {
+                        // The socket is full, the I/O thread calls back when it can take more bytes
+                        return;
+                    }
+                }
+                if (ended) {
+                    streamEnded = true;
+                    channel.endStream();
+                    return;
+                }
+                int read = source.read(buffer);
+                if (read < 0) {
+                    ended = true;
+                }
+                else if (read == 0) {
+                    waiting = true;
+                    source.onAvailable(() -> wakeUp(channel));
+                    // The agent task may end without sending a block
+                    TIMER.schedule(() -> wakeUp(channel), RETRY_DELAY, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+        }
+
+        private void wakeUp(DataStreamChannel channel) {
+            if (waiting) {
+                waiting = false;
+                channel.requestOutput();
+            }
+        }
+
+        @Override
+        public int available() {
+            // Nothing to write while waiting for the content
+            return waiting ? 0 : Math.max(1, buffer.position());
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            // The content is read again from the start (ex: after a proxy authentication)
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
+
+        @Override
+        public boolean isChunked() {
+            return contentLength < 0;
+        }
+
+        @Override
+        public Set<String> getTrailerNames() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public void failed(Exception cause) {
+            LOGGER.log(Level.FINE, "Data Theorem request failed", cause);
+        }
+
+        @Override
+        public synchronized void releaseResources() {
+            // Stop the transfers from the agents of a failed or cancelled request
+            if (source != null) {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Unable to close the content of the request", e);
+                }
+                source = null;
+            }
+            buffer.clear();
+            ended = false;
+            streamEnded = false;
+            waiting = false;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild;
+
+import hudson.Extension;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Requests sent by the shared HttpClient 4 clients: a thread writes the request to the socket.
+ * <p>
+ * execute sends the request on the calling thread. send hands it to a thread of the transport and returns at once,
+ * so the uploads composing the responses don't block the thread which completed the previous step.
+ * </p>
+ */
+@Extension
+public class BlockingUploadTransport implements UploadTransport {
+
+    // One thread per request in flight, as the calling threads of execute: the idle threads end after a minute
+    private static final ExecutorService REQUESTS = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "Data Theorem blocking request")
+    );
+
+    @Override
+    public String getName() {
+        return "BLOCKING";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Blocking (one thread per upload)";
+    }
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request, Proxy proxy) throws IOException {
+        // The client is shared by the uploads using the same proxy and must not be closed
+        return UploadHttpClients.get(proxy).execute(request);
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> send(HttpUriRequest request, Proxy proxy) {
+        return onRequestThread(() -> execute(request, proxy), request::abort);
+    }
+
+    static <T> CompletableFuture<T> onRequestThread(Callable<T> call, Runnable abort) {
+        /*
+         * Run a blocking call on a thread of the transport
+         * @return: the result of the call, a cancellation aborts the call and interrupts its thread
+         */
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> task = REQUESTS.submit(() -> {
+            try {
+                result.complete(call.call());
+            } catch (Exception | Error e) {
+                result.completeExceptionally(e);
+            }
+        });
+        result.whenComplete((value, e) -> {
+            if (result.isCancelled()) {
+                abort.run();
+                task.cancel(true);
+            }
+        });
+        return result;
+    }
+}
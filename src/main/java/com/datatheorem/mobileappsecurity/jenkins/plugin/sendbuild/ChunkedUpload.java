@@ -0,0 +1,321 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.io.PushbackInputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Send the upload request body in fixed-size chunks, resuming from the last acknowledged byte on failure.
+ * <p>
+ * Experimental: the Upload API doesn't document a chunked upload. The upload link is used as a resumable upload
+ * session following the common Content-Range convention (as used by Google Cloud Storage): each chunk is a PUT
+ * request with a "Content-Range: bytes first-last/total" header. The server acknowledges an intermediate chunk with a
+ * 308 (Resume Incomplete) status and a "Range: bytes=0-last" header giving the bytes it persisted, and answers
+ * the last chunk with the final upload response.
+ * After a network error or a server error, the upload status is queried with an empty PUT request and a
+ * "Content-Range: bytes *&#47;total" header, and the upload resumes from the acknowledged offset instead of byte zero.
+ * A new ChunkedUpload of the same upload link (a retry of SendBuildAction) resumes the same way: the multipart body
+ * is written identically, its bytes already persisted by the server are read and skipped.
+ * The body is streamed: only the chunk being sent is kept in memory. The chunks are read from a pipe, so the
+ * asynchronous upload still holds a thread while it sends the chunks.
+ * </p>
+ */
+class ChunkedUpload {
+
+    static final int RESUME_INCOMPLETE = 308;
+    private static final Pattern RANGE = Pattern.compile("bytes=0-(\\d+)");
+    // Size of the pipe between the multipart body writer and the chunks
+    private static final int PIPE_SIZE = 1024 * 1024;
+
+    // Consecutive failures of a chunk after which the upload fails
+    static /* not final */ int MAX_CHUNK_RETRIES = Integer.getInteger(
+            ChunkedUpload.class.getName() + ".maxChunkRetries", 5
+    );
+    // Delay before resuming after a failure, multiplied by the number of consecutive failures
+    static /* not final */ long RETRY_DELAY = Long.getLong(ChunkedUpload.class.getName() + ".retryDelay", 2000L);
+
+    private final UploadTransport transport;
+    private final Proxy proxy;
+    private final String uploadUrl;
+    private final HttpEntity entity;
+    private final int chunkSize;
+    private final String userAgent;
+    private final PrintStream logger;
+    // The upload link already received bytes from a previous attempt: its status is queried before sending
+    private boolean resume = false;
+    // Bytes of the body acknowledged by the server
+    private volatile long acknowledgedBytes = 0;
+
+    ChunkedUpload(
+            UploadTransport transport,
+            Proxy proxy,
+            String uploadUrl,
+            HttpEntity entity,
+            int chunkSize,
+            String userAgent,
+            PrintStream logger
+    ) {
+        this.transport = transport;
+        this.proxy = proxy;
+        this.uploadUrl = uploadUrl;
+        this.entity = entity;
+        this.chunkSize = chunkSize;
+        this.userAgent = userAgent;
+        this.logger = logger;
+    }
+
+    void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    String getUploadUrl() {
+        return uploadUrl;
+    }
+
+    long getAcknowledgedBytes() {
+        return acknowledgedBytes;
+    }
+
+    CompletableFuture<HttpResponse> uploadAsync() {
+        /*
+         * Send the body chunk by chunk on a thread of the blocking transport: the chunks are read from a pipe
+         * @return: the response of upload, a cancellation interrupts the upload
+         */
+        return BlockingUploadTransport.onRequestThread(this::upload, () -> { });
+    }
+
+    HttpResponse upload() throws IOException, InterruptedException {
+        /*
+         * Send the body chunk by chunk
+         * @return: the response to the last chunk, or the first response which is neither
+         *          an acknowledgement nor a server error
+         */
+        long contentLength = entity.getContentLength();
+        String total = contentLength >= 0 ? Long.toString(contentLength) : "*";
+
+        long resumeOffset = 0;
+        if (resume) {
+            HttpResponse status = queryStatus(total);
+            if (status.getStatusLine().getStatusCode() != RESUME_INCOMPLETE) {
+                // The upload is complete, or the upload link is not valid anymore
+                return status;
+            }
+            EntityUtils.consume(status.getEntity());
+            resumeOffset = persistedBytes(status);
+            acknowledgedBytes = resumeOffset;
+            logger.println("Resuming the upload at byte " + resumeOffset);
+        }
+
+        PipedInputStream pipe = new PipedInputStream(PIPE_SIZE);
+        AtomicReference<IOException> writeError = new AtomicReference<>();
+        Thread writer = startWriter(new PipedOutputStream(pipe), writeError);
+        try (PushbackInputStream body = new PushbackInputStream(pipe, 1)) {
+            byte[] chunk = new byte[chunkSize];
+            skip(body, resumeOffset, chunk);
+            long chunkStart = resumeOffset;
+            while (true) {
+                int length = readChunk(body, chunk);
+                boolean lastChunk = isEnd(body);
+                if (writeError.get() != null) {
+                    throw writeError.get();
+                }
+                if (length <= 0) {
+                    throw new IOException("The upload body is empty");
+                }
+                if (lastChunk && contentLength < 0) {
+                    // The size is known once the last chunk is read
+                    total = Long.toString(chunkStart + length);
+                }
+
+                HttpResponse response = sendChunk(chunk, chunkStart, length, total);
+                if (response.getStatusLine().getStatusCode() != RESUME_INCOMPLETE) {
+                    return response;
+                }
+                EntityUtils.consume(response.getEntity());
+                if (lastChunk) {
+                    throw new IOException("The upload server didn't complete the upload after the last chunk");
+                }
+                chunkStart += length;
+                acknowledgedBytes = chunkStart;
+            }
+        } finally {
+            // Stop the writer if the upload stopped before the end of the body
+            writer.interrupt();
+        }
+    }
+
+    private HttpResponse sendChunk(byte[] chunk, long chunkStart, int length, String total)
+            throws IOException, InterruptedException {
+        /*
+         * Send a chunk until the server acknowledges all of its bytes
+         * @return: the acknowledgement of the chunk, or the final response of the server
+         */
+        long chunkEnd = chunkStart + length;
+        long acknowledged = chunkStart;
+        int failures = 0;
+        // After a failure the status of the upload is queried before sending the chunk again
+        boolean queryStatus = false;
+        while (true) {
+            HttpResponse response = null;
+            try {
+                response = queryStatus ? queryStatus(total) : put(
+                        chunk,
+                        (int) (acknowledged - chunkStart),
+                        (int) (chunkEnd - acknowledged),
+                        "bytes " + acknowledged + "-" + (chunkEnd - 1) + "/" + total
+                );
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                logger.println("Chunk upload error at byte " + acknowledged + ": " + e.getMessage());
+            }
+
+            int statusCode = response == null ? 0 : response.getStatusLine().getStatusCode();
+            if (statusCode == RESUME_INCOMPLETE) {
+                long persisted = persistedBytes(response);
+                if (persisted >= chunkEnd) {
+                    return response;
+                }
+                EntityUtils.consume(response.getEntity());
+                if (persisted < chunkStart) {
+                    throw new IOException("The upload server lost the bytes after byte " + persisted);
+                }
+                if (persisted > acknowledged) {
+                    failures = 0;
+                } else if (!queryStatus && ++failures > MAX_CHUNK_RETRIES) {
+                    throw new IOException("The upload server doesn't acknowledge the bytes after byte " + persisted);
+                }
+                if (queryStatus) {
+                    logger.println("Resuming the upload at byte " + persisted);
+                }
+                acknowledged = persisted;
+                acknowledgedBytes = persisted;
+                queryStatus = false;
+                continue;
+            }
+            if (response != null && statusCode < 500) {
+                // The upload is complete, or the upload link is not valid anymore
+                return response;
+            }
+
+            // Network or server error
+            if (response != null) {
+                EntityUtils.consume(response.getEntity());
+                logger.println("Chunk upload error at byte " + acknowledged + ": " + response.getStatusLine());
+            }
+            if (++failures > MAX_CHUNK_RETRIES) {
+                throw new IOException("Chunk upload failed " + failures + " times at byte " + acknowledged);
+            }
+            Thread.sleep(RETRY_DELAY * failures);
+            queryStatus = true;
+        }
+    }
+
+    private HttpResponse put(byte[] chunk, int offset, int length, String contentRange)
+            throws IOException, InterruptedException {
+        HttpPut request = new HttpPut(uploadUrl);
+        request.addHeader("User-Agent", userAgent);
+        request.addHeader("Content-Range", contentRange);
+        ByteArrayEntity body = new ByteArrayEntity(chunk, offset, length);
+        if (entity.getContentType() != null) {
+            body.setContentType(entity.getContentType());
+        }
+        request.setEntity(body);
+        return transport.execute(request, proxy);
+    }
+
+    private HttpResponse queryStatus(String total) throws IOException, InterruptedException {
+        HttpPut request = new HttpPut(uploadUrl);
+        request.addHeader("User-Agent", userAgent);
+        request.addHeader("Content-Range", "bytes */" + total);
+        return transport.execute(request, proxy);
+    }
+
+    private static long persistedBytes(HttpResponse response) {
+        /*
+         * @return: the number of bytes persisted by the server, 0 when the response has no Range header
+         */
+        Header range = response.getFirstHeader("Range");
+        if (range == null) {
+            return 0;
+        }
+        Matcher matcher = RANGE.matcher(range.getValue().trim());
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) + 1 : 0;
+    }
+
+    private static void skip(InputStream body, long bytes, byte[] buffer) throws IOException {
+        /*
+         * Read and drop the bytes of the body already persisted by the server
+         */
+        long skipped = 0;
+        while (skipped < bytes) {
+            int read = body.read(buffer, 0, (int) Math.min(buffer.length, bytes - skipped));
+            if (read < 0) {
+                throw new IOException("The upload body is shorter than the " + bytes + " bytes persisted by the server");
+            }
+            skipped += read;
+        }
+    }
+
+    private static int readChunk(InputStream body, byte[] chunk) throws IOException {
+        /*
+         * @return: the number of bytes read, less than the chunk size only at the end of the body, -1 if none
+         */
+        int length = 0;
+        while (length < chunk.length) {
+            int read = body.read(chunk, length, chunk.length - length);
+            if (read < 0) {
+                return length == 0 ? -1 : length;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    private static boolean isEnd(PushbackInputStream body) throws IOException {
+        int next = body.read();
+        if (next < 0) {
+            return true;
+        }
+        body.unread(next);
+        return false;
+    }
+
+    private Thread startWriter(PipedOutputStream pipe, AtomicReference<IOException> writeError) {
+        /*
+         * Write the multipart body to the pipe read by the chunks
+         */
+        Thread writer = new Thread(() -> {
+            try {
+                entity.writeTo(pipe);
+            } catch (IOException e) {
+                writeError.set(e);
+            } finally {
+                // Closed after recording the error so the end of the body is never mistaken for a success
+                try {
+                    pipe.close();
+                } catch (IOException e) {
+                    writeError.compareAndSet(null, e);
+                }
+            }
+        }, "Data Theorem chunked upload body writer");
+        writer.setDaemon(true);
+        writer.start();
+        return writer;
+    }
+}
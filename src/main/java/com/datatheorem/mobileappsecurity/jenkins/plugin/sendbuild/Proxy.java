@@ -16,6 +16,7 @@ import org.apache.http.ssl.SSLContexts;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
 
 public class Proxy  implements java.io.Serializable{
     private TaskListener listener;
@@ -40,6 +41,50 @@ public class Proxy  implements java.io.Serializable{
         }
     }
 
+    Object getClientKey() {
+        /*
+         * @return: the configuration of the proxy without its listener, the key of the shared http clients
+         *   The clients outlive the job: the key must not keep its listener and its log stream
+         */
+        return new ClientKey(hostname, port, username, password, isUnsecureAllowed);
+    }
+
+    private static final class ClientKey {
+        // Two proxies with the same configuration share their http client
+
+        private final String hostname;
+        private final int port;
+        private final String username;
+        private final String password;
+        private final boolean isUnsecureAllowed;
+
+        ClientKey(String hostname, int port, String username, String password, boolean isUnsecureAllowed) {
+            this.hostname = hostname;
+            this.port = port;
+            this.username = username;
+            this.password = password;
+            this.isUnsecureAllowed = isUnsecureAllowed;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof ClientKey)) {
+                return false;
+            }
+            ClientKey key = (ClientKey) other;
+            return port == key.port
+                    && isUnsecureAllowed == key.isUnsecureAllowed
+                    && Objects.equals(hostname, key.hostname)
+                    && Objects.equals(username, key.username)
+                    && Objects.equals(password, key.password);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(hostname, port, username, password, isUnsecureAllowed);
+        }
+    }
+
     public void add_to_http_client(HttpClientBuilder clientBuilder) {
         clientBuilder.useSystemProperties();
         if (isUnsecureAllowed)
@@ -69,4 +114,38 @@ public class Proxy  implements java.io.Serializable{
             clientBuilder.setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy());
         }
     }
+
+    public void add_to_async_client(
+            org.apache.hc.client5.http.impl.async.HttpAsyncClientBuilder clientBuilder,
+            org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder connectionsBuilder
+    ) {
+        // Same configuration for the HttpClient 5 asynchronous client, whose classes share the names of HttpClient 4
+        clientBuilder.useSystemProperties();
+        if (isUnsecureAllowed)
+            try {
+                listener.getLogger().println("Insecure connection option is check: bypassing SSL Validation");
+                connectionsBuilder.setTlsStrategy(
+                        org.apache.hc.client5.http.ssl.ClientTlsStrategyBuilder.create()
+                                .setSslContext(SSLContexts.custom().loadTrustMaterial(null, new TrustSelfSignedStrategy()).build())
+                                .setHostnameVerifier(org.apache.hc.client5.http.ssl.NoopHostnameVerifier.INSTANCE)
+                                .build()
+                );
+            } catch (NoSuchAlgorithmException | KeyManagementException | KeyStoreException e) {
+                listener.getLogger().println(e.getMessage());
+            }
+
+        clientBuilder.setProxy(new org.apache.hc.core5.http.HttpHost(hostname, port));
+
+        if (username != null && !username.isEmpty()) {
+            listener.getLogger().println("Proxy is set using username/password authentification");
+
+            // Add the User/Password proxy authentication
+            org.apache.hc.client5.http.auth.NTCredentials ntCreds =
+                    new org.apache.hc.client5.http.auth.NTCredentials(username, password.toCharArray(), "", "");
+            org.apache.hc.client5.http.impl.auth.BasicCredentialsProvider credsProvider =
+                    new org.apache.hc.client5.http.impl.auth.BasicCredentialsProvider();
+            credsProvider.setCredentials(new org.apache.hc.client5.http.auth.AuthScope(hostname, port), ntCreds);
+            clientBuilder.setDefaultCredentialsProvider(credsProvider);
+        }
+    }
 }
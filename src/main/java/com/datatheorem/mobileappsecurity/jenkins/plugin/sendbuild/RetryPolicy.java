@@ -0,0 +1,106 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decide how SendBuildAction recovers from a failed upload_init call or build upload.
+ * <p>
+ * The failures are classified from the status code of the failed call:
+ * a configuration error or a rejected API key or upload is never retried, a network error or a server error is retried
+ * with the same upload link, and an upload link rejected by the upload endpoint (ex: expired) is replaced
+ * by a new upload_init call.
+ * The attempts are separated by an exponential backoff with jitter, so a short outage doesn't consume
+ * all the attempts at once and the uploads of several jobs don't retry at the same time.
+ * </p>
+ */
+public class RetryPolicy implements java.io.Serializable {
+
+    public enum Decision {
+        // Don't retry, the next attempt would fail the same way
+        ABORT,
+        // Send the build again with the same upload link
+        RETRY_UPLOAD,
+        // Get a new upload link then send the build
+        REINIT
+    }
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_INITIAL_DELAY = 2000L;
+    public static final long DEFAULT_MAX_DELAY = 60000L;
+
+    private final int maxAttempts;
+    private final long initialDelay;
+    private final long maxDelay;
+
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    public RetryPolicy(int maxAttempts, long initialDelay, long maxDelay) {
+        /*
+         * @param :
+         *   maxAttempts : number of attempts of the whole upload, the first one included
+         *   initialDelay : delay in milliseconds before the second attempt, doubled at each attempt
+         *   maxDelay : maximum delay in milliseconds between two attempts
+         */
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialDelay = Math.max(0L, initialDelay);
+        this.maxDelay = Math.max(this.initialDelay, maxDelay);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public Decision classifyInitFailure(SendBuildMessage failure) {
+        /*
+         * Classify a failed upload_init call
+         */
+        int statusCode = failure.statusCode;
+        if (statusCode < 0 || statusCode == 401 || statusCode == 403) {
+            // Missing or rejected API key
+            return Decision.ABORT;
+        }
+        if (isTransient(statusCode) || statusCode == 200) {
+            // Network error, server error, or a truncated payload
+            return Decision.REINIT;
+        }
+        return Decision.ABORT;
+    }
+
+    public Decision classifyUploadFailure(SendBuildMessage failure) {
+        /*
+         * Classify a failed build upload
+         */
+        int statusCode = failure.statusCode;
+        if (statusCode == 401 || statusCode == 403) {
+            // Rejected credentials, a new upload link would be rejected the same way
+            return Decision.ABORT;
+        }
+        if (isTransient(statusCode)) {
+            return Decision.RETRY_UPLOAD;
+        }
+        if (statusCode == 400 || statusCode == 404 || statusCode == 410) {
+            // The upload link has expired or is not valid anymore
+            return Decision.REINIT;
+        }
+        return Decision.ABORT;
+    }
+
+    private static boolean isTransient(int statusCode) {
+        return statusCode == 0 || statusCode == 408 || statusCode == 429 || statusCode >= 500;
+    }
+
+    public long delay(int attempt) {
+        /*
+         * @param attempt: number of the failed attempt, starting at 1
+         * @return: the delay in milliseconds before the next attempt, between half and all of the exponential delay
+         */
+        long delay = initialDelay;
+        for (int i = 1; i < attempt && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelay);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+}
@@ -1,18 +1,26 @@
 package com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild;
 
 
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.BandwidthLimiter;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.FileMetadata;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.LocalFileBody;
 import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.RemoteAgentStreamBody;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.RemoteAgentStreamBody.Compression;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.ThrottledEntity;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.VirtualFileBody;
 import hudson.FilePath;
 import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import jenkins.MasterToSlaveFileCallable;
+import jenkins.util.VirtualFile;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.NTCredentials;
 import org.apache.http.client.CredentialsProvider;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
@@ -21,7 +29,6 @@ import org.apache.http.entity.ContentType;
 import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.ProxyAuthenticationStrategy;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.ssl.SSLContexts;
@@ -34,6 +41,14 @@ import java.net.UnknownHostException;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Upload a build to Data Theorem Upload Api.
@@ -41,12 +56,22 @@ import java.security.NoSuchAlgorithmException;
  * The action uses the secret Upload API Key and the path to the build which has to be sent to Data Theorem.
  * The perform action first call data theorem upload_init endpoint with the apiKey to get the upload link.
  * Then if the API Key is correct the action send the build to Data Theorem using the upload link.
+ * performAsync composes the calls from the responses of the transport, perform waits for its result.
  * return : SendBuildMessage with success value and the body response
  * </p>
  */
 
 public class SendBuildAction extends MasterToSlaveFileCallable<SendBuildMessage> {
 
+    // Content type of the mapping file compressed in the request
+    private static final ContentType GZIP_CONTENT_TYPE = ContentType.create("application/gzip");
+    // upload_init endpoint of the Upload API, another endpoint can be configured for a test service
+    public static final String DEFAULT_UPLOAD_INIT_URL = "https://api.securetheorem.com/uploadapi/v1/upload_init";
+    // Delays the retries of every upload without holding their threads
+    private static final ScheduledExecutorService RETRY_TIMER = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "Data Theorem upload retry timer")
+    );
+
     private final String apiKey;
     private final TaskListener listener; // Jenkins logger
     private final FilePath workspace;
@@ -60,10 +85,32 @@ public class SendBuildAction extends MasterToSlaveFileCallable<SendBuildMessage>
     String buildPath;
     String sourceMapPath;
     Boolean isBuildStoredInArtifactFolder;
+    private FileMetadata buildMetadata = null;
+    private FileMetadata sourceMapMetadata = null;
+    // Artifact streamed from the artifact manager, only available when the upload runs on the controller
+    private transient VirtualFile buildArtifact = null;
+    // Size in bytes of the chunks of a resumable upload, 0 to send the build in a single request
+    private int uploadChunkSize = 0;
+    // Last chunked upload: a retry with the same link resumes from the bytes acknowledged to it
+    private transient ChunkedUpload previousChunkedUpload = null;
+    private boolean compressSourceMap = false;
+    // Bandwidth shared by the uploads of the controller, not sent to the agents
+    private transient BandwidthLimiter bandwidthLimiter = null;
+    // Bandwidth in bytes per second reserved for an upload made by an agent, 0 when the bandwidth isn't limited
+    private long agentBandwidthLimit = 0;
+    private RetryPolicy retryPolicy = new RetryPolicy();
+    // Sends the upload_init request, the build and its chunks
+    private UploadTransport transport = new BlockingUploadTransport();
+    private String uploadInitUrl = DEFAULT_UPLOAD_INIT_URL;
+    // Result of an upload_init call made while the build was searched, used by the first attempt
+    private SendBuildMessage prefetchedUploadInit = null;
     private ApplicationCredential applicationCredential = null;
     private Proxy proxy = null;
     private String releaseType = "PRE_PROD";
     private String externalId = null;
+    // Request in flight or delay before the next attempt, cancelled with the upload
+    private transient volatile Future<?> pending = null;
+    private transient volatile boolean cancelled = false;
 
     public SendBuildAction(String apiKey,
                            TaskListener listener,
@@ -127,6 +174,10 @@ public class SendBuildAction extends MasterToSlaveFileCallable<SendBuildMessage>
 
     public SendBuildMessage invoke(File f, VirtualChannel channel) {
         listener.getLogger().println("Action is running on the remote machine");
+        if (agentBandwidthLimit > 0) {
+            // The agent sends the build within the share of the bandwidth reserved by the controller
+            bandwidthLimiter = new BandwidthLimiter(agentBandwidthLimit);
+        }
         return perform();
     }
 
@@ -134,44 +185,113 @@ public class SendBuildAction extends MasterToSlaveFileCallable<SendBuildMessage>
     public SendBuildMessage perform(
     ) {
         /*
-         * Perform the SendBuildAction : send the build to Data Theorem Upload API
-         * @param :
-         *    buildPath : Path of the build we want to send to Data Theorem
+         * Perform the SendBuildAction and wait for its result, see performAsync
          * @return :
          *    SendBuildMessage containing the success or the failure information about the sendbuild process
          */
-
-        SendBuildMessage uploadMessage = new SendBuildMessage(false, "");
-        for (int retry = 0; retry < 3; retry++) {
-            uploadMessage = full_upload();
-            if (uploadMessage.success) {
-                return uploadMessage;
-            }
+        CompletableFuture<SendBuildMessage> result = performAsync();
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            // The build was aborted: the upload is not retried
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            return new SendBuildMessage(false, "Data Theorem upload build was interrupted");
+        } catch (CancellationException e) {
+            return new SendBuildMessage(false, "Data Theorem upload build was interrupted");
+        } catch (ExecutionException e) {
+            return new SendBuildMessage(false, "Data Theorem upload error: " + e.getCause().toString());
         }
-        return uploadMessage;
     }
 
-    SendBuildMessage full_upload(
-    ) {
+    public CompletableFuture<SendBuildMessage> performAsync() {
         /*
          * Perform the SendBuildAction : send the build to Data Theorem Upload API
-         * @param :
-         *    buildPath : Path of the build we want to send to Data Theorem
+         * The failed attempts are retried according to the retry policy: the upload link is reused
+         * when the failure happened while sending the build and the link is still valid
+         * The requests are composed from the responses of the transport and the retries are delayed by a timer:
+         * no thread waits for the upload
          * @return :
-         *    SendBuildMessage containing the success or the failure information about the sendbuild process
+         *    SendBuildMessage containing the success or the failure information about the sendbuild process,
+         *    cancelling it stops the request in flight and the next attempts
          */
+        cancelled = false;
+        CompletableFuture<SendBuildMessage> result = startAttempt(1, true);
+        result.whenComplete((message, e) -> {
+            if (result.isCancelled()) {
+                cancelled = true;
+                Future<?> running = pending;
+                if (running != null) {
+                    running.cancel(true);
+                }
+            }
+        });
+        return result;
+    }
 
-        SendBuildMessage uploadInitMessage = uploadInit();
-        // If we successfully get an upload link : Send the build at the upload url
-        if (uploadInitMessage.success && !uploadInitMessage.message.equals("")) {
-            return uploadBuild();
-        } else {
-            return uploadInitMessage;
+    private CompletableFuture<SendBuildMessage> startAttempt(int attempt, boolean needsUploadLink) {
+        /*
+         * @return: the result of the attempt, or of the next attempts when it fails
+         */
+        if (!needsUploadLink) {
+            return uploadBuildAsync().thenCompose(uploadMessage -> afterUpload(attempt, uploadMessage));
         }
+        CompletableFuture<SendBuildMessage> uploadInit = attempt == 1 && prefetchedUploadInit != null
+                ? CompletableFuture.completedFuture(prefetchedUploadInit)
+                : uploadInitAsync();
+        return uploadInit.thenCompose(uploadMessage -> {
+            if (uploadMessage.success && !uploadMessage.message.equals("")) {
+                return uploadBuildAsync().thenCompose(buildMessage -> afterUpload(attempt, buildMessage));
+            }
+            return retry(attempt, uploadMessage, retryPolicy.classifyInitFailure(uploadMessage));
+        });
     }
 
+    private CompletableFuture<SendBuildMessage> afterUpload(int attempt, SendBuildMessage uploadMessage) {
+        if (uploadMessage.success) {
+            return CompletableFuture.completedFuture(uploadMessage);
+        }
+        return retry(attempt, uploadMessage, retryPolicy.classifyUploadFailure(uploadMessage));
+    }
 
-    SendBuildMessage uploadInit() {
+    private CompletableFuture<SendBuildMessage> retry(
+            int attempt,
+            SendBuildMessage uploadMessage,
+            RetryPolicy.Decision decision
+    ) {
+        /*
+         * @return: the failure when it isn't retried, else the result of the next attempt started after its delay
+         */
+        if (decision == RetryPolicy.Decision.ABORT || attempt >= retryPolicy.getMaxAttempts() || cancelled) {
+            return CompletableFuture.completedFuture(uploadMessage);
+        }
+        boolean needsUploadLink = decision == RetryPolicy.Decision.REINIT;
+
+        long delay = retryPolicy.delay(attempt);
+        listener.getLogger().println(uploadMessage.message);
+        listener.getLogger().println(
+                "Retrying " + (needsUploadLink ? "with a new upload URL " : "with the same upload URL ") +
+                "in " + (delay / 1000) + " seconds (attempt " + (attempt + 1) + "/" +
+                retryPolicy.getMaxAttempts() + ")"
+        );
+        CompletableFuture<Void> delayed = new CompletableFuture<>();
+        pending = RETRY_TIMER.schedule(() -> delayed.complete(null), delay, TimeUnit.MILLISECONDS);
+        return delayed.thenCompose(ignored -> cancelled
+                ? CompletableFuture.completedFuture(uploadMessage)
+                : startAttempt(attempt + 1, needsUploadLink)
+        );
+    }
+
+    public SendBuildMessage uploadInit() {
+        /*
+         * Get a temporary upload link from Data Theorem using the secret apiKey and wait for it
+         * @return:
+         *   SendBuildMessage containing the success or the failure information of upload_init call
+         */
+        return uploadInitAsync().join();
+    }
+
+    public CompletableFuture<SendBuildMessage> uploadInitAsync() {
         /*
          * Get a temporary upload link from Data Theorem using the secret apiKey
          * @return:
@@ -180,125 +300,144 @@ public class SendBuildAction extends MasterToSlaveFileCallable<SendBuildMessage>
 
         try {
             if (apiKey.startsWith("APIKey")) {
-                return new SendBuildMessage(
+                return CompletableFuture.completedFuture(new SendBuildMessage(
                         false,
                         "Error your upload APIKey shouldn't start with \"APIKey\""
-                );
+                ));
             }
             if (apiKey.equals("")) {
-                return new SendBuildMessage(
+                return CompletableFuture.completedFuture(new SendBuildMessage(
                         false,
                         "Upload APIKey secret key is empty"
-                );
+                ));
             }
         } catch (java.lang.NullPointerException e) {
-            return new SendBuildMessage(
+            return CompletableFuture.completedFuture(new SendBuildMessage(
                     false,
                     "Missing Data Theorem upload APIKey:\n" +
                             "Ensure \"DATA_THEOREM_UPLOAD_API_KEY\" is set in Credentials Binding"
-            );
+            ));
         }
 
         listener.getLogger().println("Retrieving the upload URL from Data Theorem ...");
-        try {
-
-            HttpResponse response = uploadInitRequest();
-            HttpEntity entity = response.getEntity();
-            if (entity != null) {
-                String responseString = EntityUtils.toString(entity, "UTF-8");
-
-                // Catch forbidden access when the API Key is wrong
-                if (response.getStatusLine().getStatusCode() == 401) {
-                    return new SendBuildMessage(
-                            false,
-                            "Data Theorem upload_init call Forbidden Access: " + responseString
-                    );
-                }
+        CompletableFuture<HttpResponse> response = uploadInitRequest();
+        pending = response;
+        return response.handle((result, e) -> {
+            if (e != null) {
+                return uploadInitError(unwrap(e));
+            }
+            listener.getLogger().println(result.getStatusLine().toString());
+            try {
+                return uploadInitResult(result);
+            } catch (IOException ioException) {
+                return uploadInitError(ioException);
+            }
+        });
+    }
 
-                // If the status code is 200 verify the response body and update hash and sessionId
-                else if (response.getStatusLine().getStatusCode() == 200) {
+    private SendBuildMessage uploadInitResult(HttpResponse response) throws IOException {
+        /*
+         * Read the upload link from the response of upload_init
+         */
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            String responseString = EntityUtils.toString(entity, "UTF-8");
 
-                    try {
-                        JSONParser parser = new JSONParser();
-                        JSONObject jsonResponse = (JSONObject) parser.parse(responseString);
-                        this.uploadUrl = jsonResponse.get("upload_url").toString();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        return new SendBuildMessage(
-                                false,
-                                "Data Theorem upload_init wrong payload: " + responseString
-                        );
+            // Catch forbidden access when the API Key is wrong
+            if (response.getStatusLine().getStatusCode() == 401) {
+                return new SendBuildMessage(
+                        false,
+                        "Data Theorem upload_init call Forbidden Access: " + responseString,
+                        401
+                );
+            }
 
-                    }
+            // If the status code is 200 verify the response body and update hash and sessionId
+            else if (response.getStatusLine().getStatusCode() == 200) {
 
-                    // If nothing wrong has happened return success and the payload
-                    return new SendBuildMessage(
-                            true,
-                            "Successfully retrieved the download URL from Data Theorem: " + responseString
-                    );
-                } else {
+                try {
+                    JSONParser parser = new JSONParser();
+                    JSONObject jsonResponse = (JSONObject) parser.parse(responseString);
+                    this.uploadUrl = jsonResponse.get("upload_url").toString();
+                } catch (Exception e) {
+                    e.printStackTrace();
                     return new SendBuildMessage(
                             false,
-                            "Data Theorem upload_init call error: " + responseString
+                            "Data Theorem upload_init wrong payload: " + responseString,
+                            200
                     );
+
                 }
+
+                // If nothing wrong has happened return success and the payload
+                return new SendBuildMessage(
+                        true,
+                        "Successfully retrieved the download URL from Data Theorem: " + responseString
+                );
             } else {
                 return new SendBuildMessage(
                         false,
-                        "Data Theorem upload_init call error: Empty body response "
+                        "Data Theorem upload_init call error: " + responseString,
+                        response.getStatusLine().getStatusCode()
                 );
             }
-        } catch (UnknownHostException e) {
+        } else {
+            return new SendBuildMessage(
+                    false,
+                    "Data Theorem upload_init call error: Empty body response ",
+                    response.getStatusLine().getStatusCode()
+            );
+        }
+    }
+
+    private static SendBuildMessage uploadInitError(Throwable e) {
+        if (e instanceof UnknownHostException) {
             return new SendBuildMessage(
                     false,
                     "Data Theorem upload_init call error: UnknownHostException \n" +
-                            "Please contact Data Theorem support: " + e.getMessage()
+                            "Please contact Data Theorem support: " + e.getMessage(),
+                    0
             );
-        } catch (IOException e) {
+        }
+        if (e instanceof IOException) {
             return new SendBuildMessage(
                     false,
-                    "Data Theorem upload_init call error: IOException " + e.getMessage()
+                    "Data Theorem upload_init call error: IOException " + e.getMessage(),
+                    0
             );
         }
+        if (e instanceof CancellationException) {
+            return new SendBuildMessage(false, "The upload_init request was interrupted");
+        }
+        throw new CompletionException(e);
     }
 
-    private HttpClient createAuthenticatedHttpClient() {
-        /*
-         * Create an http client to perform post request with or without a proxy
-         * @return:
-         *   The HttpClient of the endpoint
-         */
-
-        HttpClientBuilder clientBuilder = HttpClientBuilder.create();
-        if (proxy != null)proxy.add_to_http_client(clientBuilder);
-
-        // build the client without automatic retry mechanism
-        return clientBuilder.disableAutomaticRetries().build();
-
-    }
-
-    HttpResponse uploadInitRequest() throws IOException {
+    CompletableFuture<HttpResponse> uploadInitRequest() {
         /*
          * Http call to upload_init endpoint of the Upload API
          * @return:
          *   The HTTPResponse of the endpoint
          */
-        HttpClient client = createAuthenticatedHttpClient();
-
-        String upload_init_url = "https://api.securetheorem.com/uploadapi/v1/upload_init";
-        HttpPost requestUploadInit = new HttpPost(upload_init_url);
+        HttpPost requestUploadInit = new HttpPost(uploadInitUrl);
 
         // Add the api access key of the customer and tell to Upload API that the request comes from jenkins
 
         requestUploadInit.addHeader("Authorization", "APIKEY " + apiKey);
         requestUploadInit.addHeader("User-Agent", "Jenkins Upload API Plugin " + version);
 
-        HttpResponse response = client.execute(requestUploadInit);
-        listener.getLogger().println(response.getStatusLine().toString());
-        return response;
+        return transport.send(requestUploadInit, proxy);
     }
 
     SendBuildMessage uploadBuild() {
+        /*
+         * Send the build to Data Theorem using the current valid upload link and wait for the response
+         * @return:
+         *   SendBuildMessage containing the success or the failure information of the sendbuild process
+         */
+        return uploadBuildAsync().join();
+    }
+
+    CompletableFuture<SendBuildMessage> uploadBuildAsync() {
         /*
          * Send the build to Data Theorem using the current valid upload link
          * @param:
@@ -309,42 +448,72 @@ public class SendBuildAction extends MasterToSlaveFileCallable<SendBuildMessage>
 
         //logger.println("Uploading build to Data Theorem...");
 
-        HttpResponse response;
-        try {
-            response = uploadBuildRequest();
-            HttpEntity entity = response.getEntity();
-            if (entity == null) {
-                return new SendBuildMessage(
-                        false,
-                        "Data Theorem upload build returned an empty body error"
-                );
+        CompletableFuture<HttpResponse> response = uploadBuildRequest();
+        pending = response;
+        return response.handle((result, e) -> {
+            if (e != null) {
+                return uploadBuildError(unwrap(e));
             }
-            String responseString = EntityUtils.toString(entity, "UTF-8");
-            if (response.getStatusLine().getStatusCode() == 200) {
-                return new SendBuildMessage(
-                        true,
-                        "Successfully uploaded build to Data Theorem : " + responseString
-                );
+            try {
+                return uploadBuildResult(result);
+            } catch (IOException ioException) {
+                return uploadBuildError(ioException);
             }
+        });
+    }
 
+    private static SendBuildMessage uploadBuildResult(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
             return new SendBuildMessage(
                     false,
-                    "Data Theorem upload build returned an error: " + responseString
+                    "Data Theorem upload build returned an empty body error",
+                    response.getStatusLine().getStatusCode()
             );
+        }
+        String responseString = EntityUtils.toString(entity, "UTF-8");
+        if (response.getStatusLine().getStatusCode() == 200) {
+            return new SendBuildMessage(
+                    true,
+                    "Successfully uploaded build to Data Theorem : " + responseString
+            );
+        }
 
+        return new SendBuildMessage(
+                false,
+                "Data Theorem upload build returned an error: " + responseString,
+                response.getStatusLine().getStatusCode()
+        );
+    }
 
-        } catch (IOException | InterruptedException e) {
+    private static SendBuildMessage uploadBuildError(Throwable e) {
+        if (e instanceof InterruptedIOException || e instanceof CancellationException) {
+            // The build was aborted: the upload is not retried
+            return new SendBuildMessage(
+                    false,
+                    "Data Theorem upload build was interrupted"
+            );
+        }
+        if (e instanceof IOException) {
             e.printStackTrace();
             return new SendBuildMessage(
                     false,
-                    "Data Theorem upload build returned an error: IOException: " + e.getMessage()
+                    "Data Theorem upload build returned an error: IOException: " + e.getMessage(),
+                    0
             );
+        }
+        throw new CompletionException(e);
+    }
 
+    private static Throwable unwrap(Throwable e) {
+        // The failure of a request, wrapped by the stages composed with it
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
         }
+        return e;
     }
 
-    HttpResponse uploadBuildRequest()
-            throws IOException, InterruptedException {
+    CompletableFuture<HttpResponse> uploadBuildRequest() {
         /*
          * Http call of the upload link generated by upload_init
          * @return:
@@ -352,9 +521,6 @@ public class SendBuildAction extends MasterToSlaveFileCallable<SendBuildMessage>
          */
 
 
-        // Create an http client to make the post request to upload_init endpoint
-        HttpClient client = createAuthenticatedHttpClient();
-
         HttpPost requestUploadbuild = new HttpPost(uploadUrl);
         requestUploadbuild.addHeader("User-Agent", "Jenkins Upload API Plugin " + version);
 
@@ -367,16 +533,36 @@ public class SendBuildAction extends MasterToSlaveFileCallable<SendBuildMessage>
 
         // Add the application to the entity
         listener.getLogger().println("Build file path is: " + buildPath);
-        if (isBuildStoredInArtifactFolder) {
+        if (isBuildStoredInArtifactFolder && buildArtifact != null) {
+            if ("file".equals(buildArtifact.toURI().getScheme())) {
+                // The artifact is stored on the controller file system, it is sent from its file
+                entity_builder.addPart("file", new LocalFileBody(new File(buildArtifact.toURI()), ContentType.DEFAULT_BINARY));
+            }
+            else {
+                // The artifact manager may store the build outside of the controller, the build is streamed from it
+                entity_builder.addPart("file", new VirtualFileBody(buildArtifact, ContentType.DEFAULT_BINARY));
+            }
+        }
+        else if (isBuildStoredInArtifactFolder) {
             // if the build is in the permanent artifact directory we can upload it directly
-            entity_builder.addBinaryBody("file", new File(buildPath));
+            entity_builder.addPart("file", new LocalFileBody(new File(buildPath), ContentType.DEFAULT_BINARY));
         }else {
-            AddContentToEntity(entity_builder, buildPath, "file", ContentType.DEFAULT_BINARY);
+            AddContentToEntity(
+                    entity_builder, buildPath, buildMetadata, "file", ContentType.DEFAULT_BINARY, Compression.NONE
+            );
         }
         // Add the sourcemap file to the entity
         if (sourceMapPath != null) {
             listener.getLogger().println("Mapping file path is: " + sourceMapPath);
-            AddContentToEntity(entity_builder, sourceMapPath, "sourcemap", ContentType.DEFAULT_TEXT);
+            // The mapping file is text: it is always compressed on the remoting channel
+            AddContentToEntity(
+                    entity_builder,
+                    sourceMapPath,
+                    sourceMapMetadata,
+                    "sourcemap",
+                    ContentType.DEFAULT_TEXT,
+                    compressSourceMap ? Compression.GZIP : Compression.REMOTING
+            );
         }
 
         // Add the credential to the entity
@@ -388,26 +574,81 @@ public class SendBuildAction extends MasterToSlaveFileCallable<SendBuildMessage>
             entity_builder.addTextBody("external_id", externalId);
         }
 
-        requestUploadbuild.setEntity(entity_builder.build());
+        HttpEntity entity = entity_builder.build();
+        if (bandwidthLimiter != null && bandwidthLimiter.isLimited()) {
+            entity = new ThrottledEntity(entity, bandwidthLimiter, listener.getLogger());
+        }
+        if (uploadChunkSize > 0) {
+            listener.getLogger().println(
+                    "Start uploading build in chunks of " + uploadChunkSize + " bytes to the endpoint: " + this.uploadUrl
+            );
+            ChunkedUpload chunkedUpload = new ChunkedUpload(
+                    transport,
+                    proxy,
+                    uploadUrl,
+                    entity,
+                    uploadChunkSize,
+                    "Jenkins Upload API Plugin " + version,
+                    listener.getLogger()
+            );
+            chunkedUpload.setResume(
+                    previousChunkedUpload != null && previousChunkedUpload.getAcknowledgedBytes() > 0
+                            && uploadUrl.equals(previousChunkedUpload.getUploadUrl())
+            );
+            previousChunkedUpload = chunkedUpload;
+            return chunkedUpload.uploadAsync();
+        }
+
+        requestUploadbuild.setEntity(entity);
         listener.getLogger().println("Start uploading build to the endpoint: " + this.uploadUrl);
         // Add the api access key of the customer and tell to Upload API that the request comes from jenkins
-        return client.execute(requestUploadbuild);
+        return transport.send(requestUploadbuild, proxy);
     }
 
-    private void AddContentToEntity(MultipartEntityBuilder entityBuilder, String binaryPath, String bodyName, ContentType contentType)
-            throws IOException, InterruptedException {
-
-        if (!workspace.child(binaryPath).isRemote()) {
+    private void AddContentToEntity(
+            MultipartEntityBuilder entityBuilder,
+            String binaryPath,
+            FileMetadata metadata,
+            String bodyName,
+            ContentType contentType,
+            Compression compression
+    ) {
+        /*
+         * Add a workspace file to the entity
+         * isRemote and getRemote don't call the agent: when the metadata has been resolved during the search
+         * nothing else than the file content goes through the remote channel
+         * A gzip part keeps the name of the file and is declared with a gzip content type: the browser compatible
+         * multipart only sends the Content-Disposition and Content-Type headers of the parts, so it can't carry
+         * a Content-Encoding. The compression is off unless the job opts in (compressMappingFile)
+         */
+        FilePath file = workspace.child(binaryPath);
+        if (compression == Compression.GZIP) {
+            // A file of the current node is compressed by a local thread
+            RemoteAgentStreamBody body = new RemoteAgentStreamBody(
+                    file,
+                    GZIP_CONTENT_TYPE,
+                    file.getName(),
+                    metadata
+            );
+            body.setCompression(Compression.GZIP);
+            body.setLogger(listener.getLogger());
+            entityBuilder.addPart(bodyName, body);
+        }
+        else if (!file.isRemote()) {
             listener.getLogger().println("Direct upload to data theorem " + this.uploadUrl);
 
-            entityBuilder.addBinaryBody(bodyName, new File(workspace.child(binaryPath).toURI()));
+            entityBuilder.addPart(bodyName, new LocalFileBody(new File(file.getRemote()), ContentType.DEFAULT_BINARY));
         }
         else {
-            entityBuilder.addPart(bodyName, new RemoteAgentStreamBody(
-                    workspace.child(binaryPath),
+            RemoteAgentStreamBody body = new RemoteAgentStreamBody(
+                    file,
                     contentType,
-                    workspace.child(binaryPath).getName()
-            ));
+                    file.getName(),
+                    metadata
+            );
+            body.setCompression(compression);
+            body.setLogger(listener.getLogger());
+            entityBuilder.addPart(bodyName, body);
         }
     }
 
@@ -426,4 +667,54 @@ public class SendBuildAction extends MasterToSlaveFileCallable<SendBuildMessage>
     public void setExternalId(String externalId) {
         this.externalId = externalId;
     }
+
+    public void setBuildMetadata(FileMetadata buildMetadata) {
+        this.buildMetadata = buildMetadata;
+    }
+
+    public void setSourceMapMetadata(FileMetadata sourceMapMetadata) {
+        this.sourceMapMetadata = sourceMapMetadata;
+    }
+
+    public void setBuildArtifact(VirtualFile buildArtifact) {
+        this.buildArtifact = buildArtifact;
+    }
+
+    public void setUploadChunkSize(int uploadChunkSize) {
+        this.uploadChunkSize = uploadChunkSize;
+    }
+
+    public void setCompressSourceMap(boolean compressSourceMap) {
+        this.compressSourceMap = compressSourceMap;
+    }
+
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    public void setAgentBandwidthLimit(long agentBandwidthLimit) {
+        this.agentBandwidthLimit = agentBandwidthLimit;
+    }
+
+    public void setTransport(UploadTransport transport) {
+        this.transport = transport;
+    }
+
+    public void setUploadInitUrl(String uploadInitUrl) {
+        this.uploadInitUrl = uploadInitUrl;
+    }
+
+    public void setPrefetchedUploadInit(SendBuildMessage uploadInitMessage, String uploadUrl) {
+        // The upload link requested by another action before the build was found
+        this.prefetchedUploadInit = uploadInitMessage;
+        this.uploadUrl = uploadUrl;
+    }
+
+    public String getUploadUrl() {
+        return uploadUrl;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
 }
@@ -1,5 +1,7 @@
 package com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild;
 
+import java.util.Map;
+
 /**
  * Response message of SendBuildAction
  */
@@ -9,14 +11,65 @@ public class SendBuildMessage implements java.io.Serializable{
       @attr:
         boolean success: true if the sendBuild perform correctly false otherwise
         String message: Information to print to customers
+        int statusCode: HTTP status of the failed call, 0 on a network error, -1 when no call was made
+        boolean superseded: true if the upload was dropped for a newer build of the same application before it started
     */
 
     public final boolean success;
     public final String message;
+    public final int statusCode;
+    public final boolean superseded;
 
     public SendBuildMessage(boolean success, String message) {
+        this(success, message, -1);
+    }
+
+    public SendBuildMessage(boolean success, String message, int statusCode) {
+        this(success, message, statusCode, false);
+    }
+
+    private SendBuildMessage(boolean success, String message, int statusCode, boolean superseded) {
         this.success = success;
         this.message = message;
+        this.statusCode = statusCode;
+        this.superseded = superseded;
+    }
+
+    public static SendBuildMessage superseded(String message) {
+        // The upload didn't fail, the build was not sent
+        return new SendBuildMessage(false, message, -1, true);
+    }
 
+    public static SendBuildMessage summarize(Map<String, SendBuildMessage> results) {
+        /*
+         * Aggregate the results of several uploads, indexed by build name, in a single message
+         * @return: a success when every upload succeeded, with one line per upload
+         *   superseded when no upload failed and some of them were superseded
+         */
+        boolean success = true;
+        int failures = 0;
+        int superseded = 0;
+        StringBuilder message = new StringBuilder();
+        for (Map.Entry<String, SendBuildMessage> result : results.entrySet()) {
+            if (result.getValue().superseded) {
+                success = false;
+                superseded++;
+            }
+            else if (!result.getValue().success) {
+                success = false;
+                failures++;
+            }
+            message.append(
+                    result.getValue().success ? "[SUCCESS] " :
+                    result.getValue().superseded ? "[SUPERSEDED] " : "[FAILURE] "
+            )
+                    .append(result.getKey())
+                    .append(": ")
+                    .append(result.getValue().message)
+                    .append('\n');
+        }
+        message.append(results.size() - failures - superseded).append('/').append(results.size())
+                .append(" builds uploaded to Data Theorem");
+        return new SendBuildMessage(success, message.toString(), -1, failures == 0 && superseded > 0);
     }
 }
@@ -0,0 +1,174 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild;
+
+import hudson.Extension;
+import hudson.util.NullStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stand-in for the Upload API answering in-process, no request leaves the JVM.
+ * <p>
+ * The request bodies are fully written, so the multipart encoding, the streaming of the agent files and the
+ * chunked uploads run as with the real service, then discarded or written to a directory of the JVM sending them.
+ * upload_init returns a sink:// upload URL, a build upload returns the number of bytes received and the time
+ * taken to write them. Every n-th request with a body can be answered with a 503 error to exercise the retries.
+ * It is meant for benchmarks and tests: a build sent through this transport is never analyzed.
+ * </p>
+ */
+@Extension
+public class SinkUploadTransport implements UploadTransport {
+
+    private static final Logger LOGGER = Logger.getLogger(SinkUploadTransport.class.getName());
+
+    // Directory where the request bodies are written, the bodies are discarded when it isn't set
+    static /* not final */ String DIRECTORY = System.getProperty(SinkUploadTransport.class.getName() + ".directory");
+    // Every n-th request with a body is answered with a 503 error after its body is read, 0 to never fail
+    static /* not final */ int FAIL_EVERY = Integer.getInteger(SinkUploadTransport.class.getName() + ".failEvery", 0);
+
+    static final String UPLOAD_URL_PREFIX = "sink://upload/";
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+    private static final AtomicLong REQUESTS = new AtomicLong();
+    // Bytes received by the chunked uploads in progress, indexed by upload URL
+    private static final Map<String, Long> PERSISTED = new ConcurrentHashMap<>();
+
+    @Override
+    public String getName() {
+        return "SINK";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Local sink (nothing is sent to Data Theorem, for benchmarks)";
+    }
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request, Proxy proxy) throws IOException {
+        HttpEntity entity = request instanceof HttpEntityEnclosingRequest
+                ? ((HttpEntityEnclosingRequest) request).getEntity()
+                : null;
+        String uploadUrl = request.getURI().toString();
+        Header contentRange = request.getFirstHeader("Content-Range");
+
+        if (!uploadUrl.startsWith(UPLOAD_URL_PREFIX)) {
+            // upload_init call, whatever its URL
+            if (request.getFirstHeader("Authorization") == null) {
+                return response(401, "Unauthorized", "{\"error\": \"Missing API key\"}");
+            }
+            return response(200, "OK", "{\"upload_url\": \"" + UPLOAD_URL_PREFIX + UUID.randomUUID() + "\"}");
+        }
+        if (entity == null) {
+            // Status of a chunked upload after a failure
+            return resumeIncomplete(PERSISTED.getOrDefault(uploadUrl, 0L));
+        }
+
+        long first = 0;
+        Matcher range = null;
+        if (contentRange != null) {
+            range = CONTENT_RANGE.matcher(contentRange.getValue().trim());
+            if (!range.matches()) {
+                return response(400, "Bad Request", "{\"error\": \"Invalid Content-Range\"}");
+            }
+            first = Long.parseLong(range.group(1));
+        }
+
+        long start = System.nanoTime();
+        long received = consume(entity, uploadUrl, first);
+        long millis = (System.nanoTime() - start) / 1000000L;
+        LOGGER.log(Level.FINE, "Sink received " + received + " bytes in " + millis + " ms");
+
+        if (FAIL_EVERY > 0 && REQUESTS.incrementAndGet() % FAIL_EVERY == 0) {
+            return response(503, "Service Unavailable", "{\"error\": \"Failure injected by the sink\"}");
+        }
+        if (range == null) {
+            return response(200, "OK", "{\"bytes\": " + received + ", \"millis\": " + millis + "}");
+        }
+
+        long persisted = PERSISTED.getOrDefault(uploadUrl, 0L);
+        long last = Long.parseLong(range.group(2));
+        if (first > persisted || last - first + 1 != received) {
+            // A gap or a truncated chunk: the client resumes from the bytes received so far
+            return resumeIncomplete(persisted);
+        }
+        persisted = Math.max(persisted, last + 1);
+        if (!"*".equals(range.group(3)) && persisted == Long.parseLong(range.group(3))) {
+            PERSISTED.remove(uploadUrl);
+            return response(200, "OK", "{\"bytes\": " + persisted + ", \"millis\": " + millis + "}");
+        }
+        PERSISTED.put(uploadUrl, persisted);
+        return resumeIncomplete(persisted);
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> send(HttpUriRequest request, Proxy proxy) {
+        // The body is read as with the blocking transport
+        return BlockingUploadTransport.onRequestThread(() -> execute(request, proxy), request::abort);
+    }
+
+    private static long consume(HttpEntity entity, String uploadUrl, long offset) throws IOException {
+        /*
+         * Write the body to the file of the upload at the offset of the chunk, or discard it
+         * @return: the number of bytes of the body
+         */
+        if (DIRECTORY == null || DIRECTORY.isEmpty()) {
+            CountingOutputStream out = new CountingOutputStream(new NullStream());
+            entity.writeTo(out);
+            return out.getByteCount();
+        }
+        Path file = Paths.get(DIRECTORY, uploadUrl.substring(UPLOAD_URL_PREFIX.length()) + ".multipart");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (offset == 0) {
+                // A whole body sent again replaces the previous attempt
+                channel.truncate(0);
+            }
+            channel.position(offset);
+            CountingOutputStream out = new CountingOutputStream(Channels.newOutputStream(channel));
+            entity.writeTo(out);
+            out.flush();
+            return out.getByteCount();
+        }
+    }
+
+    private static HttpResponse resumeIncomplete(long persisted) {
+        HttpResponse response = response(ChunkedUpload.RESUME_INCOMPLETE, "Resume Incomplete", null);
+        if (persisted > 0) {
+            response.addHeader("Range", "bytes=0-" + (persisted - 1));
+        }
+        return response;
+    }
+
+    private static HttpResponse response(int statusCode, String reasonPhrase, String body) {
+        BasicHttpResponse response = new BasicHttpResponse(
+                new BasicStatusLine(HttpVersion.HTTP_1_1, statusCode, reasonPhrase)
+        );
+        if (body != null) {
+            response.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+        }
+        return response;
+    }
+}
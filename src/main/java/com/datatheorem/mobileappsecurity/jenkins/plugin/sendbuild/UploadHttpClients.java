@@ -0,0 +1,84 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild;
+
+import hudson.init.Terminator;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Http clients shared by the uploads of the JVM, one per proxy configuration.
+ * <p>
+ * The clients keep their connections alive, so the upload_init call and the upload of the build (and the next
+ * uploads) reuse the same TCP/TLS connection and the same proxy authentication.
+ * The idle connections are closed by a background thread of each client, and the clients are closed when
+ * Jenkins stops. On an agent (sendBuildDirectlyFromRemote) the clients live as long as the agent JVM.
+ * </p>
+ */
+public final class UploadHttpClients {
+
+    private static final Logger LOGGER = Logger.getLogger(UploadHttpClients.class.getName());
+
+    // Maximum number of connections kept by each client
+    static /* not final */ int MAX_CONNECTIONS = Integer.getInteger(
+            UploadHttpClients.class.getName() + ".maxConnections", 20
+    );
+    // Seconds after which an unused connection is closed
+    static /* not final */ int IDLE_TIMEOUT = Integer.getInteger(
+            UploadHttpClients.class.getName() + ".idleTimeout", 30
+    );
+
+    // Key of the clients without proxy
+    private static final Object NO_PROXY = new Object();
+    private static final Map<Object, CloseableHttpClient> CLIENTS = new ConcurrentHashMap<>();
+
+    private UploadHttpClients() {
+    }
+
+    static CloseableHttpClient get(Proxy proxy) {
+        /*
+         * @return: the shared client using the proxy configuration, created on the first use
+         */
+        return CLIENTS.computeIfAbsent(proxy == null ? NO_PROXY : proxy.getClientKey(), key -> create(proxy));
+    }
+
+    private static CloseableHttpClient create(Proxy proxy) {
+        HttpClientBuilder clientBuilder = HttpClientBuilder.create();
+        if (proxy != null) proxy.add_to_http_client(clientBuilder);
+
+        return clientBuilder
+                // build the client without automatic retry mechanism
+                .disableAutomaticRetries()
+                .setMaxConnTotal(MAX_CONNECTIONS)
+                .setMaxConnPerRoute(MAX_CONNECTIONS)
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_TIMEOUT, TimeUnit.SECONDS)
+                // All the requests of a client use the same proxy credentials: a connection authenticated
+                // by the proxy (ex: NTLM) can be reused by any request
+                .disableConnectionState()
+                .build();
+    }
+
+    @Terminator
+    public static void closeAll() {
+        /*
+         * Close the clients and their connections when Jenkins stops
+         */
+        for (Object key : CLIENTS.keySet()) {
+            CloseableHttpClient client = CLIENTS.remove(key);
+            if (client == null) {
+                continue;
+            }
+            try {
+                client.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Unable to close the upload http client", e);
+            }
+        }
+    }
+}
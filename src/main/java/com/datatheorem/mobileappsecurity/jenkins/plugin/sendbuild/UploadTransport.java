@@ -0,0 +1,49 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transport of the requests made to Data Theorem: the upload_init call, the build upload and its chunks.
+ * <p>
+ * The transports are Jenkins extensions, the global configuration selects one of them by its name.
+ * The transport is sent with the upload to the agent when the build is sent from the agent:
+ * an implementation must be serializable and keep its shared state (clients, connections) in static fields.
+ * The response is read by the caller, its entity must be consumed.
+ * </p>
+ */
+public interface UploadTransport extends ExtensionPoint, Serializable {
+
+    // Name of the transport in the global configuration
+    String getName();
+
+    // Description of the transport shown in the global configuration
+    String getDisplayName();
+
+    // Send the request and wait for its response, the request is cancelled when the thread is interrupted
+    HttpResponse execute(HttpUriRequest request, Proxy proxy) throws IOException, InterruptedException;
+
+    // Send the request, the future completes with its response
+    // A blocking transport sends the request on one of its threads, the calling thread never waits
+    CompletableFuture<HttpResponse> send(HttpUriRequest request, Proxy proxy);
+
+    static ExtensionList<UploadTransport> all() {
+        return ExtensionList.lookup(UploadTransport.class);
+    }
+
+    static UploadTransport byName(String name) {
+        // The transport registered with the name, null when no transport has this name
+        for (UploadTransport transport : all()) {
+            if (transport.getName().equals(name)) {
+                return transport;
+            }
+        }
+        return null;
+    }
+}
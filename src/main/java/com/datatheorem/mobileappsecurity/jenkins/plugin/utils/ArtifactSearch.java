@@ -0,0 +1,73 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import jenkins.util.VirtualFile;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Search the archived artifacts of a run for the files respecting a glob pattern.
+ * <p>
+ * The artifacts are walked through the VirtualFile tree of the run ArtifactManager, so the search works with
+ * the artifact managers storing the artifacts outside of the controller and never loads the whole artifact list:
+ * like the workspace search, the directories which can't contain a match are not listed.
+ * A pattern without '/' is matched against the artifact file name at any depth.
+ * </p>
+ */
+public class ArtifactSearch {
+
+    private final GlobMatcher matcher;
+
+    public ArtifactSearch(String pattern) {
+        this.matcher = pattern.indexOf('/') < 0 ? new GlobMatcher(pattern, "**/" + pattern) : new GlobMatcher(pattern);
+    }
+
+    public Map<String, VirtualFile> find(VirtualFile root, int maxMatches) throws IOException {
+        /*
+         * Walk the artifacts in the same order as the workspace search: files first, then sub directories, by name
+         * @param maxMatches: the walk stops once this number of matches is found
+         * @return: the matching artifacts indexed by relative path, in walk order
+         */
+        Map<String, VirtualFile> matches = new LinkedHashMap<>();
+        Deque<String> directories = new ArrayDeque<>();
+        Deque<VirtualFile> directoryFiles = new ArrayDeque<>();
+        directories.push("");
+        directoryFiles.push(root);
+        while (!directories.isEmpty()) {
+            String directory = directories.pop();
+            VirtualFile directoryFile = directoryFiles.pop();
+            String prefix = directory.isEmpty() ? "" : directory + '/';
+
+            VirtualFile[] children = directoryFile.list();
+            Arrays.sort(children, Comparator.comparing(VirtualFile::getName));
+            List<VirtualFile> subDirectories = new ArrayList<>();
+            for (VirtualFile child : children) {
+                if (child.isDirectory()) {
+                    subDirectories.add(child);
+                } else if (child.isFile() && matcher.matches(prefix + child.getName())) {
+                    matches.put(prefix + child.getName(), child);
+                    if (matches.size() >= maxMatches) {
+                        return matches;
+                    }
+                }
+            }
+            for (int i = subDirectories.size() - 1; i >= 0; i--) {
+                VirtualFile subDirectory = subDirectories.get(i);
+                String relativePath = prefix + subDirectory.getName();
+                // The links are not followed to never loop
+                if (matcher.couldMatchUnder(relativePath.split("/")) && !subDirectory.isSymlink()) {
+                    directories.push(relativePath);
+                    directoryFiles.push(subDirectory);
+                }
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,205 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class BandwidthLimiter {
+    /*
+     * Token bucket shared by the uploads: each write of an upload takes tokens from the bucket,
+     * which is refilled at the configured rate
+     * The uploads take turns through a fair lock and each turn takes the same amount of bytes from the bucket,
+     * spent by the upload over its next writes: the uploads share the bandwidth equally whatever the size of their writes
+     * An upload made by an agent can't take tokens from the bucket: it reserves a fixed share of the bandwidth
+     * when it starts, and the bucket is refilled with the rest. A reservation takes at most half of the bandwidth
+     * not reserved yet, so the reservations never reach the limit and the uploads of the controller always keep
+     * a part of it
+     */
+
+    // Amount of bytes taken from the bucket at each turn of an upload
+    static /* not final */ int MAX_GRANT = Integer.getInteger(BandwidthLimiter.class.getName() + ".maxGrant", 64 * 1024);
+    // Duration of the burst allowed after an idle period
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // First come, first served: a waiting upload gets its grant before an upload which already got one
+    private final ReentrantLock lock = new ReentrantLock(true);
+    // Signaled when the upload waiting for tokens got them, or when the limit changes
+    private final Condition changed = lock.newCondition();
+    // An upload is waiting for tokens, the others wait for their turn
+    private boolean waitingForTokens = false;
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    // Uploads of the agents and the bandwidth they reserved
+    private final AtomicInteger reservedStreams = new AtomicInteger();
+    private final AtomicLong reservedBytesPerSecond = new AtomicLong();
+    // 0 when the bandwidth isn't limited
+    private volatile long bytesPerSecond;
+    private double tokens = 0;
+    private long lastRefill = System.nanoTime();
+
+    public BandwidthLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public void setBytesPerSecond(long bytesPerSecond) {
+        // Applied to the running uploads from their next write, the waiting uploads recompute their wait
+        lock.lock();
+        try {
+            this.bytesPerSecond = bytesPerSecond;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isLimited() {
+        return bytesPerSecond > 0;
+    }
+
+    public int getActiveStreams() {
+        return activeStreams.get();
+    }
+
+    public long getAllocation() {
+        /*
+         * @return: the bandwidth of each upload taking tokens from the bucket in bytes per second,
+         *   0 when the bandwidth isn't limited
+         */
+        long rate = Math.max(0, bytesPerSecond - reservedBytesPerSecond.get());
+        return rate / Math.max(1, activeStreams.get() - reservedStreams.get());
+    }
+
+    public Stream open() {
+        /*
+         * Count an upload taking tokens from the bucket in the sharing of the bandwidth until the stream is closed
+         */
+        activeStreams.incrementAndGet();
+        return new Stream(0);
+    }
+
+    public synchronized Stream reserve() {
+        /*
+         * Reserve an equal share of the bandwidth for an upload made outside of the controller, at most half of the
+         * bandwidth not reserved yet
+         * The share is fixed until the stream is closed
+         */
+        long limit = bytesPerSecond;
+        long available = limit - reservedBytesPerSecond.get();
+        long share = Math.max(1, Math.min(limit / activeStreams.incrementAndGet(), available / 2));
+        reservedStreams.incrementAndGet();
+        reservedBytesPerSecond.addAndGet(share);
+        return new Stream(share);
+    }
+
+    private void take(int bytes) throws InterruptedException {
+        /*
+         * Wait until the bytes are available in the bucket and take them
+         * The limit is read under the lock: an upload returns at once when the limit is removed while it waits
+         */
+        lock.lockInterruptibly();
+        try {
+            while (waitingForTokens) {
+                if (bytesPerSecond <= 0) {
+                    return;
+                }
+                changed.await();
+            }
+            waitingForTokens = true;
+            try {
+                while (true) {
+                    long limit = bytesPerSecond;
+                    if (limit <= 0) {
+                        return;
+                    }
+                    // The uploads of the controller share the bandwidth not reserved by the agents
+                    long rate = limit - reservedBytesPerSecond.get();
+                    if (rate <= 0) {
+                        // The limit was lowered below the reservations: wait for an agent upload to end
+                        changed.await();
+                        continue;
+                    }
+                    refill(rate);
+                    if (tokens >= bytes) {
+                        tokens -= bytes;
+                        return;
+                    }
+                    // The other uploads wait for their turn meanwhile
+                    changed.awaitNanos((long) ((bytes - tokens) * 1e9 / rate));
+                }
+            } finally {
+                waitingForTokens = false;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refill(long rate) {
+        long now = System.nanoTime();
+        double capacity = Math.max(MAX_GRANT, rate * (BURST_NANOS / 1e9));
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * (rate / 1e9));
+        lastRefill = now;
+    }
+
+    public final class Stream implements Closeable {
+        // Active upload, counted in the sharing of the bandwidth
+
+        // Bandwidth reserved by an upload of an agent, 0 for an upload taking tokens from the bucket
+        private final long reserved;
+        // Bytes taken from the bucket and not written yet, only used by the thread writing the upload
+        private long credit = 0;
+        private boolean closed = false;
+
+        Stream(long reserved) {
+            this.reserved = reserved;
+        }
+
+        public int acquire(int bytes) throws InterruptedException {
+            /*
+             * Wait until some of the bytes can be sent
+             * @return: the number of bytes granted, at most MAX_GRANT
+             */
+            if (!isLimited()) {
+                return bytes;
+            }
+            if (credit <= 0) {
+                int turn = Math.max(1, MAX_GRANT);
+                take(turn);
+                credit += turn;
+            }
+            int granted = (int) Math.min(bytes, credit);
+            credit -= granted;
+            return granted;
+        }
+
+        public long getAllocation() {
+            return reserved > 0 ? reserved : BandwidthLimiter.this.getAllocation();
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                activeStreams.decrementAndGet();
+                if (reserved > 0) {
+                    reservedStreams.decrementAndGet();
+                    reservedBytesPerSecond.addAndGet(-reserved);
+                    // The uploads of the controller get the bandwidth back
+                    lock.lock();
+                    try {
+                        changed.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        }
+    }
+}
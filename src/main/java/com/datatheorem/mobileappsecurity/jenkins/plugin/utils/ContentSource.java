@@ -0,0 +1,22 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface ContentSource extends Closeable {
+    // Content of a request body read without blocking, by a transport writing many requests from a few I/O threads:
+    // the transport reads what is available, then waits for the callback before reading again
+
+    // Read the bytes available now: the number of bytes read, 0 when none is available yet, -1 at the end
+    int read(ByteBuffer buffer) throws IOException;
+
+    // Call back once, from any thread, when read may return more bytes or the end of the content
+    // The callback runs immediately when they are already available
+    void onAvailable(Runnable callback);
+
+    interface Provider {
+        // Body which can be read through a ContentSource instead of being written to a stream
+        ContentSource openSource() throws IOException;
+    }
+}
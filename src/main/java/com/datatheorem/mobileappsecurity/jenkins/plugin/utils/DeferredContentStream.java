@@ -0,0 +1,166 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+public class DeferredContentStream extends OutputStream {
+    /*
+     * Layout of a request body recorded without reading its large contents
+     * The body (ex: a multipart entity) is written to this stream once: the small parts (boundaries, headers,
+     * text fields) are kept in memory, the bodies providing a ContentSource are only recorded at their position
+     * The content of the request is then read without blocking through open()
+     */
+
+    // Bytes which can be kept in memory, a body writing more can't be read without blocking
+    static /* not final */ int MAX_BUFFERED = Integer.getInteger(
+            DeferredContentStream.class.getName() + ".maxBuffered", 1024 * 1024
+    );
+
+    // Byte arrays written to the stream and deferred bodies, in the order of the request
+    private final List<Object> segments = new ArrayList<>();
+    private ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+    private long bufferedBytes = 0;
+
+    public static boolean defer(OutputStream out, ContentSource.Provider body) {
+        /*
+         * Called by the bodies: record the body instead of writing it when the stream records a layout
+         * @return: true when the body is deferred and must not be written
+         */
+        if (!(out instanceof DeferredContentStream)) {
+            return false;
+        }
+        DeferredContentStream layout = (DeferredContentStream) out;
+        layout.flushSegment();
+        layout.segments.add(body);
+        return true;
+    }
+
+    public static void refuse(OutputStream out, String name) throws UnsupportedContentException {
+        /*
+         * Called by the bodies which can only be read by blocking, before reading anything
+         */
+        if (out instanceof DeferredContentStream) {
+            throw new UnsupportedContentException(name + " can only be streamed by blocking");
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        bufferedBytes += len;
+        if (bufferedBytes > MAX_BUFFERED) {
+            throw new UnsupportedContentException("The request body is too large to be kept in memory");
+        }
+        buffered.write(b, off, len);
+    }
+
+    private void flushSegment() {
+        if (buffered.size() > 0) {
+            segments.add(buffered.toByteArray());
+            buffered = new ByteArrayOutputStream();
+        }
+    }
+
+    public ContentSource open() {
+        /*
+         * @return: the content of the request, the deferred bodies are opened when they are reached
+         */
+        flushSegment();
+        return new SegmentsSource(segments.iterator());
+    }
+
+    public static final class UnsupportedContentException extends IOException {
+        // The body can't be recorded: it must be written by blocking
+        UnsupportedContentException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class SegmentsSource implements ContentSource {
+        // Read the segments one after the other
+
+        private final Iterator<Object> segments;
+        private ContentSource current = null;
+
+        SegmentsSource(Iterator<Object> segments) {
+            this.segments = segments;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            while (true) {
+                if (current == null) {
+                    if (!segments.hasNext()) {
+                        return -1;
+                    }
+                    Object segment = segments.next();
+                    current = segment instanceof byte[]
+                            ? new BytesSource((byte[]) segment)
+                            : ((ContentSource.Provider) segment).openSource();
+                }
+                int read = current.read(buffer);
+                if (read >= 0) {
+                    return read;
+                }
+                current.close();
+                current = null;
+            }
+        }
+
+        @Override
+        public void onAvailable(Runnable callback) {
+            if (current == null) {
+                callback.run();
+            } else {
+                current.onAvailable(callback);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+    }
+
+    private static final class BytesSource implements ContentSource {
+        private final ByteBuffer bytes;
+
+        BytesSource(byte[] bytes) {
+            this.bytes = ByteBuffer.wrap(bytes);
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) {
+            if (!bytes.hasRemaining()) {
+                return -1;
+            }
+            int length = Math.min(bytes.remaining(), buffer.remaining());
+            ByteBuffer slice = bytes.duplicate();
+            slice.limit(slice.position() + length);
+            buffer.put(slice);
+            bytes.position(bytes.position() + length);
+            return length;
+        }
+
+        @Override
+        public void onAvailable(Runnable callback) {
+            callback.run();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Directories skipped by the workspace search.
+ * <p>
+ * The dependency caches and version control directories (ex: node_modules, Pods) are skipped by default,
+ * unless a searched pattern explicitly goes through them (ex: Pods/Lib/lib.ipa).
+ * The user exclude patterns are always applied: a pattern without '/' is matched against the directory name
+ * at any depth, the other patterns against the directory path relative to the workspace.
+ * </p>
+ */
+public class DirectoryExcludes implements Serializable {
+
+    public static final List<String> DEFAULT_EXCLUDES = Collections.unmodifiableList(Arrays.asList(
+            "node_modules", ".git", ".gradle", "Pods", "DerivedData"
+    ));
+
+    private final GlobMatcher defaultNames = new GlobMatcher(DEFAULT_EXCLUDES);
+    private final GlobMatcher names;
+    private final GlobMatcher paths;
+
+    public DirectoryExcludes(List<String> patterns) {
+        List<String> namePatterns = new ArrayList<>();
+        List<String> pathPatterns = new ArrayList<>();
+        for (String pattern : patterns) {
+            if (pattern.indexOf('/') < 0) {
+                namePatterns.add(pattern);
+            } else {
+                pathPatterns.add(pattern);
+            }
+        }
+        this.names = new GlobMatcher(namePatterns);
+        this.paths = new GlobMatcher(pathPatterns);
+    }
+
+    public static List<String> parse(String patterns) {
+        /*
+         * Split a comma or new line separated list of exclude patterns
+         */
+        List<String> parsed = new ArrayList<>();
+        if (patterns == null) {
+            return parsed;
+        }
+        for (String pattern : patterns.split("[,\\n]")) {
+            String trimmed = pattern.trim();
+            // A trailing '/' is allowed to mark the pattern as a directory
+            while (trimmed.endsWith("/")) {
+                trimmed = trimmed.substring(0, trimmed.length() - 1);
+            }
+            if (!trimmed.isEmpty()) {
+                parsed.add(trimmed);
+            }
+        }
+        return parsed;
+    }
+
+    boolean excludes(String relativeDirectory, String[] segments, GlobMatcher searched) {
+        /*
+         * Test if a directory must be skipped by the search
+         * @param searched: the patterns of the search, they can go explicitly through a default exclude
+         */
+        String name = segments[segments.length - 1];
+        if (names.matches(name) || paths.matches(relativeDirectory)) {
+            return true;
+        }
+        return defaultNames.matches(name) && !searched.goesThrough(segments);
+    }
+}
@@ -0,0 +1,46 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * List the content of the workspace directories visited by the search.
+ */
+public class DirectoryLister {
+
+    public static final class Listing {
+        // Names sorted to get a deterministic walk
+        final String[] files;
+        final String[] directories;
+
+        Listing(String[] files, String[] directories) {
+            this.files = files;
+            this.directories = directories;
+        }
+    }
+
+    public Listing list(File basedir, String relativeDirectory) {
+        /*
+         * @return: the files and the sub directories of the directory, null if it can't be listed
+         */
+        File directory = relativeDirectory.isEmpty() ? basedir : new File(basedir, relativeDirectory);
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return null;
+        }
+        Arrays.sort(children);
+
+        List<String> files = new ArrayList<>();
+        List<String> directories = new ArrayList<>();
+        for (File child : children) {
+            if (child.isDirectory()) {
+                directories.add(child.getName());
+            } else {
+                files.add(child.getName());
+            }
+        }
+        return new Listing(files.toArray(new String[0]), directories.toArray(new String[0]));
+    }
+}
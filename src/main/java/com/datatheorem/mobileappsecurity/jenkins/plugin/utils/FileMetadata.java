@@ -0,0 +1,41 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import java.io.Serializable;
+
+/**
+ * Workspace file resolved on the agent with the metadata needed by the upload.
+ * <p>
+ * Carrying the size and the last modification time avoids asking the agent for them again while uploading the file.
+ * </p>
+ */
+public class FileMetadata implements Serializable {
+
+    private final String relativePath;
+    private final long size;
+    private final long lastModified;
+    private final String sha256;
+
+    public FileMetadata(String relativePath, long size, long lastModified, String sha256) {
+        this.relativePath = relativePath;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.sha256 = sha256;
+    }
+
+    public String getRelativePath() {
+        return relativePath;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getSha256() {
+        // null when the digest has not been requested
+        return sha256;
+    }
+}
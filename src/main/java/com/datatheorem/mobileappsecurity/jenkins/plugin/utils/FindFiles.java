@@ -0,0 +1,319 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+public class FindFiles extends MasterToSlaveFileCallable<List<String>> {
+    /*
+     * Find the relative path of the workspace files respecting at least one of the glob patterns
+     * of either jenkins local server or external secondary agent.
+     * The directories which can't contain a matching file are not visited
+     * and only the matching paths are sent back to the caller.
+     * Large workspaces are walked by a pool of threads once more than PARALLEL_THRESHOLD entries have been visited.
+     * The dependency caches (ex: node_modules) and the directories excluded by the user are never visited.
+     * The matches can also be streamed to a callback which stops the walk once it has found what it needs
+     */
+
+    // Number of visited files and directories after which the rest of the walk is run in parallel
+    static /* not final */ int PARALLEL_THRESHOLD = Integer.getInteger(
+            FindFiles.class.getName() + ".parallelThreshold", 10000
+    );
+
+    // Order of the sequential walk: in each directory the files come first, then the sub directories by name
+    static final Comparator<String> WALK_ORDER = (first, second) -> {
+        String[] firstSegments = first.split("/");
+        String[] secondSegments = second.split("/");
+        for (int i = 0; i < Math.min(firstSegments.length, secondSegments.length); i++) {
+            if (!firstSegments[i].equals(secondSegments[i])) {
+                boolean firstIsFile = i == firstSegments.length - 1;
+                boolean secondIsFile = i == secondSegments.length - 1;
+                if (firstIsFile != secondIsFile) {
+                    return firstIsFile ? -1 : 1;
+                }
+                return firstSegments[i].compareTo(secondSegments[i]);
+            }
+        }
+        return Integer.compare(firstSegments.length, secondSegments.length);
+    };
+
+    private final GlobMatcher matcher;
+    private DirectoryExcludes excludes = new DirectoryExcludes(Collections.<String>emptyList());
+    // Maximum number of threads walking the workspace, 0 to use half of the processors, 1 to disable the parallel walk
+    private int parallelism = 1;
+
+    public FindFiles(String... patterns) {
+        this(new GlobMatcher(patterns));
+    }
+
+    public FindFiles(GlobMatcher matcher) {
+        this.matcher = matcher;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public void setExcludes(DirectoryExcludes excludes) {
+        this.excludes = excludes;
+    }
+
+    boolean isSearched(String relativePath) {
+        /*
+         * Test if the walk would report the file: it respects a pattern and none of its directories is skipped
+         */
+        String[] segments = relativePath.split("/");
+        if (relativePath.startsWith("/") || Arrays.asList(segments).contains("..") || !matcher.matches(relativePath)) {
+            return false;
+        }
+        for (int depth = 1; depth < segments.length; depth++) {
+            String[] directory = Arrays.copyOf(segments, depth);
+            if (!matcher.couldMatchUnder(directory) || excludes.excludes(String.join("/", directory), directory, matcher)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public List<String> invoke(File basedir, VirtualChannel channel) {
+        return walk(basedir, new DirectoryLister());
+    }
+
+    List<String> walk(File basedir, DirectoryLister lister) {
+        Queue<String> matches = new ConcurrentLinkedQueue<>();
+        walk(basedir, lister, matches::add);
+        List<String> sorted = new ArrayList<>(matches);
+        // The parallel walk reports the matches in any order
+        sorted.sort(WALK_ORDER);
+        return sorted;
+    }
+
+    void walk(File basedir, DirectoryLister lister, Predicate<String> onMatch) {
+        walk(basedir, lister, onMatch, null);
+    }
+
+    void walk(File basedir, DirectoryLister lister, Predicate<String> onMatch, Supplier<String> cutoff) {
+        /*
+         * Report each matching file to onMatch as soon as it is found, the walk stops when onMatch returns false.
+         * Once the walk runs in parallel, onMatch is called by several threads and not in the walk order.
+         * A caller keeping the first matches in WALK_ORDER gives a cutoff instead: the last path it still needs,
+         * null while it needs the whole walk. The parallel part then skips the files and the directories coming
+         * after the cutoff and ends once the ones before it are walked, so the caller gets the result of the
+         * sequential walk. The sequential part stops on onMatch as usual
+         */
+        Walk walk = new Walk(basedir, lister, onMatch, cutoff);
+        int threads = parallelism > 0 ? parallelism : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+        // Depth first walk, the children are visited in name order to get a deterministic result
+        Deque<String> directories = new ArrayDeque<>();
+        directories.push("");
+        int visitedEntries = 0;
+        while (!directories.isEmpty() && !walk.stopped.get()) {
+            if (threads > 1 && visitedEntries > PARALLEL_THRESHOLD) {
+                walkInParallel(walk, directories, threads);
+                return;
+            }
+            List<String> subDirectories = new ArrayList<>();
+            visitedEntries += walk.visit(directories.pop(), subDirectories::add);
+            for (int i = subDirectories.size() - 1; i >= 0; i--) {
+                directories.push(subDirectories.get(i));
+            }
+        }
+    }
+
+    static boolean isAfterInWalkOrder(String directory, String path) {
+        /*
+         * @return: true when every file of the directory comes after the path in WALK_ORDER
+         */
+        if (directory.isEmpty()) {
+            return false;
+        }
+        String[] directorySegments = directory.split("/");
+        String[] pathSegments = path.split("/");
+        for (int i = 0; i < directorySegments.length; i++) {
+            if (i == pathSegments.length - 1) {
+                // The path is a file of a parent directory: the files come before the sub directories
+                return true;
+            }
+            if (!directorySegments[i].equals(pathSegments[i])) {
+                return directorySegments[i].compareTo(pathSegments[i]) > 0;
+            }
+        }
+        // The path is in the directory
+        return false;
+    }
+
+    private final class Walk {
+
+        private final File basedir;
+        private final DirectoryLister lister;
+        private final Predicate<String> onMatch;
+        private final Supplier<String> cutoff;
+        private final AtomicBoolean stopped = new AtomicBoolean(false);
+        // The parallel part is bounded by the cutoff instead of stopped by onMatch
+        private volatile boolean parallel = false;
+        // Real path of every directory walked or waiting to be walked
+        private final Set<Path> walked = ConcurrentHashMap.newKeySet();
+        // Real path of the directories waiting to be walked, by relative path
+        private final Map<String, Path> realPaths = new ConcurrentHashMap<>();
+
+        Walk(File basedir, DirectoryLister lister, Predicate<String> onMatch, Supplier<String> cutoff) {
+            this.basedir = basedir;
+            this.lister = lister;
+            this.onMatch = onMatch;
+            this.cutoff = cutoff;
+            Path root;
+            try {
+                root = basedir.toPath().toRealPath();
+            } catch (IOException e) {
+                // Missing workspace, the lister finds nothing in it
+                root = basedir.toPath().toAbsolutePath();
+            }
+            walked.add(root);
+            realPaths.put("", root);
+        }
+
+        private boolean isBounded() {
+            return parallel && cutoff != null;
+        }
+
+        boolean isCutOff(String directory) {
+            // The directory only contains files after the last one needed by the caller
+            String last = isBounded() ? cutoff.get() : null;
+            return last != null && isAfterInWalkOrder(directory, last);
+        }
+
+        int visit(String directory, Consumer<String> onSubDirectory) {
+            /*
+             * List a directory, report its matching files and the sub directories which may contain a match
+             * @return: the number of entries of the directory
+             */
+            Path realPath = realPaths.remove(directory);
+            DirectoryLister.Listing listing = lister.list(basedir, directory);
+            if (listing == null) {
+                return 0;
+            }
+
+            String prefix = directory.isEmpty() ? "" : directory + '/';
+            for (String file : listing.files) {
+                String path = prefix + file;
+                if (!matcher.matches(path) || stopped.get()) {
+                    continue;
+                }
+                if (isBounded()) {
+                    String last = cutoff.get();
+                    if (last == null || WALK_ORDER.compare(path, last) <= 0) {
+                        onMatch.test(path);
+                    }
+                }
+                else if (!onMatch.test(path)) {
+                    stopped.set(true);
+                }
+            }
+            if (stopped.get()) {
+                return listing.files.length;
+            }
+            for (String name : listing.directories) {
+                String subDirectory = prefix + name;
+                String[] segments = subDirectory.split("/");
+                if (matcher.couldMatchUnder(segments)
+                        && !excludes.excludes(subDirectory, segments, matcher)
+                        && isFirstWalk(subDirectory, realPath == null ? null : realPath.resolve(name))) {
+                    onSubDirectory.accept(subDirectory);
+                }
+            }
+            return listing.files.length + listing.directories.length;
+        }
+
+        private boolean isFirstWalk(String directory, Path realPath) {
+            /*
+             * Each physical directory is searched once, under the first path reaching it: a symbolic link to an
+             * ancestor or to a directory already searched is skipped, which breaks the cycles and never reports
+             * the same file twice. Only the symbolic links are resolved, the real path of the other directories
+             * is the real path of their parent followed by their name
+             * @return: true when the directory wasn't reached yet by another path
+             */
+            Path path = basedir.toPath().resolve(directory);
+            if (realPath == null || Files.isSymbolicLink(path)) {
+                try {
+                    realPath = path.toRealPath();
+                } catch (IOException e) {
+                    // Broken link
+                    return false;
+                }
+            }
+            if (!walked.add(realPath)) {
+                return false;
+            }
+            realPaths.put(directory, realPath);
+            return true;
+        }
+    }
+
+    private void walkInParallel(Walk walk, Collection<String> directories, int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        walk.parallel = true;
+        try {
+            pool.invoke(new WalkTask(walk, new ArrayList<>(directories)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private final class WalkTask extends RecursiveAction {
+        // Walk a set of directories, each sub directory is walked by a forked task
+
+        private final Walk walk;
+        private final List<String> directories;
+
+        WalkTask(Walk walk, List<String> directories) {
+            this.walk = walk;
+            this.directories = directories;
+        }
+
+        @Override
+        protected void compute() {
+            List<WalkTask> subTasks = new ArrayList<>();
+            for (String directory : directories) {
+                if (walk.stopped.get()) {
+                    return;
+                }
+                if (walk.isCutOff(directory)) {
+                    continue;
+                }
+                List<String> subDirectories = new ArrayList<>();
+                walk.visit(directory, subDirectories::add);
+                for (String subDirectory : subDirectories) {
+                    List<String> single = new ArrayList<>();
+                    single.add(subDirectory);
+                    subTasks.add(new WalkTask(walk, single));
+                }
+            }
+            invokeAll(subTasks);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Glob patterns compiled once and matched against workspace relative paths ('/' separated).
+ * <p>
+ * The patterns follow the java.nio PathMatcher glob syntax. The common shapes of build names
+ * (ex: *.apk, app/build/outputs/apk/release/*.apk, **&#47;*.ipa) are matched with string comparisons,
+ * the other patterns are translated once to a regular expression.
+ * Besides matching a file, the matcher can tell if a directory may contain a matching file so the workspace walk
+ * can skip the subtrees which can't match (ex: app/build/outputs/*.apk never matches anything under node_modules).
+ * The patterns are compiled on the first use, so the matcher can be sent to an agent and compiled there.
+ * </p>
+ */
+public class GlobMatcher implements Serializable {
+
+    private final List<String> patterns;
+    private transient volatile List<CompiledGlob> compiled;
+
+    public GlobMatcher(String... patterns) {
+        this(Arrays.asList(patterns));
+    }
+
+    public GlobMatcher(List<String> patterns) {
+        this.patterns = Collections.unmodifiableList(new ArrayList<>(patterns));
+    }
+
+    public List<String> getPatterns() {
+        return patterns;
+    }
+
+    public boolean matches(String relativePath) {
+        /*
+         * Test if the relative path respects at least one of the patterns
+         */
+        return matchingPattern(relativePath) >= 0;
+    }
+
+    public int matchingPattern(String relativePath) {
+        /*
+         * @return: the index of the first pattern respected by the relative path, -1 if none
+         */
+        List<CompiledGlob> globs = compiled();
+        for (int i = 0; i < globs.size(); i++) {
+            if (globs.get(i).matches(relativePath)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean matches(int patternIndex, String relativePath) {
+        return compiled().get(patternIndex).matches(relativePath);
+    }
+
+    public boolean couldMatchUnder(String[] directory) {
+        /*
+         * Test if a file located under the directory (given as its relative path segments) may respect a pattern
+         * @return: false only when no file of the directory subtree can match
+         */
+        for (CompiledGlob glob : compiled()) {
+            if (glob.couldMatchUnder(directory)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean goesThrough(String[] directory) {
+        /*
+         * Test if a pattern names the directory explicitly
+         * ex: Pods/Lib/*.ipa goes through Pods, a pattern starting with ** doesn't
+         */
+        for (CompiledGlob glob : compiled()) {
+            if (glob.goesThrough(directory)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<CompiledGlob> compiled() {
+        List<CompiledGlob> globs = compiled;
+        if (globs == null) {
+            globs = new ArrayList<>();
+            for (String pattern : patterns) {
+                globs.add(new CompiledGlob(pattern));
+            }
+            compiled = globs;
+        }
+        return globs;
+    }
+
+    // Same behavior as the default file system PathMatcher: Windows globs are case insensitive
+    private static final boolean IGNORE_CASE = File.separatorChar == '\\';
+
+    private static final String GLOB_META_CHARS = "\\*?[{";
+    private static final String REGEX_META_CHARS = ".^$+{[]|()";
+
+    private static final class CompiledGlob {
+
+        private enum Kind {
+            // name: the exact relative path
+            LITERAL,
+            // *.apk: a file of the workspace root ending with the suffix
+            ROOT_SUFFIX,
+            // app/outputs/*.apk: a file of the prefix directory ending with the suffix
+            DIRECTORY_SUFFIX,
+            // **/*.apk: a file of any sub directory ending with the suffix
+            ANY_DIRECTORY_SUFFIX,
+            REGEX
+        }
+
+        private final Kind kind;
+        private final String prefix;
+        private final String suffix;
+        private final Pattern regex;
+        // Pattern split on '/', null when the pattern can't be split safely (ex: a '/' inside {a,b/c})
+        private final String[] segments;
+        private final Pattern[] segmentRegexes;
+
+        CompiledGlob(String pattern) {
+            int star = pattern.indexOf('*');
+            String head = star < 0 ? pattern : pattern.substring(0, star);
+            String tail = star < 0 ? "" : pattern.substring(star + 1);
+            boolean literalHead = !containsAny(head, GLOB_META_CHARS);
+            boolean literalSuffix = literalTail(tail);
+
+            if (star < 0 && literalHead) {
+                kind = Kind.LITERAL;
+                prefix = pattern;
+                suffix = "";
+            } else if (literalHead && literalSuffix && (head.isEmpty() || head.endsWith("/"))) {
+                kind = head.isEmpty() ? Kind.ROOT_SUFFIX : Kind.DIRECTORY_SUFFIX;
+                prefix = head;
+                suffix = tail;
+            } else if (pattern.startsWith("**/*") && literalTail(pattern.substring(4))) {
+                kind = Kind.ANY_DIRECTORY_SUFFIX;
+                prefix = "";
+                suffix = pattern.substring(4);
+            } else {
+                kind = Kind.REGEX;
+                prefix = "";
+                suffix = "";
+            }
+            regex = kind == Kind.REGEX ? compile(pattern) : null;
+
+            segments = splitSegments(pattern);
+            segmentRegexes = segments == null ? null : new Pattern[segments.length];
+            if (segments != null) {
+                // Compiled eagerly: the matcher may be shared by the threads walking the workspace
+                for (int i = 0; i < segments.length - 1 && !segments[i].contains("**"); i++) {
+                    segmentRegexes[i] = compile(segments[i]);
+                }
+            }
+        }
+
+        private static boolean literalTail(String tail) {
+            return !containsAny(tail, GLOB_META_CHARS) && tail.indexOf('/') < 0;
+        }
+
+        boolean matches(String path) {
+            switch (kind) {
+                case LITERAL:
+                    return IGNORE_CASE ? path.equalsIgnoreCase(prefix) : path.equals(prefix);
+                case ROOT_SUFFIX:
+                    return path.indexOf('/') < 0 && endsWith(path, suffix);
+                case DIRECTORY_SUFFIX:
+                    return path.length() >= prefix.length() + suffix.length()
+                            && path.regionMatches(IGNORE_CASE, 0, prefix, 0, prefix.length())
+                            && path.indexOf('/', prefix.length()) < 0
+                            && endsWith(path, suffix);
+                case ANY_DIRECTORY_SUFFIX:
+                    return path.indexOf('/') >= 0
+                            && path.length() - path.lastIndexOf('/') - 1 >= suffix.length()
+                            && endsWith(path, suffix);
+                default:
+                    return regex.matcher(path).matches();
+            }
+        }
+
+        private static boolean endsWith(String path, String suffix) {
+            return path.regionMatches(IGNORE_CASE, path.length() - suffix.length(), suffix, 0, suffix.length());
+        }
+
+        boolean couldMatchUnder(String[] directory) {
+            if (segments == null) {
+                return true;
+            }
+            for (int i = 0; i < directory.length; i++) {
+                if (segments[i].contains("**")) {
+                    return true;
+                }
+                // The last segment of the pattern is the file name, a directory can't match it
+                if (i >= segments.length - 1) {
+                    return false;
+                }
+                if (!segmentRegexes[i].matcher(directory[i]).matches()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean goesThrough(String[] directory) {
+            int last = directory.length - 1;
+            if (segments == null || last >= segments.length - 1 || containsAny(segments[last], GLOB_META_CHARS)) {
+                return false;
+            }
+            return (IGNORE_CASE ? segments[last].equalsIgnoreCase(directory[last]) : segments[last].equals(directory[last]))
+                    && couldMatchUnder(directory);
+        }
+    }
+
+    private static boolean containsAny(String value, String chars) {
+        for (int i = 0; i < value.length(); i++) {
+            if (chars.indexOf(value.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String[] splitSegments(String pattern) {
+        int depth = 0;
+        for (char c : pattern.toCharArray()) {
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            } else if (c == '/' && depth > 0) {
+                return null;
+            } else if (c == '\\') {
+                // Escaped characters make the segment boundaries ambiguous: don't prune
+                return null;
+            }
+        }
+        return pattern.split("/", -1);
+    }
+
+    static Pattern compile(String glob) {
+        /*
+         * Translate a glob to a regular expression, following the rules of the default file system PathMatcher
+         */
+        StringBuilder regex = new StringBuilder("^");
+        boolean inGroup = false;
+        int i = 0;
+        while (i < glob.length()) {
+            char c = glob.charAt(i++);
+            switch (c) {
+                case '\\':
+                    if (i == glob.length()) {
+                        throw new IllegalArgumentException("No character to escape in glob: " + glob);
+                    }
+                    char escaped = glob.charAt(i++);
+                    if (GLOB_META_CHARS.indexOf(escaped) >= 0 || REGEX_META_CHARS.indexOf(escaped) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(escaped);
+                    break;
+                case '/':
+                    regex.append('/');
+                    break;
+                case '[':
+                    regex.append("[[^/]&&[");
+                    if (i < glob.length() && glob.charAt(i) == '^') {
+                        regex.append("\\^");
+                        i++;
+                    } else {
+                        if (i < glob.length() && (glob.charAt(i) == '!')) {
+                            regex.append('^');
+                            i++;
+                        }
+                        if (i < glob.length() && glob.charAt(i) == '-') {
+                            regex.append('-');
+                            i++;
+                        }
+                    }
+                    boolean closed = false;
+                    while (i < glob.length()) {
+                        c = glob.charAt(i++);
+                        if (c == ']') {
+                            closed = true;
+                            break;
+                        }
+                        if (c == '/') {
+                            throw new IllegalArgumentException("Explicit 'name separator' in class: " + glob);
+                        }
+                        if (c == '\\' || c == '[' || (c == '&' && i < glob.length() && glob.charAt(i) == '&')) {
+                            regex.append('\\');
+                        }
+                        regex.append(c);
+                    }
+                    if (!closed) {
+                        throw new IllegalArgumentException("Missing ']' in glob: " + glob);
+                    }
+                    regex.append("]]");
+                    break;
+                case '{':
+                    if (inGroup) {
+                        throw new IllegalArgumentException("Cannot nest groups in glob: " + glob);
+                    }
+                    regex.append("(?:(?:");
+                    inGroup = true;
+                    break;
+                case '}':
+                    if (inGroup) {
+                        regex.append("))");
+                        inGroup = false;
+                    } else {
+                        regex.append('}');
+                    }
+                    break;
+                case ',':
+                    regex.append(inGroup ? ")|(?:" : ",");
+                    break;
+                case '*':
+                    if (i < glob.length() && glob.charAt(i) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                default:
+                    if (REGEX_META_CHARS.indexOf(c) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(c);
+            }
+        }
+        if (inGroup) {
+            throw new IllegalArgumentException("Missing '}' in glob: " + glob);
+        }
+        regex.append('$');
+        return IGNORE_CASE
+                ? Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE)
+                : Pattern.compile(regex.toString());
+    }
+}
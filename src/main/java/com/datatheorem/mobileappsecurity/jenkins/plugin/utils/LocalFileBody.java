@@ -0,0 +1,92 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import org.apache.http.util.Args;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class LocalFileBody extends AbstractContentBody implements ContentSource.Provider {
+    // Custom Content Body to send a file of the controller with few large writes.
+    // FileBody copies the file through a 4 KiB buffer and each write goes through the session buffer of the connection.
+    // The file is read from its channel in large blocks instead, and the writes larger than the session buffer are
+    // written straight to the socket by HttpClient. The channel can't be transferred to the socket (transferTo):
+    // HttpClient 4 only exposes the request body as an OutputStream
+    // An asynchronous transport reads the channel itself through openSource
+
+    // Size of the blocks read from the file and written to the connection
+    static /* not final */ int BUFFER_SIZE = Integer.getInteger(LocalFileBody.class.getName() + ".bufferSize", 256 * 1024);
+
+    private final File file;
+    private final String filename;
+
+    public LocalFileBody(File file, ContentType contentType) {
+        super(contentType);
+        Args.notNull(file, "File");
+        this.file = file;
+        this.filename = file.getName();
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        Args.notNull(out, "Output stream");
+        if (DeferredContentStream.defer(out, this)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(1L, Math.min(BUFFER_SIZE, channel.size())));
+            while (channel.read(buffer) >= 0) {
+                if (buffer.position() == buffer.capacity()) {
+                    out.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+            }
+            if (buffer.position() > 0) {
+                out.write(buffer.array(), 0, buffer.position());
+            }
+        }
+        out.flush();
+    }
+
+    @Override
+    public ContentSource openSource() throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        return new ContentSource() {
+            @Override
+            public int read(ByteBuffer buffer) throws IOException {
+                // A local file is always readable
+                return channel.read(buffer);
+            }
+
+            @Override
+            public void onAvailable(Runnable callback) {
+                callback.run();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    public String getTransferEncoding() {
+        return "binary";
+    }
+
+    public long getContentLength() {
+        return file.length();
+    }
+
+    public String getFilename() {
+        return this.filename;
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,13 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+/**
+ * How to choose the file to upload when several workspace files respect the same pattern.
+ */
+public enum MatchSelection {
+    // The first match of the walk, the search stops as soon as every pattern has a match
+    FIRST,
+    // The most recently modified match, the whole workspace is searched
+    NEWEST,
+    // No file is selected when a pattern has several matches, the search stops at the second match
+    FAIL_ON_AMBIGUOUS
+}
@@ -9,46 +9,152 @@ import org.apache.http.entity.mime.content.AbstractContentBody;
 import org.apache.http.util.Args;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
-import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+public class RemoteAgentStreamBody extends AbstractContentBody implements ContentSource.Provider {
+    /*
+     * Custom Content Body to stream a file store in a remote agent to the local request
+     * The agent reads the file in large blocks and pushes them to the controller while the request is written:
+     * the blocks received by the controller wait in a bounded queue, so the agent keeps sending while the socket
+     * is busy and the controller memory stays bounded (WINDOW_SIZE blocks of BUFFER_SIZE bytes at most)
+     * The size and the modification time found during the search are sent with the request: the agent checks them
+     * before streaming, so the upload doesn't need any other call to the agent than the transfer itself
+     * Text files can be compressed by the agent, for the remoting channel only or for the request too
+     * An asynchronous transport reads the received blocks as they arrive through openSource, without waiting for them
+     */
+
+    private static final Logger LOGGER = Logger.getLogger(RemoteAgentStreamBody.class.getName());
+
+    // Size of the blocks read by the agent
+    static /* not final */ int BUFFER_SIZE = Integer.getInteger(
+            RemoteAgentStreamBody.class.getName() + ".bufferSize", 1024 * 1024
+    );
+    // Number of blocks received from the agent which can wait for the socket
+    static /* not final */ int WINDOW_SIZE = Integer.getInteger(
+            RemoteAgentStreamBody.class.getName() + ".windowSize", 8
+    );
+    // Delay between two checks of the agent task while waiting for a block
+    private static final long POLL_DELAY = 100L;
 
-public class RemoteAgentStreamBody extends AbstractContentBody {
-    // Custom Content Body to stream a file store in a remote agent to the local request
     private FilePath filePath;
     private final String filename;
+    // Metadata resolved while searching the file, or by the first call to the agent when unknown
+    private volatile FileMetadata metadata;
+    private volatile boolean metadataResolved;
+    private Compression compression = Compression.NONE;
+    private PrintStream logger = null;
+    private volatile TransferMetrics lastTransfer = null;
 
 
     public RemoteAgentStreamBody(FilePath filePath, ContentType contentType, String filename) {
+        this(filePath, contentType, filename, null);
+    }
+
+    public RemoteAgentStreamBody(FilePath filePath, ContentType contentType, String filename, FileMetadata metadata) {
         super(contentType);
         Args.notNull(filePath, "Input stream");
         this.filePath = filePath;
         this.filename = filename;
+        this.metadata = metadata;
+        this.metadataResolved = metadata != null;
     }
 
 
     public void writeTo(OutputStream out) throws IOException {
-        try {
-            filePath.act(new RemoteAgentStreamBody.CopyToCallable(out));
+        if (DeferredContentStream.defer(out, this)) {
+            return;
+        }
+        try (Transfer transfer = new Transfer()) {
+            transfer.writeTo(out);
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while streaming " + filename + " from the agent");
         }
     }
 
+    @Override
+    public ContentSource openSource() throws IOException {
+        // The transfer from the agent starts when the source is opened and stops when it is closed
+        return new Transfer();
+    }
+
+    private static void waitFor(Future<Void> transfer) throws IOException, InterruptedException {
+        try {
+            transfer.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to read the file on the agent", e.getCause());
+        }
+    }
+
+    private void log(TransferMetrics metrics, boolean completed) {
+        String message = (completed ? "Streamed " : "Stopped streaming ") + filename
+                + (filePath.isRemote() ? " from the agent: " : ": ") + metrics;
+        if (logger != null) {
+            logger.println(message);
+        }
+        LOGGER.log(Level.FINE, message);
+    }
+
 
     public String getTransferEncoding() {
         return "binary";
     }
 
     public long getContentLength() {
-        try {
-            return filePath.length();
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
+        // The request is sent with a chunked encoding when the size is unknown
+        if (compression == Compression.GZIP) {
+            // The compressed size is only known at the end of the stream
+            return -1L;
+        }
+        FileMetadata file = resolveMetadata();
+        return file != null ? file.getSize() : -1L;
+    }
+
+    private FileMetadata resolveMetadata() {
+        /*
+         * Ask the agent for the metadata of the file when the search didn't provide them
+         * The multipart entity asks for the length several times, the agent is only called once
+         * @return: the metadata of the file, null when they can't be read
+         */
+        if (!metadataResolved) {
+            synchronized (this) {
+                if (!metadataResolved) {
+                    try {
+                        metadata = filePath.act(new DescribeCallable());
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Unable to read the size of " + filename + " on the agent", e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                    metadataResolved = true;
+                }
+            }
         }
-        return -1L;
+        return metadata;
     }
 
     public String getFilename() {
@@ -59,20 +165,424 @@ public class RemoteAgentStreamBody extends AbstractContentBody {
         return this.filePath;
     }
 
-    private static class CopyToCallable extends MasterToSlaveFileCallable<Map<String, String>> {
-        // Modified version of FilePath.CopyTo
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    public void setLogger(PrintStream logger) {
+        // Print the throughput of each transfer
+        this.logger = logger;
+    }
+
+    public TransferMetrics getLastTransfer() {
+        // Metrics of the last call to writeTo, null before
+        return lastTransfer;
+    }
+
+    public enum Compression {
+        // Encoding of the file content between the agent and the request
+
+        // The file is sent as is
+        NONE,
+        // The file is compressed by the agent and inflated by the controller, the request is unchanged
+        REMOTING,
+        // The file is compressed with gzip by the agent and sent compressed in the request
+        GZIP
+    }
+
+    private final class Transfer implements ContentSource {
+        // Transfer of the file from the agent, read by blocking (writeTo) or without blocking (ContentSource)
+
+        private final BlockQueue blocks = new BlockQueue(WINDOW_SIZE);
+        private final TransferMetrics metrics = new TransferMetrics();
+        // The blocks compressed for the remoting channel only are inflated before being written to the request
+        private final Inflater inflater = compression == Compression.REMOTING ? new Inflater() : null;
+        private final byte[] inflated = inflater != null ? new byte[BUFFER_SIZE] : null;
+        private final Future<Void> transfer;
+        // Bytes of the request ready to be written
+        private ByteBuffer pending = ByteBuffer.allocate(0);
+        // The agent closed the stream, the result of its task is not known yet
+        private boolean endReceived = false;
+        private boolean completed = false;
+        private boolean closed = false;
+
+        Transfer() throws IOException {
+            try {
+                // The length announced to the server must be the length of the streamed file
+                transfer = filePath.actAsync(new CopyToCallable(blocks, BUFFER_SIZE, resolveMetadata(), compression));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while streaming " + filename + " from the agent");
+            }
+        }
+
+        void writeTo(OutputStream out) throws IOException, InterruptedException {
+            while (true) {
+                while (!pending.hasRemaining()) {
+                    if (completed) {
+                        return;
+                    }
+                    advance(POLL_DELAY);
+                }
+                out.write(pending.array(), pending.arrayOffset() + pending.position(), pending.remaining());
+                metrics.bytes += pending.remaining();
+                pending.position(pending.limit());
+            }
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            try {
+                while (!pending.hasRemaining()) {
+                    if (completed) {
+                        return -1;
+                    }
+                    if (!advance(0)) {
+                        return 0;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while streaming " + filename + " from the agent");
+            }
+            int length = Math.min(pending.remaining(), buffer.remaining());
+            ByteBuffer slice = pending.duplicate();
+            slice.limit(slice.position() + length);
+            buffer.put(slice);
+            pending.position(pending.position() + length);
+            metrics.bytes += length;
+            return length;
+        }
+
+        @Override
+        public void onAvailable(Runnable callback) {
+            if (transfer.isDone()) {
+                // The last block or the error of the agent task can be read
+                callback.run();
+            }
+            else if (!endReceived) {
+                blocks.listen(callback);
+            }
+            // Otherwise the agent task is ending: the caller checks again after a delay
+        }
+
+        private boolean advance(long delay) throws IOException, InterruptedException {
+            /*
+             * Make the next bytes of the request ready, waiting at most the delay for a block of the agent
+             * @return: false when nothing happened within the delay
+             */
+            if (inflater != null && !inflater.needsInput() && !inflater.finished()) {
+                // The last block isn't fully inflated yet
+                inflate();
+                return true;
+            }
+            if (!endReceived) {
+                long waitStart = System.nanoTime();
+                byte[] block = delay > 0 ? blocks.poll(delay) : blocks.poll();
+                metrics.starvedNanos += System.nanoTime() - waitStart;
+                if (block == null) {
+                    if (transfer.isDone()) {
+                        // The agent task failed before closing the stream
+                        waitFor(transfer);
+                    }
+                    return false;
+                }
+                if (block != BlockQueue.END_OF_STREAM) {
+                    metrics.receivedBytes += block.length;
+                    if (inflater != null) {
+                        inflater.setInput(block);
+                        inflate();
+                    } else {
+                        pending = ByteBuffer.wrap(block);
+                    }
+                    return true;
+                }
+                endReceived = true;
+            }
+            if (delay == 0 && !transfer.isDone()) {
+                return false;
+            }
+            // The stream is closed even when the agent task fails, report its error
+            waitFor(transfer);
+            if (inflater != null && !inflater.finished()) {
+                throw new IOException("The compressed stream of " + filename + " is truncated");
+            }
+            completed = true;
+            return true;
+        }
+
+        private void inflate() throws IOException {
+            try {
+                int length = inflater.inflate(inflated);
+                if (length == 0 && !inflater.needsInput() && !inflater.finished()) {
+                    throw new IOException("The compressed stream of " + filename + " can't be inflated");
+                }
+                pending = ByteBuffer.wrap(inflated, 0, length);
+            } catch (DataFormatException e) {
+                throw new IOException("The compressed stream of " + filename + " is corrupted", e);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!completed) {
+                // Stop the agent when the upload fails or is aborted
+                blocks.cancel();
+                transfer.cancel(true);
+            }
+            if (inflater != null) {
+                inflater.end();
+            }
+            metrics.blockedNanos = blocks.blockedNanos;
+            metrics.end();
+            lastTransfer = metrics;
+            log(metrics, completed);
+        }
+    }
+
+    public static final class TransferMetrics {
+        // Throughput of a transfer, and the time spent waiting on each side of the queue
+
+        private final long startNanos = System.nanoTime();
+        private long durationNanos;
+        // Bytes written to the request
+        private long bytes;
+        // Bytes received from the agent, fewer than the bytes of the request when the remoting channel is compressed
+        private long receivedBytes;
+        // Time the request waited for the agent: the socket was starved
+        private long starvedNanos;
+        // Time the agent waited for the request: the queue was full
+        private long blockedNanos;
+
+        void end() {
+            durationNanos = System.nanoTime() - startNanos;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getReceivedBytes() {
+            return receivedBytes;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        public long getStarvedNanos() {
+            return starvedNanos;
+        }
+
+        public long getBlockedNanos() {
+            return blockedNanos;
+        }
+
+        public double getMebibytesPerSecond() {
+            return durationNanos == 0 ? 0 : (bytes / 1048576.0) / (durationNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            String transfer = String.format(
+                    "%.1f MiB in %.1f s (%.1f MiB/s), waited %.1f s for the agent and %.1f s for the connection",
+                    bytes / 1048576.0,
+                    durationNanos / 1e9,
+                    getMebibytesPerSecond(),
+                    starvedNanos / 1e9,
+                    blockedNanos / 1e9
+            );
+            if (receivedBytes != bytes) {
+                transfer += String.format(", %.1f MiB received from the agent", receivedBytes / 1048576.0);
+            }
+            return transfer;
+        }
+    }
+
+    private static final class BlockQueue extends OutputStream {
+        // Controller side of the transfer: the blocks written by the agent wait here for the request
+
+        static final byte[] END_OF_STREAM = new byte[0];
+
+        private final BlockingQueue<byte[]> queue;
+        private final AtomicReference<Runnable> listener = new AtomicReference<>();
+        private volatile boolean cancelled = false;
+        private volatile long blockedNanos = 0;
+
+        BlockQueue(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                // The remoting layer reuses its buffers
+                byte[] block = new byte[len];
+                System.arraycopy(b, off, block, 0, len);
+                put(block);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            put(END_OF_STREAM);
+        }
+
+        private void put(byte[] block) throws IOException {
+            long start = System.nanoTime();
+            try {
+                while (!queue.offer(block, POLL_DELAY, TimeUnit.MILLISECONDS)) {
+                    if (cancelled) {
+                        throw new IOException("The upload of the file was cancelled");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending the file to the controller");
+            } finally {
+                blockedNanos += System.nanoTime() - start;
+            }
+            if (cancelled) {
+                queue.clear();
+                throw new IOException("The upload of the file was cancelled");
+            }
+            notifyListener();
+        }
+
+        byte[] poll(long delay) throws InterruptedException {
+            return queue.poll(delay, TimeUnit.MILLISECONDS);
+        }
+
+        byte[] poll() {
+            return queue.poll();
+        }
+
+        void listen(Runnable callback) {
+            // Call back once on the next block, or now if a block is already waiting
+            listener.set(callback);
+            if (!queue.isEmpty()) {
+                notifyListener();
+            }
+        }
+
+        private void notifyListener() {
+            Runnable callback = listener.getAndSet(null);
+            if (callback != null) {
+                callback.run();
+            }
+        }
+
+        void cancel() {
+            // Release the writer blocked on a full queue
+            cancelled = true;
+            queue.clear();
+        }
+    }
+
+    private static class DescribeCallable extends MasterToSlaveFileCallable<FileMetadata> {
+        // Size and modification time of the file in a single call
+        public FileMetadata invoke(File f, VirtualChannel channel) throws IOException {
+            if (!f.isFile()) {
+                throw new FileNotFoundException(f + " doesn't exist");
+            }
+            return new FileMetadata(f.getName(), f.length(), f.lastModified(), null);
+        }
+    }
+
+    private static class CopyToCallable extends MasterToSlaveFileCallable<Void> {
+        // Modified version of FilePath.CopyTo, reading the file in large blocks
         private final RemoteOutputStream out;
+        private final int bufferSize;
+        // Size and modification time announced to the server, -1 and 0 when unknown
+        private final long expectedSize;
+        private final long expectedLastModified;
+        private final Compression compression;
 
-        CopyToCallable(OutputStream out) {
+        CopyToCallable(OutputStream out, int bufferSize, FileMetadata metadata, Compression compression) {
             this.out = new RemoteOutputStream(out);
+            this.bufferSize = bufferSize;
+            this.expectedSize = metadata != null ? metadata.getSize() : -1L;
+            this.expectedLastModified = metadata != null ? metadata.getLastModified() : 0L;
+            this.compression = compression;
         }
 
-        public Map<String, String> invoke(File f, VirtualChannel channel) throws IOException {
-
-            InputStream fis = Files.newInputStream(f.toPath());
-            // Use of copyLarge to stream big files
-            org.apache.commons.io.IOUtils.copyLarge(fis, this.out);
+        public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            try (OutputStream stream = encode(this.out, compression, bufferSize);
+                 InputStream fis = Files.newInputStream(f.toPath())) {
+                checkUnchanged(f);
+                byte[] buffer = new byte[bufferSize];
+                long sent = 0;
+                int read;
+                while ((read = fis.read(buffer)) >= 0) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException("The upload of " + f + " was cancelled");
+                    }
+                    sent += read;
+                    if (expectedSize >= 0 && sent > expectedSize) {
+                        // Sending more bytes than the announced length would corrupt the request
+                        throw new IOException(f + " grew while it was uploaded");
+                    }
+                    stream.write(buffer, 0, read);
+                }
+                if (expectedSize >= 0 && sent != expectedSize) {
+                    throw new IOException(f + " shrank while it was uploaded");
+                }
+            }
             return null;
         }
+
+        private static OutputStream encode(OutputStream out, Compression compression, int bufferSize)
+                throws IOException {
+            /*
+             * Compress the blocks sent to the controller, the compressed stream is ended when it is closed
+             * The remoting channel favors the speed, the request favors the size of the file on the network
+             */
+            switch (compression) {
+                case REMOTING:
+                    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                    return new DeflaterOutputStream(out, deflater, bufferSize) {
+                        @Override
+                        public void close() throws IOException {
+                            try {
+                                super.close();
+                            } finally {
+                                deflater.end();
+                            }
+                        }
+                    };
+                case GZIP:
+                    return new GZIPOutputStream(out, bufferSize);
+                default:
+                    return out;
+            }
+        }
+
+        private void checkUnchanged(File f) throws IOException {
+            /*
+             * Check the file against the metadata found during the search
+             * A file replaced by the build since the search would be sent with a wrong length
+             */
+            if (expectedSize >= 0 && f.length() != expectedSize) {
+                throw new IOException(
+                        f + " changed since it was found: " + f.length() + " bytes instead of " + expectedSize
+                );
+            }
+            if (expectedLastModified != 0L && f.lastModified() != expectedLastModified) {
+                throw new IOException(f + " changed since it was found: it was modified after the search");
+            }
+        }
     }
 }
@@ -0,0 +1,262 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+public class ResolveUploadPlan extends MasterToSlaveFileCallable<UploadPlan> {
+    /*
+     * Resolve every file needed by the upload (build, mapping file...) with their metadata
+     * in a single workspace walk, so the whole pre-upload phase costs one call to the agent.
+     * The walk stops as soon as the selected files are known (ex: the first match of each pattern),
+     * with the FIRST selection it is skipped when the files are still at the location hinted by the previous search
+     */
+
+    private final List<String> patterns = new ArrayList<>();
+    private final boolean computeDigest;
+    // Patterns whose selected file is hashed when computeDigest is set, every pattern when empty
+    private List<String> digestPatterns = new ArrayList<>();
+    private boolean useWorkspaceIndex = false;
+    private int discoveryParallelism = 0;
+    private MatchSelection matchSelection = MatchSelection.FIRST;
+    private List<String> discoveryExcludes = new ArrayList<>();
+    // Location of the files found by the previous search, indexed by pattern
+    private Map<String, String> locationHints = new LinkedHashMap<>();
+
+    public ResolveUploadPlan(boolean computeDigest, String... patterns) {
+        this.computeDigest = computeDigest;
+        for (String pattern : patterns) {
+            if (pattern != null && !pattern.isEmpty() && !this.patterns.contains(pattern)) {
+                this.patterns.add(pattern);
+            }
+        }
+    }
+
+    @Override
+    public UploadPlan invoke(File basedir, VirtualChannel channel) throws IOException {
+        if (patterns.isEmpty()) {
+            return new UploadPlan();
+        }
+
+        if (!useWorkspaceIndex) {
+            return resolve(basedir, new DirectoryLister());
+        }
+
+        WorkspaceIndex index = WorkspaceIndex.load(basedir);
+        UploadPlan plan = resolve(basedir, index);
+        if (plan.resolvedPatterns() < patterns.size()) {
+            // The index may be stale: the result doesn't rely on it when a file is missing
+            index = new WorkspaceIndex();
+            plan = resolve(basedir, index);
+        }
+        index.save(basedir);
+        return plan;
+    }
+
+    UploadPlan resolve(File basedir, DirectoryLister lister) throws IOException {
+        /*
+         * Select a file for each pattern while the workspace is walked, the walk stops as soon as the selection is known
+         */
+        GlobMatcher matcher = new GlobMatcher(patterns);
+        FindFiles findFiles = new FindFiles(matcher);
+        findFiles.setParallelism(discoveryParallelism);
+        findFiles.setExcludes(new DirectoryExcludes(discoveryExcludes));
+
+        Selection selection = new Selection(basedir, matcher);
+        boolean selected = false;
+        if (matchSelection == MatchSelection.FIRST) {
+            // The files usually stay at the same location: check the previous locations before walking
+            for (String hint : locationHints.values()) {
+                if (findFiles.isSearched(hint) && !selection.testHint(hint)) {
+                    selected = true;
+                }
+            }
+        }
+        if (!selected && matchSelection == MatchSelection.FIRST) {
+            // The parallel walk reports the matches in any order: it is bounded by the selected files instead
+            findFiles.walk(basedir, lister, selection, selection::getCutoff);
+        } else if (!selected) {
+            findFiles.walk(basedir, lister, selection);
+        }
+
+        UploadPlan plan = new UploadPlan();
+        for (int i = 0; i < patterns.size(); i++) {
+            if (selection.matches.get(i).size() > 1 && matchSelection == MatchSelection.FAIL_ON_AMBIGUOUS) {
+                List<String> ambiguousMatches = new ArrayList<>(selection.matches.get(i));
+                ambiguousMatches.sort(FindFiles.WALK_ORDER);
+                plan.putAmbiguous(patterns.get(i), ambiguousMatches);
+            } else if (selection.selected[i] != null) {
+                // The digest is only computed for the selected files
+                plan.put(patterns.get(i), describe(
+                        basedir,
+                        selection.selected[i].getRelativePath(),
+                        digestPatterns.isEmpty() || digestPatterns.contains(patterns.get(i))
+                ));
+            }
+        }
+        return plan;
+    }
+
+    private final class Selection implements Predicate<String> {
+        // Keep the selected file of each pattern, called by the walking threads
+
+        private final File basedir;
+        private final GlobMatcher matcher;
+        private final FileMetadata[] selected;
+        // The hinted files stay selected even when the walk finds a match before them
+        private final boolean[] hinted;
+        private final List<List<String>> matches = new ArrayList<>();
+        // Last of the first matches of the patterns which aren't hinted, null until each of them has a match
+        private volatile String cutoff = null;
+
+        Selection(File basedir, GlobMatcher matcher) {
+            this.basedir = basedir;
+            this.matcher = matcher;
+            this.selected = new FileMetadata[patterns.size()];
+            this.hinted = new boolean[patterns.size()];
+            for (int i = 0; i < patterns.size(); i++) {
+                matches.add(new ArrayList<>());
+            }
+        }
+
+        @Override
+        public synchronized boolean test(String relativePath) {
+            /*
+             * Record a match of the walk
+             * @return: false when the walk can stop
+             */
+            File file = new File(basedir, relativePath);
+            for (int i = 0; i < patterns.size(); i++) {
+                // The listing may come from a stale index
+                if (!matcher.matches(i, relativePath) || !file.isFile()) {
+                    continue;
+                }
+                matches.get(i).add(relativePath);
+                FileMetadata candidate = new FileMetadata(relativePath, file.length(), file.lastModified(), null);
+                if (selected[i] == null || isBetter(candidate, i)) {
+                    selected[i] = candidate;
+                }
+            }
+            updateCutoff();
+
+            for (int i = 0; i < patterns.size(); i++) {
+                if (matchSelection == MatchSelection.FIRST && selected[i] == null) {
+                    return true;
+                }
+                if (matchSelection == MatchSelection.FAIL_ON_AMBIGUOUS && matches.get(i).size() > 1) {
+                    return false;
+                }
+            }
+            return matchSelection != MatchSelection.FIRST;
+        }
+
+        synchronized boolean testHint(String relativePath) {
+            /*
+             * Record the file found at the location hinted by the previous search
+             * @return: false when the walk can be skipped
+             */
+            boolean needsWalk = test(relativePath);
+            for (int i = 0; i < patterns.size(); i++) {
+                hinted[i] = hinted[i] || (selected[i] != null && selected[i].getRelativePath().equals(relativePath));
+            }
+            updateCutoff();
+            return needsWalk;
+        }
+
+        String getCutoff() {
+            return cutoff;
+        }
+
+        private void updateCutoff() {
+            /*
+             * The walk still needs the files up to the last selected file: a file after it can't replace a selection
+             */
+            String last = null;
+            for (int i = 0; i < patterns.size(); i++) {
+                if (hinted[i]) {
+                    continue;
+                }
+                if (selected[i] == null) {
+                    cutoff = null;
+                    return;
+                }
+                String path = selected[i].getRelativePath();
+                if (last == null || FindFiles.WALK_ORDER.compare(path, last) > 0) {
+                    last = path;
+                }
+            }
+            cutoff = last;
+        }
+
+        private boolean isBetter(FileMetadata candidate, int pattern) {
+            /*
+             * Compare a match with the file currently selected for the pattern
+             * @return: true when the match replaces the selected file
+             */
+            switch (matchSelection) {
+                case NEWEST:
+                    return isNewer(candidate, selected[pattern]);
+                case FIRST:
+                    // The parallel walk may find the first file of the walk order after another match
+                    return !hinted[pattern] && FindFiles.WALK_ORDER.compare(
+                            candidate.getRelativePath(), selected[pattern].getRelativePath()
+                    ) < 0;
+                default:
+                    return false;
+            }
+        }
+
+        private boolean isNewer(FileMetadata candidate, FileMetadata current) {
+            // On the same modification time, keep the first file of the walk order
+            if (candidate.getLastModified() != current.getLastModified()) {
+                return candidate.getLastModified() > current.getLastModified();
+            }
+            return FindFiles.WALK_ORDER.compare(candidate.getRelativePath(), current.getRelativePath()) < 0;
+        }
+    }
+
+    public void setUseWorkspaceIndex(boolean useWorkspaceIndex) {
+        this.useWorkspaceIndex = useWorkspaceIndex;
+    }
+
+    public void setDiscoveryParallelism(int discoveryParallelism) {
+        this.discoveryParallelism = discoveryParallelism;
+    }
+
+    public void setMatchSelection(MatchSelection matchSelection) {
+        this.matchSelection = matchSelection;
+    }
+
+    public void setDiscoveryExcludes(List<String> discoveryExcludes) {
+        this.discoveryExcludes = new ArrayList<>(discoveryExcludes);
+    }
+
+    public void setLocationHints(Map<String, String> locationHints) {
+        this.locationHints = new LinkedHashMap<>(locationHints);
+    }
+
+    public void setDigestPatterns(List<String> digestPatterns) {
+        this.digestPatterns = new ArrayList<>(digestPatterns);
+    }
+
+    private FileMetadata describe(File basedir, String relativePath, boolean digest) throws IOException {
+        File file = new File(basedir, relativePath);
+        String sha256 = null;
+        if (computeDigest && digest) {
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                sha256 = DigestUtils.sha256Hex(in);
+            }
+        }
+        return new FileMetadata(relativePath, file.length(), file.lastModified(), sha256);
+    }
+}
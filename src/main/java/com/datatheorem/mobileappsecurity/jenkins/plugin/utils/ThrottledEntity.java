@@ -0,0 +1,96 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+public class ThrottledEntity extends HttpEntityWrapper {
+    // Request body sent within the bandwidth allowed by a limiter, whatever the content of the body
+    // The upload is counted in the sharing of the bandwidth while the body is written
+
+    private final BandwidthLimiter limiter;
+    private final PrintStream logger;
+
+    public ThrottledEntity(HttpEntity entity, BandwidthLimiter limiter, PrintStream logger) {
+        super(entity);
+        this.limiter = limiter;
+        this.logger = logger;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        try (BandwidthLimiter.Stream stream = limiter.open()) {
+            wrappedEntity.writeTo(new ThrottledOutputStream(out, stream));
+        }
+    }
+
+    public static String describe(long bytesPerSecond) {
+        return String.format("%.1f Mbit/s", bytesPerSecond * 8 / 1e6);
+    }
+
+    private final class ThrottledOutputStream extends FilterOutputStream {
+        // The request stream is not closed: the entity doesn't own it
+
+        private final BandwidthLimiter.Stream stream;
+        private long reportedRate = -1;
+        private int reportedStreams = -1;
+
+        ThrottledOutputStream(OutputStream out, BandwidthLimiter.Stream stream) {
+            super(out);
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                while (len > 0) {
+                    int granted = stream.acquire(len);
+                    report();
+                    out.write(b, off, granted);
+                    off += granted;
+                    len -= granted;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the upload bandwidth");
+            }
+        }
+
+        private void report() {
+            /*
+             * Print the share of the bandwidth of the upload when it changes:
+             * when another upload starts or ends, or when the limit is changed
+             */
+            long rate = limiter.getBytesPerSecond();
+            int streams = limiter.getActiveStreams();
+            if (rate == reportedRate && streams == reportedStreams) {
+                return;
+            }
+            reportedRate = rate;
+            reportedStreams = streams;
+            if (rate > 0) {
+                logger.println(
+                        "Upload bandwidth limited to " + describe(rate) + " shared by " + streams + " upload(s): " +
+                        describe(stream.getAllocation()) + " for this upload"
+                );
+            } else {
+                logger.println("Upload bandwidth not limited");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Workspace files to upload, indexed by the glob pattern which found them.
+ * <p>
+ * With the FAIL_ON_AMBIGUOUS selection, the patterns respected by several files have no file to upload
+ * and keep the ambiguous matches instead.
+ * </p>
+ */
+public class UploadPlan implements Serializable {
+
+    private final Map<String, FileMetadata> files = new LinkedHashMap<>();
+    private final Map<String, List<String>> ambiguousMatches = new LinkedHashMap<>();
+
+    void put(String pattern, FileMetadata file) {
+        files.put(pattern, file);
+    }
+
+    void putAmbiguous(String pattern, List<String> matches) {
+        ambiguousMatches.put(pattern, matches);
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    int resolvedPatterns() {
+        // Number of patterns with either a file or an ambiguous result
+        return files.size() + ambiguousMatches.size();
+    }
+
+    public FileMetadata get(String pattern) {
+        // null when no workspace file respects the pattern
+        return files.get(pattern);
+    }
+
+    public List<String> getAmbiguousMatches(String pattern) {
+        // empty unless the pattern is respected by several files with the FAIL_ON_AMBIGUOUS selection
+        List<String> matches = ambiguousMatches.get(pattern);
+        return matches == null ? Collections.<String>emptyList() : matches;
+    }
+}
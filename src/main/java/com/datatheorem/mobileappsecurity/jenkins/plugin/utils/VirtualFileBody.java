@@ -0,0 +1,54 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import jenkins.util.VirtualFile;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import org.apache.http.util.Args;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class VirtualFileBody extends AbstractContentBody {
+    // Custom Content Body to stream an archived artifact from the artifact manager of the run,
+    // which may store it outside of the controller (ex: S3)
+    private final VirtualFile file;
+    private final String filename;
+    // Size of the artifact, -1 when unknown
+    private final long contentLength;
+
+    public VirtualFileBody(VirtualFile file, ContentType contentType) {
+        super(contentType);
+        Args.notNull(file, "Virtual file");
+        this.file = file;
+        this.filename = file.getName();
+        long length;
+        try {
+            length = file.length();
+        } catch (IOException e) {
+            length = -1L;
+        }
+        this.contentLength = length;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        // The artifact manager only provides a blocking stream
+        DeferredContentStream.refuse(out, filename);
+        try (InputStream in = file.open()) {
+            // Use of copyLarge to stream big files
+            org.apache.commons.io.IOUtils.copyLarge(in, out);
+        }
+    }
+
+    public String getTransferEncoding() {
+        return "binary";
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public String getFilename() {
+        return this.filename;
+    }
+}
@@ -0,0 +1,163 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Directory listings of a workspace kept on the agent between two searches.
+ * <p>
+ * The index records the modification time of each visited directory with its listing.
+ * On the next search only the directories whose modification time changed are listed again.
+ * The index is stored next to the workspace, in the workspace@tmp directory used by Jenkins for temporary files.
+ * </p>
+ */
+public class WorkspaceIndex extends DirectoryLister {
+
+    private static final Logger LOGGER = Logger.getLogger(WorkspaceIndex.class.getName());
+    private static final int FORMAT_VERSION = 1;
+    private static final String INDEX_FILE_NAME = "datatheorem-workspace-index.bin";
+
+    // A listing taken less than 2 seconds after the directory modification may miss a change done in the
+    // same modification time granularity: it is listed again on the next search
+    private static final long RACY_DELAY = 2000L;
+
+    private static final class Entry {
+        final long lastModified;
+        final long listedAt;
+        final Listing listing;
+
+        Entry(long lastModified, long listedAt, Listing listing) {
+            this.lastModified = lastModified;
+            this.listedAt = listedAt;
+            this.listing = listing;
+        }
+    }
+
+    private final Map<String, Entry> entries;
+    // Only the directories visited by the last search are saved, the deleted directories are forgotten
+    private final Map<String, Entry> visited = new ConcurrentHashMap<>();
+    private final AtomicInteger reused = new AtomicInteger();
+
+    public WorkspaceIndex() {
+        this(new HashMap<>());
+    }
+
+    private WorkspaceIndex(Map<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    @Override
+    public Listing list(File basedir, String relativeDirectory) {
+        File directory = relativeDirectory.isEmpty() ? basedir : new File(basedir, relativeDirectory);
+        long lastModified = directory.lastModified();
+
+        Entry entry = entries.get(relativeDirectory);
+        if (entry != null && lastModified != 0L && entry.lastModified == lastModified
+                && entry.listedAt - lastModified >= RACY_DELAY) {
+            reused.incrementAndGet();
+            visited.put(relativeDirectory, entry);
+            return entry.listing;
+        }
+
+        long listedAt = System.currentTimeMillis();
+        Listing listing = super.list(basedir, relativeDirectory);
+        if (listing != null) {
+            visited.put(relativeDirectory, new Entry(lastModified, listedAt, listing));
+        }
+        return listing;
+    }
+
+    public int getReusedListings() {
+        return reused.get();
+    }
+
+    static File indexFile(File basedir) {
+        return new File(basedir.getParentFile(), basedir.getName() + "@tmp/" + INDEX_FILE_NAME);
+    }
+
+    public static WorkspaceIndex load(File basedir) {
+        /*
+         * Load the index of the workspace
+         * @return: the stored index, an empty index if it doesn't exist or can't be read
+         */
+        File file = indexFile(basedir);
+        if (!file.isFile()) {
+            return new WorkspaceIndex();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                return new WorkspaceIndex();
+            }
+            int count = in.readInt();
+            Map<String, Entry> entries = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                String directory = in.readUTF();
+                long lastModified = in.readLong();
+                long listedAt = in.readLong();
+                String[] files = readNames(in);
+                String[] directories = readNames(in);
+                entries.put(directory, new Entry(lastModified, listedAt, new Listing(files, directories)));
+            }
+            return new WorkspaceIndex(entries);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Ignoring unreadable workspace index " + file, e);
+            return new WorkspaceIndex();
+        }
+    }
+
+    public void save(File basedir) {
+        /*
+         * Store the directories visited by the last search, the index is only an optimization so errors are ignored
+         */
+        if (visited.isEmpty()) {
+            // Nothing was listed (ex: the files were found at their previous location), keep the stored index
+            return;
+        }
+        File file = indexFile(basedir);
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            File tmp = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(visited.size());
+                for (Map.Entry<String, Entry> entry : visited.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue().lastModified);
+                    out.writeLong(entry.getValue().listedAt);
+                    writeNames(out, entry.getValue().listing.files);
+                    writeNames(out, entry.getValue().listing.directories);
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Unable to save the workspace index " + file, e);
+        }
+    }
+
+    private static String[] readNames(DataInputStream in) throws IOException {
+        String[] names = new String[in.readInt()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = in.readUTF();
+        }
+        return names;
+    }
+
+    private static void writeNames(DataOutputStream out, String[] names) throws IOException {
+        out.writeInt(names.length);
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+}
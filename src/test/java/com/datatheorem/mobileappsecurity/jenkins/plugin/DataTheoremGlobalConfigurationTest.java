@@ -0,0 +1,30 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit Test of the global configuration of the plugin
+ */
+public class DataTheoremGlobalConfigurationTest {
+
+    /**
+     * Test the URLs accepted to replace the upload_init endpoint
+     * <p>
+     * Verify that an https URL and an http URL of the controller are accepted, and that an http URL of another
+     * host, which would send the API key in cleartext, or an invalid URL are rejected
+     * </p>
+     */
+    @Test()
+    public void testAllowedUploadInitUrl() {
+        Assert.assertTrue(DataTheoremGlobalConfiguration.isAllowedUploadInitUrl("https://test.example/upload_init"));
+        Assert.assertTrue(DataTheoremGlobalConfiguration.isAllowedUploadInitUrl("http://127.0.0.1:8080/upload_init"));
+        Assert.assertTrue(DataTheoremGlobalConfiguration.isAllowedUploadInitUrl("http://localhost/upload_init"));
+
+        Assert.assertFalse(DataTheoremGlobalConfiguration.isAllowedUploadInitUrl("http://test.example/upload_init"));
+        Assert.assertFalse(DataTheoremGlobalConfiguration.isAllowedUploadInitUrl("ftp://test.example/upload_init"));
+        Assert.assertFalse(DataTheoremGlobalConfiguration.isAllowedUploadInitUrl("https://"));
+        Assert.assertFalse(DataTheoremGlobalConfiguration.isAllowedUploadInitUrl("not a url"));
+        Assert.assertFalse(DataTheoremGlobalConfiguration.isAllowedUploadInitUrl(""));
+    }
+}
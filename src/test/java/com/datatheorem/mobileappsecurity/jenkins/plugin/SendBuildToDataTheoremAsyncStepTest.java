@@ -0,0 +1,64 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin;
+
+import hudson.model.Result;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Functional tests of the sendBuildToDataTheoremAsync and waitForDataTheoremUpload pipeline steps.
+ */
+public class SendBuildToDataTheoremAsyncStepTest {
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void testAsyncStepTakesThePublisherArguments() throws Exception {
+        /*
+         * Check that the step finds the build with the publisher arguments and uploads nothing with dontUpload
+         */
+        WorkflowJob job = jenkins.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition(
+                "node {\n" +
+                "  writeFile file: 'outputs/app.apk', text: 'apk'\n" +
+                "  def uploadId = sendBuildToDataTheoremAsync(buildToUpload: 'outputs/*.apk', dontUpload: true)\n" +
+                "  echo \"upload id: ${uploadId}\"\n" +
+                "}",
+                true
+        ));
+
+        WorkflowRun run = jenkins.assertBuildStatus(Result.SUCCESS, job.scheduleBuild2(0));
+        jenkins.assertLogContains("Skipping upload... \"Don't Upload\" option enabled", run);
+        jenkins.assertLogContains("upload id: null", run);
+    }
+
+    @Test
+    public void testAsyncStepWithoutBuild() throws Exception {
+        /*
+         * Check that the step makes the run unstable when the build can't be found
+         */
+        WorkflowJob job = jenkins.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition(
+                "node {\n" +
+                "  sendBuildToDataTheoremAsync(buildToUpload: 'missing.apk', dataTheoremUploadApiKey: 'key')\n" +
+                "}",
+                true
+        ));
+
+        WorkflowRun run = jenkins.assertBuildStatus(Result.UNSTABLE, job.scheduleBuild2(0));
+        jenkins.assertLogContains("Unable to find any build with name : missing.apk", run);
+    }
+
+    @Test
+    public void testWaitForUnknownUpload() throws Exception {
+        WorkflowJob job = jenkins.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition("waitForDataTheoremUpload('unknown')", true));
+
+        WorkflowRun run = jenkins.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0));
+        jenkins.assertLogContains("Unknown Data Theorem upload unknown", run);
+    }
+}
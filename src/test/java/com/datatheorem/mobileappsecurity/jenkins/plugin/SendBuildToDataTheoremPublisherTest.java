@@ -10,6 +10,8 @@ import org.jvnet.hudson.test.JenkinsRule;
 
 import org.apache.commons.lang.SystemUtils;
 
+import java.util.Arrays;
+
 /**
  * Functional tests of the sendBuildToDataTheorem Publisher plugin.
  * <p>
@@ -64,4 +66,34 @@ public class SendBuildToDataTheoremPublisherTest {
             jenkins.assertLogContains(expectedString, completedBuild);
         }
     }
+
+    @Test
+    public void testAdditionalBuilds() throws Exception {
+        /*
+         * Check that the additional builds are found with the main build, and that a missing one makes the build unstable
+         */
+        if (SystemUtils.IS_OS_UNIX) {
+            FreeStyleProject job = jenkins.createFreeStyleProject();
+
+            job.getBuildersList().add(
+                    new hudson.tasks.Shell("#!/bin/bash\n " +
+                            "mkdir -p free paid && touch free/app-free.apk paid/app-paid.apk"));
+
+            SendBuildToDataTheoremPublisher sendBuilder = new SendBuildToDataTheoremPublisher("free/*.apk");
+            sendBuilder.setAdditionalBuilds(Arrays.asList(
+                    new AdditionalBuild("paid/*.apk")
+            ));
+            sendBuilder.setDontUpload(true);
+
+            job.getPublishersList().add(sendBuilder);
+            jenkins.assertBuildStatus(Result.SUCCESS, job.scheduleBuild2(0));
+
+            sendBuilder.setAdditionalBuilds(Arrays.asList(
+                    new AdditionalBuild("paid/*.apk"),
+                    new AdditionalBuild("missing/*.apk")
+            ));
+            FreeStyleBuild completedBuild = jenkins.assertBuildStatus(Result.UNSTABLE, job.scheduleBuild2(0));
+            jenkins.assertLogContains("Unable to find any build with name : missing/*.apk", completedBuild);
+        }
+    }
 }
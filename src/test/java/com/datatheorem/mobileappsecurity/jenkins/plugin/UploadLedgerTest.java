@@ -0,0 +1,92 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin;
+
+import hudson.XmlFile;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+/**
+ * Unit Test of the ledger of the uploaded builds
+ */
+public class UploadLedgerTest {
+
+    private static final String SHA256 = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final int maxEntries = UploadLedger.MAX_ENTRIES;
+
+    @After
+    public void tearDown() {
+        UploadLedger.MAX_ENTRIES = maxEntries;
+    }
+
+    private XmlFile ledgerFile() {
+        return new XmlFile(new File(folder.getRoot(), "ledger.xml"));
+    }
+
+    /**
+     * Test the identification of an upload
+     * <p>
+     * Verify that an upload is only found with the same digest, API key and release type
+     * </p>
+     */
+    @Test()
+    public void testFindUpload() {
+        UploadLedger ledger = new UploadLedger(ledgerFile());
+        Assert.assertNull(ledger.find(SHA256, "apiKey", "PRE_PROD"));
+
+        ledger.record(SHA256, "apiKey", "PRE_PROD", "job#1");
+
+        UploadLedger.Entry entry = ledger.find(SHA256, "apiKey", "PRE_PROD");
+        Assert.assertNotNull(entry);
+        Assert.assertEquals("job#1", entry.getUploadedBy());
+        Assert.assertEquals(SHA256, entry.getSha256());
+        Assert.assertNull(ledger.find(SHA256, "otherApiKey", "PRE_PROD"));
+        Assert.assertNull(ledger.find(SHA256, "apiKey", "ENTERPRISE"));
+        Assert.assertNull(ledger.find(SHA256.replace('9', '8'), "apiKey", "PRE_PROD"));
+    }
+
+    /**
+     * Test the persistence of the ledger
+     * <p>
+     * Verify that the uploads are found by a ledger loaded from the same file
+     * </p>
+     */
+    @Test()
+    public void testLoadLedger() {
+        new UploadLedger(ledgerFile()).record(SHA256, "apiKey", "PRE_PROD", "job#1");
+
+        UploadLedger ledger = new UploadLedger(ledgerFile());
+        ledger.load();
+
+        Assert.assertEquals("job#1", ledger.find(SHA256, "apiKey", "PRE_PROD").getUploadedBy());
+    }
+
+    /**
+     * Test the size limit of the ledger
+     * <p>
+     * Verify that the oldest uploads are forgotten first, a build uploaded again being the newest
+     * </p>
+     */
+    @Test()
+    public void testForgetOldestUploads() {
+        UploadLedger.MAX_ENTRIES = 2;
+        UploadLedger ledger = new UploadLedger(ledgerFile());
+
+        ledger.record("first", "apiKey", "PRE_PROD", "job#1");
+        ledger.record("second", "apiKey", "PRE_PROD", "job#2");
+        ledger.record("first", "apiKey", "PRE_PROD", "job#3");
+        ledger.record("third", "apiKey", "PRE_PROD", "job#4");
+
+        Assert.assertEquals(2, ledger.size());
+        Assert.assertNull(ledger.find("second", "apiKey", "PRE_PROD"));
+        Assert.assertEquals("job#3", ledger.find("first", "apiKey", "PRE_PROD").getUploadedBy());
+        Assert.assertNotNull(ledger.find("third", "apiKey", "PRE_PROD"));
+    }
+}
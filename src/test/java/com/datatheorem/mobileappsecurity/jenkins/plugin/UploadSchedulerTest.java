@@ -0,0 +1,234 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin;
+
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.SendBuildMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Unit Test of the queue of the uploads of the controller
+ */
+public class UploadSchedulerTest {
+
+    private static final PrintStream LOGGER = new PrintStream(new ByteArrayOutputStream());
+
+    private static Thread startUpload(UploadScheduler scheduler, String apiKey, int priority, String releaseType,
+                                      PrintStream logger, List<String> started, String name) {
+        Thread thread = new Thread(() -> {
+            CompletableFuture<SendBuildMessage> upload = scheduler.schedule(
+                    apiKey, priority, releaseType, null, 0, null, logger, Runnable::run, () -> {
+                        started.add(name);
+                        return CompletableFuture.completedFuture(new SendBuildMessage(true, name));
+                    }
+            );
+            try {
+                upload.get();
+            } catch (InterruptedException e) {
+                // The build waiting for the upload is aborted
+                upload.cancel(true);
+                started.add(name + " failed");
+            } catch (Exception e) {
+                started.add(name + " failed");
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitWaiting(UploadScheduler scheduler, int waiting) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getWaiting() != waiting) {
+            Assert.assertTrue("Uploads not queued", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Test the global cap
+     * <p>
+     * Verify that an upload waits while the other uploads use all the slots, prints its position,
+     * and starts when a slot is released
+     * </p>
+     */
+    @Test()
+    public void testGlobalCap() throws InterruptedException {
+        UploadScheduler scheduler = new UploadScheduler(1, 0);
+        UploadScheduler.Ticket running = scheduler.enqueue("apiKey", 0, "PRE_PROD", LOGGER);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        List<String> started = Collections.synchronizedList(new ArrayList<>());
+
+        Thread waiting = startUpload(scheduler, "otherKey", 0, "PRE_PROD", new PrintStream(log, true), started, "second");
+        awaitWaiting(scheduler, 1);
+        Assert.assertTrue(started.isEmpty());
+        Assert.assertTrue(log.toString().contains("Waiting for an upload slot: position 1 in the queue, 1 upload(s) running"));
+
+        scheduler.release(running);
+        waiting.join(5000);
+        Assert.assertEquals(Collections.singletonList("second"), started);
+        Assert.assertTrue(log.toString().contains("Upload slot granted"));
+        Assert.assertEquals(0, scheduler.getRunning());
+    }
+
+    /**
+     * Test a scheduler without any cap
+     * <p>
+     * Verify that it is only unlimited while neither the global cap nor the API key cap is set
+     * </p>
+     */
+    @Test()
+    public void testUnlimited() {
+        UploadScheduler scheduler = new UploadScheduler(0, 0);
+        Assert.assertTrue(scheduler.isUnlimited());
+        scheduler.setLimits(0, 1);
+        Assert.assertFalse(scheduler.isUnlimited());
+        scheduler.setLimits(2, 0);
+        Assert.assertFalse(scheduler.isUnlimited());
+    }
+
+    /**
+     * Test the order of the waiting uploads
+     * <p>
+     * Verify that the highest priority starts first, then the ENTERPRISE builds, then the order of arrival
+     * </p>
+     */
+    @Test()
+    public void testPriorities() throws InterruptedException {
+        UploadScheduler scheduler = new UploadScheduler(1, 0);
+        UploadScheduler.Ticket running = scheduler.enqueue("apiKey", 0, "PRE_PROD", LOGGER);
+        List<String> started = Collections.synchronizedList(new ArrayList<>());
+
+        List<Thread> threads = new ArrayList<>();
+        threads.add(startUpload(scheduler, "apiKey", 0, "PRE_PROD", LOGGER, started, "first pre prod"));
+        awaitWaiting(scheduler, 1);
+        threads.add(startUpload(scheduler, "apiKey", 0, "PRE_PROD", LOGGER, started, "second pre prod"));
+        awaitWaiting(scheduler, 2);
+        threads.add(startUpload(scheduler, "apiKey", 0, "ENTERPRISE", LOGGER, started, "enterprise"));
+        awaitWaiting(scheduler, 3);
+        threads.add(startUpload(scheduler, "apiKey", 5, "PRE_PROD", LOGGER, started, "high priority"));
+        awaitWaiting(scheduler, 4);
+
+        scheduler.release(running);
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        Assert.assertEquals(
+                Arrays.asList("high priority", "enterprise", "first pre prod", "second pre prod"),
+                started
+        );
+    }
+
+    /**
+     * Test the cap of each API key
+     * <p>
+     * Verify that an upload waiting for its API key doesn't delay the uploads of the other API keys
+     * </p>
+     */
+    @Test()
+    public void testApiKeyCap() throws InterruptedException {
+        UploadScheduler scheduler = new UploadScheduler(0, 1);
+        UploadScheduler.Ticket running = scheduler.enqueue("firstKey", 0, "PRE_PROD", LOGGER);
+        List<String> started = Collections.synchronizedList(new ArrayList<>());
+
+        Thread sameKey = startUpload(scheduler, "firstKey", 0, "PRE_PROD", LOGGER, started, "same key");
+        awaitWaiting(scheduler, 1);
+        Thread otherKey = startUpload(scheduler, "secondKey", 0, "PRE_PROD", LOGGER, started, "other key");
+        otherKey.join(5000);
+        Assert.assertEquals(Collections.singletonList("other key"), started);
+
+        scheduler.release(running);
+        sameKey.join(5000);
+        Assert.assertEquals(Arrays.asList("other key", "same key"), started);
+    }
+
+    /**
+     * Test an upload cancelled while waiting, by the interruption of the build waiting for it
+     * <p>
+     * Verify that the upload leaves the queue without taking a slot
+     * </p>
+     */
+    @Test()
+    public void testInterruptedWhileWaiting() throws InterruptedException {
+        UploadScheduler scheduler = new UploadScheduler(1, 0);
+        UploadScheduler.Ticket running = scheduler.enqueue("apiKey", 0, "PRE_PROD", LOGGER);
+        List<String> started = Collections.synchronizedList(new ArrayList<>());
+
+        Thread waiting = startUpload(scheduler, "apiKey", 0, "PRE_PROD", LOGGER, started, "interrupted");
+        awaitWaiting(scheduler, 1);
+        waiting.interrupt();
+        waiting.join(5000);
+
+        Assert.assertEquals(Collections.singletonList("interrupted failed"), started);
+        Assert.assertEquals(0, scheduler.getWaiting());
+        scheduler.release(running);
+        Assert.assertEquals(0, scheduler.getRunning());
+    }
+
+    private static Thread startCoalescedUpload(UploadScheduler scheduler, String apiKey, String coalescingKey,
+                                               long generation, List<String> started, String name) {
+        Thread thread = new Thread(() -> {
+            try {
+                SendBuildMessage message = scheduler.schedule(
+                        apiKey, 0, "PRE_PROD", coalescingKey, generation, name, LOGGER, Runnable::run, () -> {
+                            started.add(name);
+                            return CompletableFuture.completedFuture(new SendBuildMessage(true, name));
+                        }
+                ).get();
+                if (message.superseded) {
+                    started.add(name + " superseded");
+                }
+            } catch (Exception e) {
+                started.add(name + " failed");
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Test the coalescing of the waiting uploads
+     * <p>
+     * Verify that a newer build supersedes the waiting upload of an older build of the same application,
+     * but not the uploads of the other applications or API keys, and that an older build arriving late
+     * is superseded by the newer build already waiting
+     * </p>
+     */
+    @Test()
+    public void testCoalescing() throws InterruptedException {
+        UploadScheduler scheduler = new UploadScheduler(1, 0);
+        UploadScheduler.Ticket running = scheduler.enqueue("apiKey", 0, "PRE_PROD", "app", 1, "job#1", LOGGER);
+        List<String> started = Collections.synchronizedList(new ArrayList<>());
+
+        Thread second = startCoalescedUpload(scheduler, "apiKey", "app", 2, started, "job#2");
+        awaitWaiting(scheduler, 1);
+        Thread otherApp = startCoalescedUpload(scheduler, "apiKey", "otherApp", 2, started, "other#2");
+        awaitWaiting(scheduler, 2);
+        Thread otherKey = startCoalescedUpload(scheduler, "otherKey", "app", 2, started, "otherKey#2");
+        awaitWaiting(scheduler, 3);
+
+        Thread third = startCoalescedUpload(scheduler, "apiKey", "app", 3, started, "job#3");
+        second.join(5000);
+        Assert.assertEquals(Collections.singletonList("job#2 superseded"), started);
+        awaitWaiting(scheduler, 3);
+
+        Thread late = startCoalescedUpload(scheduler, "apiKey", "app", 2, started, "late#2");
+        late.join(5000);
+        Assert.assertEquals(Arrays.asList("job#2 superseded", "late#2 superseded"), started);
+
+        scheduler.release(running);
+        for (Thread thread : Arrays.asList(otherApp, otherKey, third)) {
+            thread.join(5000);
+        }
+        Assert.assertEquals(
+                Arrays.asList("job#2 superseded", "late#2 superseded", "other#2", "otherKey#2", "job#3"),
+                started
+        );
+        Assert.assertEquals(0, scheduler.getRunning());
+    }
+}
@@ -0,0 +1,39 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.benchmark;
+
+import jenkins.benchmark.jmh.BenchmarkFinder;
+import org.junit.Assume;
+import org.junit.Test;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the JMH benchmarks of the plugin (classes annotated with @JmhBenchmark).
+ * <p>
+ * The benchmarks are skipped by the default test run, launch them with:
+ * mvn test -Dbenchmark -Dtest=BenchmarkRunner
+ * The results are written to jmh-report.json
+ * </p>
+ */
+public class BenchmarkRunner {
+
+    @Test
+    public void runJmhBenchmarks() throws Exception {
+        Assume.assumeTrue(System.getProperty("benchmark") != null);
+
+        // The mode and the time unit of the scores are set by each benchmark
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .warmupIterations(2)
+                .measurementIterations(5)
+                .forks(1)
+                .shouldFailOnError(true)
+                .shouldDoGC(true)
+                .resultFormat(ResultFormatType.JSON)
+                .result("jmh-report.json");
+
+        BenchmarkFinder finder = new BenchmarkFinder(getClass());
+        finder.findBenchmarks(options);
+        new Runner(options.build()).run();
+    }
+}
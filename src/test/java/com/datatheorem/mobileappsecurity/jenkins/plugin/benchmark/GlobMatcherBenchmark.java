@@ -0,0 +1,90 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.benchmark;
+
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.GlobMatcher;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per path cost of matching the build and mapping file patterns.
+ * <p>
+ * Compare the precompiled GlobMatcher with the previous behavior which compiled a PathMatcher for each path,
+ * on a few hundred thousand synthetic workspace paths.
+ * </p>
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GlobMatcherBenchmark {
+
+    private static final int PATH_COUNT = 300_000;
+
+    private static final String[] PATTERNS = {
+            "app/build/outputs/apk/release/*.apk",
+            "**/*.ipa",
+            "app/build/outputs/mapping/release/mapping.txt",
+            "**/release/app-*.apk",
+    };
+
+    @State(Scope.Benchmark)
+    public static class Workspace {
+
+        String[] paths;
+
+        @Setup
+        public void setup() {
+            String[] directories = {
+                    "node_modules/react-native/Libraries/Image",
+                    "app/src/main/java/com/example/app",
+                    "app/build/intermediates/javac/release/classes",
+                    "app/build/outputs/apk/release",
+                    "ios/Pods/Target Support Files",
+                    ".gradle/caches/transforms-3",
+            };
+            String[] extensions = {".java", ".js", ".class", ".png", ".apk", ".h", ".ipa", ".txt"};
+
+            Random random = new Random(42);
+            paths = new String[PATH_COUNT];
+            for (int i = 0; i < PATH_COUNT; i++) {
+                paths[i] = directories[random.nextInt(directories.length)]
+                        + "/file" + i + extensions[random.nextInt(extensions.length)];
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PATH_COUNT)
+    public void precompiledGlobMatcher(Workspace workspace, Blackhole blackhole) {
+        GlobMatcher matcher = new GlobMatcher(PATTERNS);
+        for (String path : workspace.paths) {
+            blackhole.consume(matcher.matchingPattern(path));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PATH_COUNT)
+    public void pathMatcherCompiledPerPath(Workspace workspace, Blackhole blackhole) {
+        for (String path : workspace.paths) {
+            for (String pattern : PATTERNS) {
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+                if (matcher.matches(Paths.get(path))) {
+                    blackhole.consume(pattern);
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.benchmark;
+
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.LocalFileBody;
+import com.sun.net.httpserver.HttpServer;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per MiB cost of uploading a build stored on the controller.
+ * <p>
+ * Compare the LocalFileBody with the previous addBinaryBody(File) path, by sending a 256 MiB build
+ * to a local stand-in server which discards the request body.
+ * The uploadCpuNanos and uploadedBytes counters give the CPU time of the uploading thread per byte sent.
+ * </p>
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LocalFileUploadBenchmark {
+
+    private static final int BUILD_MIB = 256;
+
+    @State(Scope.Benchmark)
+    public static class UploadServer {
+
+        HttpServer server;
+        CloseableHttpClient client;
+        String url;
+        File build;
+
+        @Setup
+        public void setup() throws IOException {
+            build = File.createTempFile("benchmark", ".apk");
+            ByteBuffer block = ByteBuffer.allocate(1024 * 1024);
+            new Random(42).nextBytes(block.array());
+            try (FileChannel channel = FileChannel.open(build.toPath(), StandardOpenOption.WRITE)) {
+                for (int i = 0; i < BUILD_MIB; i++) {
+                    block.rewind();
+                    channel.write(block);
+                }
+            }
+
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/upload", exchange -> {
+                byte[] buffer = new byte[64 * 1024];
+                try (InputStream in = exchange.getRequestBody()) {
+                    while (in.read(buffer) >= 0) {
+                        // The body is discarded
+                    }
+                }
+                exchange.sendResponseHeaders(200, 2);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write("ok".getBytes());
+                }
+            });
+            server.start();
+            url = "http://127.0.0.1:" + server.getAddress().getPort() + "/upload";
+            client = HttpClients.createDefault();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            client.close();
+            server.stop(0);
+            Files.delete(build.toPath());
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class CpuCounters {
+
+        private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+        public long uploadCpuNanos;
+        public long uploadedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            uploadCpuNanos = 0;
+            uploadedBytes = 0;
+        }
+
+        void measure(long cpuStart, long bytes) {
+            uploadCpuNanos += THREADS.getCurrentThreadCpuTime() - cpuStart;
+            uploadedBytes += bytes;
+        }
+
+        long start() {
+            return THREADS.getCurrentThreadCpuTime();
+        }
+    }
+
+    private static void upload(UploadServer server, MultipartEntityBuilder entity) throws IOException {
+        HttpPost request = new HttpPost(server.url);
+        request.setEntity(entity.build());
+        HttpResponse response = server.client.execute(request);
+        EntityUtils.consume(response.getEntity());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BUILD_MIB)
+    public void localFileBody(UploadServer server, CpuCounters counters) throws IOException {
+        long cpuStart = counters.start();
+        MultipartEntityBuilder entity = MultipartEntityBuilder.create();
+        entity.addPart("file", new LocalFileBody(server.build, ContentType.DEFAULT_BINARY));
+        upload(server, entity);
+        counters.measure(cpuStart, server.build.length());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BUILD_MIB)
+    public void addBinaryBody(UploadServer server, CpuCounters counters) throws IOException {
+        long cpuStart = counters.start();
+        MultipartEntityBuilder entity = MultipartEntityBuilder.create();
+        entity.addBinaryBody("file", server.build);
+        upload(server, entity);
+        counters.measure(cpuStart, server.build.length());
+    }
+}
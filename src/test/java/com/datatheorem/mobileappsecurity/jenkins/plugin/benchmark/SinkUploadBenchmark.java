@@ -0,0 +1,109 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.benchmark;
+
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.RetryPolicy;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.SendBuildAction;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.SendBuildMessage;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.SinkUploadTransport;
+import hudson.FilePath;
+import hudson.remoting.LocalChannel;
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the plugin side of an upload, without network nor Upload API.
+ * <p>
+ * Upload a 64 MiB build with a mapping file through the local sink transport: upload_init, the multipart encoding,
+ * the streaming of the workspace files through a remote channel and the chunks run as for a real upload.
+ * The score is the throughput in MiB of build per second, for a single request and for 8 MiB chunks.
+ * </p>
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SinkUploadBenchmark {
+
+    private static final int BUILD_MIB = 64;
+
+    @State(Scope.Benchmark)
+    public static class Workspace {
+
+        @Param({"0", "8388608"})
+        int uploadChunkSize;
+
+        ExecutorService executor;
+        File directory;
+
+        @Setup
+        public void setup() throws IOException {
+            directory = Files.createTempDirectory("benchmark").toFile();
+            ByteBuffer block = ByteBuffer.allocate(1024 * 1024);
+            new Random(42).nextBytes(block.array());
+            try (FileChannel channel = FileChannel.open(
+                    new File(directory, "build.apk").toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE
+            )) {
+                for (int i = 0; i < BUILD_MIB; i++) {
+                    block.rewind();
+                    channel.write(block);
+                }
+            }
+            StringBuilder mapping = new StringBuilder();
+            for (int i = 0; i < 50000; i++) {
+                mapping.append("com.example.app.Class").append(i).append(" -> a.b").append(i).append(":\n");
+            }
+            Files.write(new File(directory, "mapping.txt").toPath(), mapping.toString().getBytes());
+            executor = Executors.newCachedThreadPool();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            executor.shutdownNow();
+            Files.delete(new File(directory, "build.apk").toPath());
+            Files.delete(new File(directory, "mapping.txt").toPath());
+            Files.delete(directory.toPath());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BUILD_MIB)
+    public SendBuildMessage uploadToSink(Workspace workspace) {
+        // The workspace is seen as an agent workspace: the files go through the remote channel
+        SendBuildAction sendBuild = new SendBuildAction(
+                "apiKey",
+                new StreamTaskListener(new NullStream()),
+                new FilePath(new LocalChannel(workspace.executor), workspace.directory.getPath()),
+                "build.apk",
+                "mapping.txt",
+                false
+        );
+        sendBuild.setTransport(new SinkUploadTransport());
+        sendBuild.setUploadChunkSize(workspace.uploadChunkSize);
+        sendBuild.setRetryPolicy(new RetryPolicy(1, 0, 0));
+        SendBuildMessage message = sendBuild.perform();
+        if (!message.success) {
+            throw new IllegalStateException(message.message);
+        }
+        return message;
+    }
+}
@@ -0,0 +1,164 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.benchmark;
+
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.AsyncUploadTransport;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.BlockingUploadTransport;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.RetryPolicy;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.SendBuildAction;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.SendBuildMessage;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild.UploadTransport;
+import com.sun.net.httpserver.HttpServer;
+import hudson.model.TaskListener;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Threads and throughput of many uploads running at the same time on the controller.
+ * <p>
+ * Send UPLOADS builds of BUILD_MIB MiB at the same time to a local stand-in server which answers upload_init and
+ * discards the request body. The uploads go through SendBuildAction.performAsync, as the publisher and the asynchronous
+ * step: with the blocking transport each request holds a thread of the transport, with the asynchronous transport
+ * the I/O threads of the client write every request and no thread waits for the responses.
+ * The score is the throughput in MiB of build per second, the peakThreads counter gives the highest number of live
+ * threads of the JVM during the iteration: the threads of the server are the same for both transports.
+ * </p>
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UploadTransportBenchmark {
+
+    private static final int BUILD_MIB = 16;
+    private static final int UPLOADS = 32;
+
+    @State(Scope.Benchmark)
+    public static class UploadServer {
+
+        @Param({"BLOCKING", "ASYNC"})
+        String transportName;
+
+        HttpServer server;
+        ExecutorService serverThreads;
+        UploadTransport transport;
+        String uploadInitUrl;
+        File build;
+
+        @Setup
+        public void setup() throws IOException {
+            build = File.createTempFile("benchmark", ".apk");
+            byte[] content = new byte[BUILD_MIB * 1024 * 1024];
+            new Random(42).nextBytes(content);
+            Files.write(build.toPath(), content);
+
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), UPLOADS);
+            serverThreads = Executors.newFixedThreadPool(UPLOADS);
+            server.setExecutor(serverThreads);
+            server.createContext("/upload", exchange -> {
+                byte[] buffer = new byte[64 * 1024];
+                try (InputStream in = exchange.getRequestBody()) {
+                    while (in.read(buffer) >= 0) {
+                        // The body is discarded
+                    }
+                }
+                exchange.sendResponseHeaders(200, 2);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write("ok".getBytes());
+                }
+            });
+            String url = "http://127.0.0.1:" + server.getAddress().getPort();
+            server.createContext("/upload_init", exchange -> {
+                byte[] body = ("{\"upload_url\": \"" + url + "/upload\"}").getBytes();
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            uploadInitUrl = url + "/upload_init";
+
+            transport = "ASYNC".equals(transportName) ? new AsyncUploadTransport() : new BlockingUploadTransport();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            AsyncUploadTransport.closeAll();
+            server.stop(0);
+            serverThreads.shutdownNow();
+            Files.delete(build.toPath());
+        }
+
+        SendBuildAction upload() {
+            // Upload of a build stored on the controller, without retry
+            SendBuildAction upload = new SendBuildAction(
+                    "benchmark", TaskListener.NULL, null, build.getAbsolutePath(), null, true
+            );
+            upload.setTransport(transport);
+            upload.setUploadInitUrl(uploadInitUrl);
+            upload.setRetryPolicy(new RetryPolicy(1, 0L, 0L));
+            return upload;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class ThreadCounters {
+
+        private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+        public long peakThreads;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            THREADS.resetPeakThreadCount();
+            peakThreads = 0;
+        }
+
+        void measure() {
+            peakThreads = Math.max(peakThreads, THREADS.getPeakThreadCount());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BUILD_MIB * UPLOADS)
+    public void concurrentUploads(UploadServer server, ThreadCounters counters)
+            throws IOException, InterruptedException, ExecutionException {
+        List<CompletableFuture<SendBuildMessage>> results = new ArrayList<>();
+        for (int i = 0; i < UPLOADS; i++) {
+            results.add(server.upload().performAsync());
+        }
+        for (CompletableFuture<SendBuildMessage> result : results) {
+            SendBuildMessage message = result.get();
+            if (!message.success) {
+                throw new IOException("Unexpected result: " + message.message);
+            }
+        }
+        counters.measure();
+    }
+}
@@ -0,0 +1,341 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild;
+
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.BandwidthLimiter;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.FileMetadata;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.LocalFileBody;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.RemoteAgentStreamBody;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.ThrottledEntity;
+import com.datatheorem.mobileappsecurity.jenkins.plugin.utils.VirtualFileBody;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import hudson.FilePath;
+import hudson.remoting.LocalChannel;
+import jenkins.util.VirtualFile;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit Test of the requests sent by the asynchronous transport to a local server
+ * <p>
+ * The multipart bodies hold a file of the controller, a file streamed from an agent through a local channel and text
+ * fields, as the upload of a build
+ * </p>
+ */
+public class AsyncUploadTransportTest {
+
+    private static final String BOUNDARY = "AsyncUploadTransportTestBoundary";
+    private static final long SPARSE_FILE_SIZE = 1024L * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ExecutorService executor;
+    private HttpServer server;
+    private File build;
+    private File mapping;
+    // Requests received by the server, in order
+    private final BlockingQueue<Received> received = new LinkedBlockingQueue<>();
+    // The slow request read its first bytes, then waits for the release
+    private final CountDownLatch slowStarted = new CountDownLatch(1);
+    private final CountDownLatch slowReleased = new CountDownLatch(1);
+    // Bytes of the slow request read by the server before the connection ended
+    private final CompletableFuture<Long> slowBytes = new CompletableFuture<>();
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+    private static final class Received {
+        // Body and framing headers of a request received by the server
+
+        final byte[] body;
+        final String contentLength;
+        final String transferEncoding;
+
+        Received(byte[] body, String contentLength, String transferEncoding) {
+            this.body = body;
+            this.contentLength = contentLength;
+            this.transferEncoding = transferEncoding;
+        }
+    }
+
+    private static final class RecordingEntity extends HttpEntityWrapper {
+        // Record the threads writing the body: the calling thread, or a thread of the blocking transport
+
+        final List<String> threads = new CopyOnWriteArrayList<>();
+
+        RecordingEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            threads.add(Thread.currentThread().getName());
+            super.writeTo(out);
+        }
+
+        boolean isSentByBlockingTransport() {
+            return threads.stream().anyMatch(name -> name.startsWith("Data Theorem blocking request"));
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newCachedThreadPool();
+
+        build = folder.newFile("build.apk");
+        byte[] content = new byte[1024 * 1024 + 17];
+        new Random(42).nextBytes(content);
+        Files.write(build.toPath(), content);
+        mapping = folder.newFile("mapping.txt");
+        try (Writer writer = Files.newBufferedWriter(mapping.toPath(), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < 50000; i++) {
+                writer.write("com.example.app.Class" + i + " -> a.b" + i + ":\n");
+            }
+        }
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/upload", exchange -> {
+            byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+            received.add(new Received(
+                    body,
+                    exchange.getRequestHeaders().getFirst("Content-Length"),
+                    exchange.getRequestHeaders().getFirst("Transfer-Encoding")
+            ));
+            respond(exchange);
+        });
+        server.createContext("/slow", exchange -> {
+            long count = 0;
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while (count < 64 * 1024 && (read = in.read(buffer)) >= 0) {
+                    count += read;
+                }
+                slowStarted.countDown();
+                slowReleased.await();
+                while ((read = in.read(buffer)) >= 0) {
+                    count += read;
+                }
+                respond(exchange);
+            } catch (IOException | InterruptedException e) {
+                // The client closed the connection
+            } finally {
+                slowBytes.complete(count);
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        slowReleased.countDown();
+        server.stop(0);
+        AsyncUploadTransport.closeAll();
+        executor.shutdownNow();
+    }
+
+    private static void respond(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+    }
+
+    private HttpPost request(String path, HttpEntity entity) {
+        HttpPost request = new HttpPost(
+                "http://127.0.0.1:" + server.getAddress().getPort() + path
+        );
+        request.setEntity(entity);
+        return request;
+    }
+
+    private FilePath agentFile(File file) {
+        return new FilePath(new LocalChannel(executor), file.getPath());
+    }
+
+    private static FileMetadata describe(File file) {
+        return new FileMetadata(file.getName(), file.length(), file.lastModified(), null);
+    }
+
+    private MultipartEntityBuilder multipart(RemoteAgentStreamBody.Compression compression) {
+        // The same parts and boundary for each transport
+        RemoteAgentStreamBody agentBody = new RemoteAgentStreamBody(
+                agentFile(mapping), ContentType.DEFAULT_BINARY, mapping.getName(), describe(mapping)
+        );
+        agentBody.setCompression(compression);
+        return MultipartEntityBuilder.create()
+                .setMode(HttpMultipartMode.BROWSER_COMPATIBLE)
+                .setBoundary(BOUNDARY)
+                .addPart("file", new LocalFileBody(build, ContentType.DEFAULT_BINARY))
+                .addPart("sourcemap", agentBody)
+                .addTextBody("release_type", "PRE_PROD")
+                .addTextBody("external_id", "com.example.app");
+    }
+
+    private Received send(UploadTransport transport, HttpEntity entity) throws Exception {
+        HttpResponse response = transport.send(request("/upload", entity), null).get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        Received request = received.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(request);
+        return request;
+    }
+
+    /**
+     * Test a multipart request of a known size sent by both transports
+     * <p>
+     * Verify that the asynchronous transport sends the body itself, with a Content-Length, and that the server
+     * receives the same bytes as from the blocking transport
+     * </p>
+     */
+    @Test()
+    public void testSameBodyWithContentLength() throws Exception {
+        RecordingEntity blockingEntity = new RecordingEntity(multipart(RemoteAgentStreamBody.Compression.NONE).build());
+        Received blocking = send(new BlockingUploadTransport(), blockingEntity);
+        RecordingEntity asyncEntity = new RecordingEntity(multipart(RemoteAgentStreamBody.Compression.NONE).build());
+        Received async = send(new AsyncUploadTransport(), asyncEntity);
+
+        Assert.assertFalse(asyncEntity.isSentByBlockingTransport());
+        Assert.assertTrue(asyncEntity.getContentLength() > build.length() + mapping.length());
+        Assert.assertArrayEquals(blocking.body, async.body);
+        Assert.assertEquals(String.valueOf(asyncEntity.getContentLength()), async.contentLength);
+        Assert.assertEquals(blocking.contentLength, async.contentLength);
+        Assert.assertNull(async.transferEncoding);
+    }
+
+    /**
+     * Test a multipart request of an unknown size sent by both transports
+     * <p>
+     * Verify that the agent file compressed with gzip is sent with a chunked encoding, and that the server receives
+     * the same bytes as from the blocking transport
+     * </p>
+     */
+    @Test()
+    public void testSameBodyChunked() throws Exception {
+        Received blocking = send(
+                new BlockingUploadTransport(),
+                new RecordingEntity(multipart(RemoteAgentStreamBody.Compression.GZIP).build())
+        );
+        RecordingEntity asyncEntity = new RecordingEntity(multipart(RemoteAgentStreamBody.Compression.GZIP).build());
+        Received async = send(new AsyncUploadTransport(), asyncEntity);
+
+        Assert.assertFalse(asyncEntity.isSentByBlockingTransport());
+        Assert.assertEquals(-1L, asyncEntity.getContentLength());
+        Assert.assertArrayEquals(blocking.body, async.body);
+        Assert.assertEquals("chunked", async.transferEncoding);
+        Assert.assertNull(async.contentLength);
+    }
+
+    /**
+     * Test a throttled request sent by the asynchronous transport
+     * <p>
+     * Verify that the request is sent by a thread of the blocking transport, with the whole body
+     * </p>
+     */
+    @Test()
+    public void testThrottledEntityFallback() throws Exception {
+        RecordingEntity entity = new RecordingEntity(multipart(RemoteAgentStreamBody.Compression.NONE).build());
+        ThrottledEntity throttled = new ThrottledEntity(
+                entity, new BandwidthLimiter(100L * 1024 * 1024), new PrintStream(log, true, "UTF-8")
+        );
+
+        Received async = send(new AsyncUploadTransport(), throttled);
+
+        Assert.assertTrue(entity.isSentByBlockingTransport());
+        Assert.assertEquals(entity.getContentLength(), async.body.length);
+    }
+
+    /**
+     * Test a request holding an archived artifact sent by the asynchronous transport
+     * <p>
+     * Verify that the artifact manager's blocking stream sends the request with the blocking transport, and that the
+     * server receives the same bytes as from the blocking transport
+     * </p>
+     */
+    @Test()
+    public void testVirtualFileBodyFallback() throws Exception {
+        Received blocking = send(new BlockingUploadTransport(), new RecordingEntity(
+                multipart(RemoteAgentStreamBody.Compression.NONE)
+                        .addPart("artifact", new VirtualFileBody(VirtualFile.forFile(build), ContentType.DEFAULT_BINARY))
+                        .build()
+        ));
+        RecordingEntity entity = new RecordingEntity(
+                multipart(RemoteAgentStreamBody.Compression.NONE)
+                        .addPart("artifact", new VirtualFileBody(VirtualFile.forFile(build), ContentType.DEFAULT_BINARY))
+                        .build()
+        );
+
+        Received async = send(new AsyncUploadTransport(), entity);
+
+        Assert.assertTrue(entity.isSentByBlockingTransport());
+        Assert.assertArrayEquals(blocking.body, async.body);
+    }
+
+    /**
+     * Test the cancellation of a request streaming a large agent file to a slow server
+     * <p>
+     * Verify that the exchange is aborted before the end of the body and that the transfer from the agent is stopped
+     * </p>
+     */
+    @Test()
+    public void testCancel() throws Exception {
+        File file = folder.newFile("sparse.bin");
+        try (RandomAccessFile sparse = new RandomAccessFile(file, "rw")) {
+            sparse.setLength(SPARSE_FILE_SIZE);
+        }
+        RemoteAgentStreamBody agentBody = new RemoteAgentStreamBody(
+                agentFile(file), ContentType.DEFAULT_BINARY, file.getName(), describe(file)
+        );
+        agentBody.setLogger(new PrintStream(log, true, "UTF-8"));
+        HttpEntity entity = MultipartEntityBuilder.create()
+                .setMode(HttpMultipartMode.BROWSER_COMPATIBLE)
+                .addPart("file", agentBody)
+                .build();
+
+        CompletableFuture<HttpResponse> response = new AsyncUploadTransport().send(request("/slow", entity), null);
+        Assert.assertTrue(slowStarted.await(30, TimeUnit.SECONDS));
+        Assert.assertTrue(response.cancel(true));
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!log.toString("UTF-8").contains("Stopped streaming sparse.bin") && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(log.toString("UTF-8"), log.toString("UTF-8").contains("Stopped streaming sparse.bin"));
+        Assert.assertNotNull(agentBody.getLastTransfer());
+        Assert.assertTrue(agentBody.getLastTransfer().getBytes() < SPARSE_FILE_SIZE);
+
+        slowReleased.countDown();
+        Assert.assertTrue(slowBytes.get(10, TimeUnit.SECONDS) < entity.getContentLength());
+    }
+}
@@ -0,0 +1,258 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Unit Test of the resumable chunked upload against a local upload server failing at given offsets
+ */
+public class ChunkedUploadTest {
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+    private HttpServer server;
+    private final ByteArrayOutputStream persisted = new ByteArrayOutputStream();
+    // Offsets at which the server fails once, persisting the bytes before the offset
+    private final TreeSet<Long> failures = new TreeSet<>();
+    private boolean dropConnection = false;
+    // Bytes of the chunks received by the server, resent bytes included
+    private long received = 0;
+    private long savedRetryDelay;
+    private int savedMaxChunkRetries;
+
+    @Before
+    public void startServer() throws IOException {
+        savedRetryDelay = ChunkedUpload.RETRY_DELAY;
+        savedMaxChunkRetries = ChunkedUpload.MAX_CHUNK_RETRIES;
+        ChunkedUpload.RETRY_DELAY = 0;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/upload", this::handle);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        ChunkedUpload.RETRY_DELAY = savedRetryDelay;
+        ChunkedUpload.MAX_CHUNK_RETRIES = savedMaxChunkRetries;
+        server.stop(0);
+    }
+
+    private synchronized void handle(HttpExchange exchange) throws IOException {
+        byte[] body = readAll(exchange.getRequestBody());
+        String contentRange = exchange.getRequestHeaders().getFirst("Content-Range");
+        if (contentRange.startsWith("bytes */")) {
+            respondPersisted(exchange);
+            return;
+        }
+        Matcher range = CONTENT_RANGE.matcher(contentRange);
+        Assert.assertTrue(contentRange, range.matches());
+        long first = Long.parseLong(range.group(1));
+        long last = Long.parseLong(range.group(2));
+        Assert.assertEquals(last - first + 1, body.length);
+        received += body.length;
+        if (first > persisted.size()) {
+            respond(exchange, 400, "missing bytes");
+            return;
+        }
+
+        // Keep the bytes already persisted and overwrite the resent ones
+        byte[] kept = Arrays.copyOf(persisted.toByteArray(), (int) first);
+        persisted.reset();
+        persisted.write(kept);
+        Long failure = failures.ceiling(first);
+        if (failure != null && failure <= last) {
+            failures.remove(failure);
+            persisted.write(body, 0, (int) (failure - first));
+            dropConnection = !dropConnection;
+            if (dropConnection) {
+                // Network failure: the connection is closed without response
+                exchange.close();
+                return;
+            }
+            respond(exchange, 503, "unavailable");
+            return;
+        }
+        persisted.write(body);
+        if (!range.group(3).equals("*") && last + 1 == Long.parseLong(range.group(3))) {
+            respond(exchange, 200, "{\"uploaded\": " + persisted.size() + "}");
+            return;
+        }
+        respondPersisted(exchange);
+    }
+
+    private void respondPersisted(HttpExchange exchange) throws IOException {
+        if (persisted.size() > 0) {
+            exchange.getResponseHeaders().add("Range", "bytes=0-" + (persisted.size() - 1));
+        }
+        exchange.sendResponseHeaders(ChunkedUpload.RESUME_INCOMPLETE, -1);
+        exchange.close();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read; (read = in.read(buffer)) >= 0; ) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private String uploadUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/upload";
+    }
+
+    private static byte[] build(int size) {
+        byte[] build = new byte[size];
+        new Random(42).nextBytes(build);
+        return build;
+    }
+
+    private static HttpEntity entity(byte[] build, boolean knownLength) {
+        // Any request body can be sent in chunks, the multipart body of the upload included
+        if (knownLength) {
+            return new ByteArrayEntity(build, ContentType.DEFAULT_BINARY);
+        }
+        return new InputStreamEntity(new ByteArrayInputStream(build), -1, ContentType.DEFAULT_BINARY);
+    }
+
+    /**
+     * Test that the upload resumes from the acknowledged bytes after failures at arbitrary offsets
+     * <p>
+     * Make the server fail in the middle of chunks, on a chunk boundary and in the last chunk,
+     * alternating server errors and closed connections.
+     * Verify that the server receives the exact request body and that the final response is returned
+     * </p>
+     */
+    @Test()
+    public void testResumeAfterFailures() throws IOException, InterruptedException {
+        byte[] build = build(3 * 1024 * 1024 + 123);
+        byte[] expected = build;
+        failures.addAll(Arrays.asList(1L, 300000L, 262144L * 4, 262144L * 4 + 10, (long) expected.length - 5));
+
+        HttpResponse response = new ChunkedUpload(
+                new BlockingUploadTransport(),
+                null,
+                uploadUrl(),
+                entity(build, true),
+                256 * 1024,
+                "test",
+                new PrintStream(new ByteArrayOutputStream())
+        ).upload();
+
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        Assert.assertEquals("{\"uploaded\": " + expected.length + "}", EntityUtils.toString(response.getEntity()));
+        Assert.assertTrue(failures.isEmpty());
+        Assert.assertArrayEquals(expected, persisted.toByteArray());
+    }
+
+    /**
+     * Test the upload of a body whose size is only known once it has been read
+     * <p>
+     * Verify that the total size is sent with the last chunk
+     * </p>
+     */
+    @Test()
+    public void testUnknownContentLength() throws IOException, InterruptedException {
+        byte[] build = build(1024 * 1024);
+        byte[] expected = build;
+        failures.add(500000L);
+
+        HttpEntity entity = entity(build, false);
+        Assert.assertEquals(-1, entity.getContentLength());
+        HttpResponse response = new ChunkedUpload(
+                new BlockingUploadTransport(),
+                null,
+                uploadUrl(),
+                entity,
+                100000,
+                "test",
+                new PrintStream(new ByteArrayOutputStream())
+        ).upload();
+
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        Assert.assertArrayEquals(expected, persisted.toByteArray());
+    }
+
+    /**
+     * Test a new attempt with the same upload link, as made by the retries of SendBuildAction
+     * <p>
+     * Make the first attempt give up at its first failure.
+     * Verify that the second attempt queries the status of the upload and only sends the bytes after the ones
+     * persisted by the server
+     * </p>
+     */
+    @Test()
+    public void testResumeInNewAttempt() throws IOException, InterruptedException {
+        ChunkedUpload.MAX_CHUNK_RETRIES = 0;
+        byte[] build = build(1024 * 1024);
+        long failure = 300000L;
+        int chunkSize = 256 * 1024;
+        failures.add(failure);
+
+        ChunkedUpload firstAttempt = new ChunkedUpload(
+                new BlockingUploadTransport(),
+                null,
+                uploadUrl(),
+                entity(build, true),
+                chunkSize,
+                "test",
+                new PrintStream(new ByteArrayOutputStream())
+        );
+        try {
+            firstAttempt.upload();
+            Assert.fail("The first attempt should give up");
+        } catch (IOException e) {
+            // Expected
+        }
+        Assert.assertEquals(chunkSize, firstAttempt.getAcknowledgedBytes());
+
+        ChunkedUpload secondAttempt = new ChunkedUpload(
+                new BlockingUploadTransport(),
+                null,
+                uploadUrl(),
+                entity(build, true),
+                chunkSize,
+                "test",
+                new PrintStream(new ByteArrayOutputStream())
+        );
+        secondAttempt.setResume(true);
+        HttpResponse response = secondAttempt.upload();
+
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        Assert.assertArrayEquals(build, persisted.toByteArray());
+        // The first attempt sent its first two chunks, the second attempt starts at the failure
+        Assert.assertEquals(2 * chunkSize + build.length - failure, received);
+    }
+}
@@ -0,0 +1,61 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit Test of the classification and the backoff of the failed uploads
+ */
+public class RetryPolicyTest {
+
+    private final RetryPolicy retryPolicy = new RetryPolicy(5, 1000L, 8000L);
+
+    /**
+     * Test the decision taken for each kind of failure
+     * <p>
+     * Verify that the configuration errors and the rejected credentials abort the upload, that the transient
+     * upload errors reuse the upload URL and that a rejected upload URL is replaced
+     * </p>
+     */
+    @Test()
+    public void testClassifyFailures() {
+        Assert.assertEquals(
+                RetryPolicy.Decision.ABORT,
+                retryPolicy.classifyInitFailure(new SendBuildMessage(false, "Upload APIKey secret key is empty"))
+        );
+        Assert.assertEquals(RetryPolicy.Decision.ABORT, retryPolicy.classifyInitFailure(failure(401)));
+        Assert.assertEquals(RetryPolicy.Decision.REINIT, retryPolicy.classifyInitFailure(failure(0)));
+        Assert.assertEquals(RetryPolicy.Decision.REINIT, retryPolicy.classifyInitFailure(failure(503)));
+
+        Assert.assertEquals(RetryPolicy.Decision.RETRY_UPLOAD, retryPolicy.classifyUploadFailure(failure(0)));
+        Assert.assertEquals(RetryPolicy.Decision.RETRY_UPLOAD, retryPolicy.classifyUploadFailure(failure(502)));
+        Assert.assertEquals(RetryPolicy.Decision.RETRY_UPLOAD, retryPolicy.classifyUploadFailure(failure(429)));
+        Assert.assertEquals(RetryPolicy.Decision.REINIT, retryPolicy.classifyUploadFailure(failure(400)));
+        Assert.assertEquals(RetryPolicy.Decision.REINIT, retryPolicy.classifyUploadFailure(failure(410)));
+        Assert.assertEquals(RetryPolicy.Decision.ABORT, retryPolicy.classifyUploadFailure(failure(413)));
+        Assert.assertEquals(RetryPolicy.Decision.ABORT, retryPolicy.classifyUploadFailure(failure(401)));
+        Assert.assertEquals(RetryPolicy.Decision.ABORT, retryPolicy.classifyUploadFailure(failure(403)));
+    }
+
+    /**
+     * Test the exponential backoff with jitter
+     * <p>
+     * Verify that each delay is between half and all of the exponential delay, capped by the maximum delay
+     * </p>
+     */
+    @Test()
+    public void testDelay() {
+        long[] exponentialDelays = {1000L, 2000L, 4000L, 8000L, 8000L, 8000L};
+        for (int attempt = 1; attempt <= exponentialDelays.length; attempt++) {
+            for (int i = 0; i < 100; i++) {
+                long delay = retryPolicy.delay(attempt);
+                Assert.assertTrue(delay >= exponentialDelays[attempt - 1] / 2);
+                Assert.assertTrue(delay <= exponentialDelays[attempt - 1]);
+            }
+        }
+    }
+
+    private static SendBuildMessage failure(int statusCode) {
+        return new SendBuildMessage(false, "error", statusCode);
+    }
+}
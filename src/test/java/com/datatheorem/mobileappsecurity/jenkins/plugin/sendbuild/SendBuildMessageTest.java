@@ -0,0 +1,64 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Unit Test of the aggregation of the upload results of several builds
+ */
+public class SendBuildMessageTest {
+
+    /**
+     * Test the summary of several uploads
+     * <p>
+     * Verify that the summary is a failure when one upload failed, and lists each upload in order
+     * </p>
+     */
+    @Test()
+    public void testSummarize() {
+        Map<String, SendBuildMessage> results = new LinkedHashMap<>();
+        results.put("app-free.apk", new SendBuildMessage(true, "Successfully uploaded build to Data Theorem : ok"));
+        results.put("app-paid.apk", new SendBuildMessage(false, "Data Theorem upload build returned an error: KO", 500));
+
+        SendBuildMessage summary = SendBuildMessage.summarize(results);
+        Assert.assertFalse(summary.success);
+        Assert.assertEquals(
+                "[SUCCESS] app-free.apk: Successfully uploaded build to Data Theorem : ok\n" +
+                        "[FAILURE] app-paid.apk: Data Theorem upload build returned an error: KO\n" +
+                        "1/2 builds uploaded to Data Theorem",
+                summary.message
+        );
+
+        results.remove("app-paid.apk");
+        Assert.assertTrue(SendBuildMessage.summarize(results).success);
+    }
+
+    /**
+     * Test the summary of superseded uploads
+     * <p>
+     * Verify that the summary is superseded when no upload failed, and a failure otherwise
+     * </p>
+     */
+    @Test()
+    public void testSummarizeSuperseded() {
+        Map<String, SendBuildMessage> results = new LinkedHashMap<>();
+        results.put("app-free.apk", new SendBuildMessage(true, "Successfully uploaded build to Data Theorem : ok"));
+        results.put("app-paid.apk", SendBuildMessage.superseded("The upload was superseded by job#2"));
+
+        SendBuildMessage summary = SendBuildMessage.summarize(results);
+        Assert.assertFalse(summary.success);
+        Assert.assertTrue(summary.superseded);
+        Assert.assertEquals(
+                "[SUCCESS] app-free.apk: Successfully uploaded build to Data Theorem : ok\n" +
+                        "[SUPERSEDED] app-paid.apk: The upload was superseded by job#2\n" +
+                        "1/2 builds uploaded to Data Theorem",
+                summary.message
+        );
+
+        results.put("app-pro.apk", new SendBuildMessage(false, "Data Theorem upload build returned an error: KO", 500));
+        Assert.assertFalse(SendBuildMessage.summarize(results).superseded);
+    }
+}
@@ -14,6 +14,7 @@ import org.junit.Test;
 import javax.annotation.Nonnull;
 import java.io.*;
 import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
 
 import static org.easymock.EasyMock.partialMockBuilder;
 import static org.easymock.EasyMock.replay;
@@ -36,6 +37,13 @@ public class SendBuildTest {
         }
     };
 
+    private static CompletableFuture<HttpResponse> failed(Exception e) {
+        // Response of a request failed by the transport
+        CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+        response.completeExceptionally(e);
+        return response;
+    }
+
     /**
      * Test the return message of uploadInit when IOException is raised
      * <p>
@@ -60,7 +68,7 @@ public class SendBuildTest {
                 .createMock();
 
         EasyMock.expect(uploadMock.uploadInitRequest())
-                .andThrow(new IOException());
+                .andReturn(failed(new IOException()));
 
         replay(uploadMock);
 
@@ -101,7 +109,7 @@ public class SendBuildTest {
                 .createMock();
 
         EasyMock.expect(uploadMock.uploadInitRequest())
-                .andThrow(new UnknownHostException());
+                .andReturn(failed(new UnknownHostException()));
 
         replay(uploadMock);
         SendBuildMessage uploadInitMessage = uploadMock.uploadInit();
@@ -153,7 +161,7 @@ public class SendBuildTest {
         entity.setContent(inputStream);
         response.setEntity(entity);
         EasyMock.expect(uploadMock.uploadInitRequest())
-                .andReturn(response);
+                .andReturn(CompletableFuture.completedFuture(response));
 
         replay(uploadMock);
         SendBuildMessage uploadInitMessage = uploadMock.uploadInit();
@@ -204,7 +212,7 @@ public class SendBuildTest {
         entity.setContent(inputStream);
         response.setEntity(entity);
         EasyMock.expect(uploadMock.uploadInitRequest())
-                .andReturn(response);
+                .andReturn(CompletableFuture.completedFuture(response));
 
         replay(uploadMock);
         SendBuildMessage uploadInitMessage = uploadMock.uploadInit();
@@ -255,7 +263,7 @@ public class SendBuildTest {
         entity.setContent(inputStream);
         response.setEntity(entity);
         EasyMock.expect(uploadMock.uploadInitRequest())
-                .andReturn(response);
+                .andReturn(CompletableFuture.completedFuture(response));
 
         replay(uploadMock);
         // And the release type is set to ENTERPRISE
@@ -310,7 +318,7 @@ public class SendBuildTest {
         entity.setContent(inputStream);
         response.setEntity(entity);
         EasyMock.expect(uploadMock.uploadBuildRequest())
-                .andReturn(response);
+                .andReturn(CompletableFuture.completedFuture(response));
 
         replay(uploadMock);
         SendBuildMessage uploadBuildMessage = uploadMock.uploadBuild();
@@ -364,7 +372,7 @@ public class SendBuildTest {
         entity.setContent(inputStream);
         response.setEntity(entity);
         EasyMock.expect(uploadMock.uploadBuildRequest())
-                .andReturn(response);
+                .andReturn(CompletableFuture.completedFuture(response));
 
         replay(uploadMock);
         SendBuildMessage uploadBuildMessage = uploadMock.uploadBuild();
@@ -412,7 +420,7 @@ public class SendBuildTest {
         entity.setContent(inputStream);
         response.setEntity(entity);
         EasyMock.expect(uploadMock.uploadBuildRequest())
-                .andThrow(new IOException());
+                .andReturn(failed(new IOException()));
 
         replay(uploadMock);
         SendBuildMessage uploadBuildMessage = uploadMock.uploadBuild();
@@ -544,4 +552,115 @@ public class SendBuildTest {
 
         EasyMock.verify(uploadMock);
     }
+
+    /**
+     * Test that a build upload failing on a network error is retried with the same upload URL
+     * <p>
+     * Mock the upload_init call to return an upload URL and the upload call to raise an IOException then succeed
+     * Verify that perform returns success = true and that upload_init was only called once
+     * </p>
+     */
+    @Test()
+    public void testPerformRetryReusesUploadUrl() throws IOException, InterruptedException {
+        SendBuildAction uploadMock = partialMockBuilder(SendBuildAction.class)
+                .withConstructor(
+                        String.class,
+                        TaskListener.class,
+                        FilePath.class,
+                        String.class,
+                        String.class,
+                        Boolean.class
+                )
+                .withArgs(
+                        "toto",
+                        listener,
+                        new FilePath(new File("Fake_workspace")),
+                        "",
+                        "",
+                        false
+                )
+                .addMockedMethod("uploadInitRequest")
+                .addMockedMethod("uploadBuildRequest")
+                .createMock();
+        uploadMock.setRetryPolicy(new RetryPolicy(3, 0L, 0L));
+
+        HttpResponseFactory factory = new DefaultHttpResponseFactory();
+        BasicHttpEntity initEntity = new BasicHttpEntity();
+        HttpResponse initResponse = factory.newHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "tototo"), null);
+        initEntity.setContent(new ByteArrayInputStream("{\"upload_url\":\"https://upload.example\"}".getBytes()));
+        initResponse.setEntity(initEntity);
+
+        BasicHttpEntity uploadEntity = new BasicHttpEntity();
+        HttpResponse uploadResponse = factory.newHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "tototo"), null);
+        uploadEntity.setContent(new ByteArrayInputStream("{\"status\":\"ok\"}".getBytes()));
+        uploadResponse.setEntity(uploadEntity);
+
+        EasyMock.expect(uploadMock.uploadInitRequest())
+                .andReturn(CompletableFuture.completedFuture(initResponse))
+                .once();
+        EasyMock.expect(uploadMock.uploadBuildRequest())
+                .andReturn(failed(new IOException("Connection reset")))
+                .andReturn(CompletableFuture.completedFuture(uploadResponse));
+
+        replay(uploadMock);
+        SendBuildMessage performMessage = uploadMock.perform();
+
+        Assert.assertTrue(performMessage.success);
+        Assert.assertEquals(performMessage.message, "Successfully uploaded build to Data Theorem : {\"status\":\"ok\"}");
+
+        EasyMock.verify(uploadMock);
+    }
+
+    /**
+     * Test the upload using the result of an upload_init call made before the build was found
+     * <p>
+     * Mock the HttpResponse of the upload, no upload_init call is expected
+     * Verify that the build is sent to the prefetched upload URL
+     * </p>
+     */
+    @Test()
+    public void testPerformUsesPrefetchedUploadInit() throws IOException, InterruptedException {
+        SendBuildAction uploadMock = partialMockBuilder(SendBuildAction.class)
+                .withConstructor(
+                        String.class,
+                        TaskListener.class,
+                        FilePath.class,
+                        String.class,
+                        String.class,
+                        Boolean.class
+                )
+                .withArgs(
+                        "toto",
+                        listener,
+                        new FilePath(new File("Fake_workspace")),
+                        "",
+                        "",
+                        false
+                )
+                .addMockedMethod("uploadInitRequest")
+                .addMockedMethod("uploadBuildRequest")
+                .createMock();
+        uploadMock.setPrefetchedUploadInit(
+                new SendBuildMessage(true, "Successfully retrieved the download URL from Data Theorem"),
+                "https://upload.example"
+        );
+
+        HttpResponseFactory factory = new DefaultHttpResponseFactory();
+        BasicHttpEntity uploadEntity = new BasicHttpEntity();
+        HttpResponse uploadResponse = factory.newHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "tototo"), null);
+        uploadEntity.setContent(new ByteArrayInputStream("{\"status\":\"ok\"}".getBytes()));
+        uploadResponse.setEntity(uploadEntity);
+
+        EasyMock.expect(uploadMock.uploadBuildRequest())
+                .andReturn(CompletableFuture.completedFuture(uploadResponse))
+                .once();
+
+        replay(uploadMock);
+        SendBuildMessage performMessage = uploadMock.perform();
+
+        Assert.assertTrue(performMessage.success);
+        Assert.assertEquals("https://upload.example", uploadMock.getUploadUrl());
+
+        EasyMock.verify(uploadMock);
+    }
 }
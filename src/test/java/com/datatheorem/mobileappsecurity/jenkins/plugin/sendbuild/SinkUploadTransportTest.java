@@ -0,0 +1,133 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild;
+
+import hudson.FilePath;
+import hudson.remoting.LocalChannel;
+import hudson.util.StreamTaskListener;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Unit Test of the uploads sent to the local sink
+ * <p>
+ * The whole upload runs offline: upload_init, the multipart body streamed from the agent, the chunks and the retries
+ * </p>
+ */
+public class SinkUploadTransportTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ExecutorService executor;
+    private File sink;
+    private byte[] build;
+    private long savedRetryDelay;
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newCachedThreadPool();
+        sink = folder.newFolder("sink");
+        SinkUploadTransport.DIRECTORY = sink.getPath();
+        savedRetryDelay = ChunkedUpload.RETRY_DELAY;
+        ChunkedUpload.RETRY_DELAY = 0;
+        build = new byte[1024 * 1024 + 17];
+        new Random(42).nextBytes(build);
+        Files.write(folder.newFolder("workspace").toPath().resolve("build.apk"), build);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        SinkUploadTransport.DIRECTORY = null;
+        SinkUploadTransport.FAIL_EVERY = 0;
+        ChunkedUpload.RETRY_DELAY = savedRetryDelay;
+    }
+
+    private SendBuildAction sendBuildAction(int maxAttempts) {
+        // The workspace is on an agent, the build is streamed through the remote channel
+        FilePath workspace = new FilePath(new LocalChannel(executor), new File(folder.getRoot(), "workspace").getPath());
+        SendBuildAction sendBuild = new SendBuildAction(
+                "apiKey", new StreamTaskListener(log), workspace, "build.apk", null, false
+        );
+        sendBuild.setTransport(new SinkUploadTransport());
+        sendBuild.setRetryPolicy(new RetryPolicy(maxAttempts, 0, 0));
+        return sendBuild;
+    }
+
+    private byte[] receivedBody() throws IOException {
+        File[] bodies = sink.listFiles();
+        Assert.assertNotNull(bodies);
+        Assert.assertEquals(1, bodies.length);
+        return Files.readAllBytes(bodies[0].toPath());
+    }
+
+    private void assertContainsBuild(byte[] body) {
+        String content = new String(body, StandardCharsets.ISO_8859_1);
+        Assert.assertTrue(content.contains(new String(build, StandardCharsets.ISO_8859_1)));
+        Assert.assertTrue(content.contains("PRE_PROD"));
+    }
+
+    /**
+     * Test an upload to the sink
+     * <p>
+     * Verify that the upload succeeds, reports the size of the body and writes the whole multipart body
+     * </p>
+     */
+    @Test()
+    public void testUpload() throws IOException {
+        SendBuildMessage message = sendBuildAction(1).perform();
+
+        Assert.assertTrue(message.message, message.success);
+        byte[] body = receivedBody();
+        Assert.assertTrue(message.message, message.message.contains("\"bytes\": " + body.length));
+        assertContainsBuild(body);
+    }
+
+    /**
+     * Test a chunked upload to the sink failing every other chunk
+     * <p>
+     * Verify that the failed chunks are sent again and the body is complete
+     * </p>
+     */
+    @Test()
+    public void testChunkedUploadWithFailures() throws IOException {
+        SinkUploadTransport.FAIL_EVERY = 2;
+        SendBuildAction sendBuild = sendBuildAction(1);
+        sendBuild.setUploadChunkSize(64 * 1024);
+
+        SendBuildMessage message = sendBuild.perform();
+
+        Assert.assertTrue(message.message, message.success);
+        assertContainsBuild(receivedBody());
+    }
+
+    /**
+     * Test the retries of an upload rejected by the sink
+     * <p>
+     * Verify that the upload is retried with the same upload URL, then fails with the status code of the sink
+     * </p>
+     */
+    @Test()
+    public void testRetries() {
+        SinkUploadTransport.FAIL_EVERY = 1;
+
+        SendBuildMessage message = sendBuildAction(2).perform();
+
+        Assert.assertFalse(message.success);
+        Assert.assertEquals(503, message.statusCode);
+        Assert.assertTrue(log.toString().contains("Retrying with the same upload URL"));
+    }
+}
@@ -0,0 +1,57 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.sendbuild;
+
+import hudson.model.TaskListener;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+/**
+ * Unit Test of the http clients shared by the uploads
+ */
+public class UploadHttpClientsTest {
+    TaskListener listener = new TaskListener() {
+        @Override
+        public PrintStream getLogger() {
+            return new PrintStream(new ByteArrayOutputStream());
+        }
+    };
+
+    @After
+    public void closeClients() {
+        UploadHttpClients.closeAll();
+    }
+
+    /**
+     * Test that the uploads with the same proxy configuration share their http client
+     * <p>
+     * Verify that the jobs with different listeners share the client of the same proxy configuration,
+     * that a different proxy configuration gets another client, and that a new client is created
+     * once the clients are closed
+     * </p>
+     */
+    @Test()
+    public void testClientsSharedByProxyConfiguration() {
+        CloseableHttpClient direct = UploadHttpClients.get(null);
+        Assert.assertSame(direct, UploadHttpClients.get(null));
+
+        CloseableHttpClient proxied = UploadHttpClients.get(new Proxy(listener, "proxy", 3128, "user", "pass", false));
+        Assert.assertSame(proxied, UploadHttpClients.get(new Proxy(listener, "proxy", 3128, "user", "pass", false)));
+        // The key of the client is the proxy configuration, not the listener of the job which created it
+        Assert.assertSame(
+                proxied,
+                UploadHttpClients.get(new Proxy(TaskListener.NULL, "proxy", 3128, "user", "pass", false))
+        );
+        Assert.assertNotSame(direct, proxied);
+        Assert.assertNotSame(
+                proxied,
+                UploadHttpClients.get(new Proxy(listener, "proxy", 3128, "user", "other", false))
+        );
+
+        UploadHttpClients.closeAll();
+        Assert.assertNotSame(direct, UploadHttpClients.get(null));
+    }
+}
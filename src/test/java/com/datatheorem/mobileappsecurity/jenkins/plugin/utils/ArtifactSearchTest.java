@@ -0,0 +1,60 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import jenkins.util.VirtualFile;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Unit Test of the search of the build in the archived artifacts
+ */
+public class ArtifactSearchTest {
+
+    @Rule
+    public TemporaryFolder artifacts = new TemporaryFolder();
+
+    private void createArtifact(String relativePath) throws IOException {
+        File file = new File(artifacts.getRoot(), relativePath);
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), "artifact".getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Test the artifacts found for a file name and for a relative path
+     * <p>
+     * Verify that a pattern without '/' matches the file name at any depth, in walk order,
+     * and that the walk stops once the maximum number of matches is found
+     * </p>
+     */
+    @Test()
+    public void testFindArtifacts() throws IOException {
+        createArtifact("outputs/release/app-release.apk");
+        createArtifact("outputs/debug/app-debug.apk");
+        createArtifact("app.apk");
+        createArtifact("outputs/mapping.txt");
+        VirtualFile root = VirtualFile.forFile(artifacts.getRoot());
+
+        Assert.assertEquals(
+                Arrays.asList("app.apk", "outputs/debug/app-debug.apk", "outputs/release/app-release.apk"),
+                new ArrayList<>(new ArtifactSearch("*.apk").find(root, Integer.MAX_VALUE).keySet())
+        );
+        Assert.assertEquals(
+                Collections.singletonList("app.apk"),
+                new ArrayList<>(new ArtifactSearch("*.apk").find(root, 1).keySet())
+        );
+        Assert.assertEquals(
+                Collections.singletonList("outputs/release/app-release.apk"),
+                new ArrayList<>(new ArtifactSearch("outputs/release/*.apk").find(root, Integer.MAX_VALUE).keySet())
+        );
+        Assert.assertTrue(new ArtifactSearch("*.ipa").find(root, Integer.MAX_VALUE).isEmpty());
+    }
+}
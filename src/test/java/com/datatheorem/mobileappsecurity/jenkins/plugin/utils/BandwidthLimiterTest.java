@@ -0,0 +1,228 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unit Test of the bandwidth shared by the uploads
+ */
+public class BandwidthLimiterTest {
+
+    private int maxGrant;
+
+    @Before
+    public void setUp() {
+        maxGrant = BandwidthLimiter.MAX_GRANT;
+        BandwidthLimiter.MAX_GRANT = 8 * 1024;
+    }
+
+    @After
+    public void tearDown() {
+        BandwidthLimiter.MAX_GRANT = maxGrant;
+    }
+
+    /**
+     * Test the rate of a throttled upload
+     * <p>
+     * Verify that the body is written unchanged, not faster than the limit, and that the share of the upload
+     * is printed in the build log
+     * </p>
+     */
+    @Test()
+    public void testThrottledEntityRate() throws IOException {
+        byte[] content = new byte[400 * 1000];
+        new Random(42).nextBytes(content);
+        BandwidthLimiter limiter = new BandwidthLimiter(1000 * 1000);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        ThrottledEntity entity = new ThrottledEntity(new ByteArrayEntity(content), limiter, new PrintStream(log, true));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        entity.writeTo(out);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        Assert.assertArrayEquals(content, out.toByteArray());
+        // 400 KB at 1 MB/s, less the burst of the bucket
+        Assert.assertTrue("Upload too fast: " + elapsed + " ms", elapsed >= 250);
+        Assert.assertTrue(log.toString().contains("Upload bandwidth limited to 8.0 Mbit/s shared by 1 upload(s)"));
+        Assert.assertEquals(0, limiter.getActiveStreams());
+    }
+
+    /**
+     * Test the sharing of the bandwidth
+     * <p>
+     * Verify that two uploads writing at the same time get about the same bandwidth,
+     * whatever the size of their writes
+     * </p>
+     */
+    @Test()
+    public void testFairSharing() throws InterruptedException {
+        BandwidthLimiter limiter = new BandwidthLimiter(2000 * 1000);
+        AtomicLong smallWrites = new AtomicLong();
+        AtomicLong largeWrites = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(600);
+
+        Thread small = new Thread(() -> consume(limiter, 1024, start, deadline, smallWrites));
+        Thread large = new Thread(() -> consume(limiter, 1024 * 1024, start, deadline, largeWrites));
+        small.start();
+        large.start();
+        start.countDown();
+        small.join();
+        large.join();
+
+        double ratio = (double) smallWrites.get() / largeWrites.get();
+        Assert.assertTrue("Unfair sharing: " + smallWrites + " / " + largeWrites, ratio > 0.5 && ratio < 2);
+        // 2 MB/s for 600 ms, plus the burst of the bucket
+        Assert.assertTrue(smallWrites.get() + largeWrites.get() < 1600 * 1000);
+    }
+
+    private static void consume(BandwidthLimiter limiter, int writeSize, CountDownLatch start, long deadline,
+                                AtomicLong written) {
+        try (BandwidthLimiter.Stream stream = limiter.open()) {
+            start.await();
+            while (System.nanoTime() < deadline) {
+                written.addAndGet(stream.acquire(writeSize));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Test an unlimited bandwidth
+     * <p>
+     * Verify that the bytes are granted at once without waiting
+     * </p>
+     */
+    @Test()
+    public void testUnlimited() throws InterruptedException {
+        BandwidthLimiter limiter = new BandwidthLimiter(0);
+
+        Assert.assertFalse(limiter.isLimited());
+        try (BandwidthLimiter.Stream stream = limiter.open()) {
+            Assert.assertEquals(10 * 1024 * 1024, stream.acquire(10 * 1024 * 1024));
+        }
+        Assert.assertEquals(0, limiter.getAllocation());
+    }
+
+    /**
+     * Test the removal of the limit while uploads are waiting for their tokens
+     * <p>
+     * Verify that the waiting uploads, the one waiting for the tokens and the one waiting for its turn,
+     * are woken up at once instead of waiting for the tokens of the old limit
+     * </p>
+     */
+    @Test()
+    public void testLimitRemovedWhileWaiting() throws InterruptedException {
+        // A grant of 8 KiB takes 8 seconds at this rate
+        BandwidthLimiter limiter = new BandwidthLimiter(1024);
+        AtomicLong written = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+
+        Thread first = new Thread(() -> acquireOnce(limiter, start, written));
+        Thread second = new Thread(() -> acquireOnce(limiter, start, written));
+        first.start();
+        second.start();
+        start.countDown();
+        Thread.sleep(200);
+        limiter.setBytesPerSecond(0);
+        first.join(2000);
+        second.join(2000);
+
+        Assert.assertFalse(first.isAlive() || second.isAlive());
+        Assert.assertEquals(2 * 1024, written.get());
+    }
+
+    private static void acquireOnce(BandwidthLimiter limiter, CountDownLatch start, AtomicLong written) {
+        try (BandwidthLimiter.Stream stream = limiter.open()) {
+            start.await();
+            written.addAndGet(stream.acquire(1024));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Test the bandwidth reserved for an upload of an agent
+     * <p>
+     * Verify that the reservation is an equal share of the bandwidth, kept until the stream is closed
+     * </p>
+     */
+    @Test()
+    public void testReserve() {
+        BandwidthLimiter limiter = new BandwidthLimiter(1000 * 1000);
+        BandwidthLimiter.Stream controllerUpload = limiter.open();
+        Assert.assertEquals(1000 * 1000, controllerUpload.getAllocation());
+
+        BandwidthLimiter.Stream agentUpload = limiter.reserve();
+        Assert.assertEquals(500 * 1000, agentUpload.getAllocation());
+        Assert.assertEquals(500 * 1000, controllerUpload.getAllocation());
+
+        // The reservation of the agent doesn't change when the limit changes
+        limiter.setBytesPerSecond(4000 * 1000);
+        Assert.assertEquals(500 * 1000, agentUpload.getAllocation());
+
+        agentUpload.close();
+        agentUpload.close();
+        Assert.assertEquals(1, limiter.getActiveStreams());
+        controllerUpload.close();
+        Assert.assertEquals(0, limiter.getActiveStreams());
+    }
+
+    /**
+     * Test the aggregate rate of the uploads of an agent and of the controller
+     * <p>
+     * Verify that an agent upload starting alone reserves half of the bandwidth, and that the agent upload and
+     * two controller uploads together don't send more than the limit, the controller uploads still sending
+     * </p>
+     */
+    @Test()
+    public void testReservedAndBucketRate() throws InterruptedException {
+        BandwidthLimiter limiter = new BandwidthLimiter(2000 * 1000);
+        AtomicLong agentWrites = new AtomicLong();
+        AtomicLong firstWrites = new AtomicLong();
+        AtomicLong secondWrites = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(600);
+
+        try (BandwidthLimiter.Stream agentUpload = limiter.reserve()) {
+            Assert.assertEquals(1000 * 1000, agentUpload.getAllocation());
+            // The agent throttles its upload with its own limiter, as SendBuildAction does on the agent
+            BandwidthLimiter agentLimiter = new BandwidthLimiter(agentUpload.getAllocation());
+
+            Thread agent = new Thread(() -> consume(agentLimiter, 1024, start, deadline, agentWrites));
+            Thread first = new Thread(() -> consume(limiter, 1024, start, deadline, firstWrites));
+            Thread second = new Thread(() -> consume(limiter, 1024 * 1024, start, deadline, secondWrites));
+            agent.start();
+            first.start();
+            second.start();
+            start.countDown();
+            agent.join();
+            first.join();
+            second.join();
+
+            // A later agent upload reserves at most half of what is left
+            try (BandwidthLimiter.Stream otherAgentUpload = limiter.reserve()) {
+                Assert.assertEquals(500 * 1000, otherAgentUpload.getAllocation());
+            }
+        }
+
+        Assert.assertTrue(firstWrites.get() > 0 && secondWrites.get() > 0);
+        long total = agentWrites.get() + firstWrites.get() + secondWrites.get();
+        // 2 MB/s for 600 ms, plus the bursts of the buckets
+        Assert.assertTrue("Limit exceeded: " + total, total < 1500 * 1000);
+        Assert.assertEquals(0, limiter.getActiveStreams());
+    }
+}
@@ -0,0 +1,144 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import hudson.FilePath;
+import hudson.remoting.LocalChannel;
+import jenkins.util.VirtualFile;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit Test of the request bodies read without blocking by the asynchronous transport
+ */
+public class DeferredContentStreamTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private File randomFile(String name, int size) throws IOException {
+        File file = folder.newFile(name);
+        byte[] content = new byte[size];
+        new Random(42).nextBytes(content);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static byte[] readAll(ContentSource source) throws IOException, InterruptedException {
+        /*
+         * Read the source like the I/O threads: read what is available, then wait for the callback
+         * @return: the content of the source
+         */
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(10000);
+        long deadline = System.currentTimeMillis() + 30000;
+        while (true) {
+            Assert.assertTrue("Content not read", System.currentTimeMillis() < deadline);
+            buffer.clear();
+            int read = source.read(buffer);
+            if (read < 0) {
+                return content.toByteArray();
+            }
+            content.write(buffer.array(), 0, buffer.position());
+            if (read == 0) {
+                CountDownLatch available = new CountDownLatch(1);
+                source.onAvailable(available::countDown);
+                // The end of the agent task isn't signaled, the transport checks again after a delay
+                available.await(100, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Test a multipart body with a text, a controller file and an agent file
+     * <p>
+     * Verify that the content read through the source is the content written by the entity,
+     * without reading the files when the body is recorded
+     * </p>
+     */
+    @Test()
+    public void testMultipartBody() throws IOException, InterruptedException {
+        File build = randomFile("build.apk", 3 * 1024 * 1024 + 17);
+        File mapping = randomFile("mapping.txt", 5 * 1024 * 1024 + 3);
+
+        MultipartEntityBuilder builder = MultipartEntityBuilder.create();
+        builder.addPart("file", new LocalFileBody(build, ContentType.DEFAULT_BINARY));
+        builder.addPart(
+                "sourcemap",
+                new RemoteAgentStreamBody(
+                        new FilePath(new LocalChannel(executor), mapping.getPath()),
+                        ContentType.DEFAULT_TEXT,
+                        mapping.getName()
+                )
+        );
+        builder.addTextBody("release_type", "PRE_PROD");
+        HttpEntity entity = builder.build();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        entity.writeTo(expected);
+
+        DeferredContentStream body = new DeferredContentStream();
+        entity.writeTo(body);
+        Assert.assertArrayEquals(expected.toByteArray(), readAll(body.open()));
+        // The body is read again from the start, as for a repeated request
+        try (ContentSource source = body.open()) {
+            Assert.assertArrayEquals(expected.toByteArray(), readAll(source));
+        }
+    }
+
+    /**
+     * Test the bodies which can only be read by blocking
+     * <p>
+     * Verify that an artifact streamed from the artifact manager and a large body written in memory are refused,
+     * so the request is sent by the blocking transport
+     * </p>
+     */
+    @Test()
+    public void testUnsupportedContent() throws IOException {
+        File build = randomFile("build.apk", 1024);
+        MultipartEntityBuilder builder = MultipartEntityBuilder.create();
+        builder.addPart("file", new VirtualFileBody(VirtualFile.forFile(build), ContentType.DEFAULT_BINARY));
+        try {
+            builder.build().writeTo(new DeferredContentStream());
+            Assert.fail("The artifact must be refused");
+        } catch (DeferredContentStream.UnsupportedContentException e) {
+            // expected
+        }
+
+        byte[] large = new byte[DeferredContentStream.MAX_BUFFERED + 1];
+        try {
+            new DeferredContentStream().write(large);
+            Assert.fail("The large body must be refused");
+        } catch (DeferredContentStream.UnsupportedContentException e) {
+            // expected
+        }
+    }
+}
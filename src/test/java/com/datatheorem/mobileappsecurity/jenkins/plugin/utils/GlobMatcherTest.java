@@ -0,0 +1,96 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+
+/**
+ * Unit Test of the precompiled glob matcher shared by the build and the mapping file searches
+ */
+public class GlobMatcherTest {
+
+    private static final String[] PATTERNS = {
+            "test.apk",
+            "*.apk",
+            "t*est-*.apk",
+            "app/build/outputs/apk/release/*.apk",
+            "**/*.apk",
+            "**/release/app-*.apk",
+            "app/**/mapping.txt",
+            "{app,lib}/build/*.{apk,ipa}",
+            "app/build/outputs/apk/?elease/[a-c]pp-*.apk",
+            "app/build/[!x]*/*.txt",
+            "a.b(c)+d.apk",
+    };
+
+    private static final String[] PATHS = {
+            "test.apk",
+            "test-1.apk",
+            "t-est-1.apk",
+            "app.ipa",
+            ".apk",
+            "app/test.apk",
+            "app/build/outputs/apk/release/app-release.apk",
+            "app/build/outputs/apk/release/sub/app-release.apk",
+            "app/build/outputs/apk/debug/app-debug.apk",
+            "app/build/outputs/mapping/release/mapping.txt",
+            "app/mapping.txt",
+            "app/build/app.ipa",
+            "lib/build/lib.apk",
+            "lib/build/lib.aar",
+            "node_modules/lib/release/app-1.apk",
+            "a.b(c)+d.apk",
+            "abbc+d.apk",
+    };
+
+    /**
+     * Test that the matcher gives the same result as the default file system PathMatcher
+     * <p>
+     * Match every path against every pattern with both implementations
+     * </p>
+     */
+    @Test()
+    public void testSameResultAsPathMatcher() {
+        for (String pattern : PATTERNS) {
+            PathMatcher expected = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+            GlobMatcher matcher = new GlobMatcher(pattern);
+            for (String path : PATHS) {
+                Assert.assertEquals(
+                        pattern + " / " + path,
+                        expected.matches(Paths.get(path)),
+                        matcher.matches(path)
+                );
+            }
+        }
+    }
+
+    /**
+     * Test that the index of the first respected pattern is returned
+     */
+    @Test()
+    public void testMatchingPattern() {
+        GlobMatcher matcher = new GlobMatcher("**/*.apk", "**/mapping.txt");
+
+        Assert.assertEquals(0, matcher.matchingPattern("app/build/app.apk"));
+        Assert.assertEquals(1, matcher.matchingPattern("app/build/mapping.txt"));
+        Assert.assertEquals(-1, matcher.matchingPattern("app/build/app.ipa"));
+    }
+
+    /**
+     * Test that a directory is pruned only when it can't contain a matching file
+     */
+    @Test()
+    public void testCouldMatchUnder() {
+        GlobMatcher matcher = new GlobMatcher("app/build/**/*.apk");
+
+        Assert.assertTrue(matcher.couldMatchUnder(new String[]{"app"}));
+        Assert.assertTrue(matcher.couldMatchUnder(new String[]{"app", "build", "outputs", "apk"}));
+        Assert.assertFalse(matcher.couldMatchUnder(new String[]{"node_modules"}));
+        Assert.assertFalse(matcher.couldMatchUnder(new String[]{"app", "src"}));
+        Assert.assertFalse(new GlobMatcher("*.apk").couldMatchUnder(new String[]{"app"}));
+        Assert.assertTrue(new GlobMatcher("{app,lib}/**").couldMatchUnder(new String[]{"lib", "build"}));
+    }
+}
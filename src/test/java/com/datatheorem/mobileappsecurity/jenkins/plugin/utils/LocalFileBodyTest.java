@@ -0,0 +1,63 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import org.apache.http.entity.ContentType;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Unit Test of the content body sending the files of the controller
+ */
+public class LocalFileBodyTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private int bufferSize;
+
+    @Before
+    public void setUp() {
+        bufferSize = LocalFileBody.BUFFER_SIZE;
+        LocalFileBody.BUFFER_SIZE = 1024;
+    }
+
+    @After
+    public void tearDown() {
+        LocalFileBody.BUFFER_SIZE = bufferSize;
+    }
+
+    /**
+     * Test that the body writes the exact content of the file
+     * <p>
+     * Verify an empty file, a file smaller than the buffer, and files of several buffers with or without a last
+     * partial block
+     * </p>
+     */
+    @Test()
+    public void testWriteTo() throws IOException {
+        Random random = new Random(42);
+        for (int size : new int[]{0, 100, 1024, 3 * 1024, 3 * 1024 + 17}) {
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            File file = folder.newFile("build-" + size + ".apk");
+            Files.write(file.toPath(), content);
+
+            LocalFileBody body = new LocalFileBody(file, ContentType.DEFAULT_BINARY);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            body.writeTo(out);
+
+            Assert.assertArrayEquals(content, out.toByteArray());
+            Assert.assertEquals(size, body.getContentLength());
+            Assert.assertEquals("build-" + size + ".apk", body.getFilename());
+        }
+    }
+}
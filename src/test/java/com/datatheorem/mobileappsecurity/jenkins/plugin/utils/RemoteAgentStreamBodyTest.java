@@ -0,0 +1,299 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import hudson.FilePath;
+import hudson.remoting.LocalChannel;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.entity.ContentType;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Unit Test of the streaming of the agent files to the request
+ */
+public class RemoteAgentStreamBodyTest {
+
+    private static final long SPARSE_FILE_SIZE = 3L * 1024 * 1024 * 1024 + 123;
+    // Offsets of the non zero bytes of the sparse file
+    private static final long[] MARKERS = {0L, 1024L * 1024 * 1024 + 7, SPARSE_FILE_SIZE - 1};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private FilePath agentFile(File file) {
+        return new FilePath(new LocalChannel(executor), file.getPath());
+    }
+
+    private static FileMetadata describe(File file) {
+        return new FileMetadata(file.getName(), file.length(), file.lastModified(), null);
+    }
+
+    private File mappingFile() throws IOException {
+        // A few MiB of text looking like a ProGuard mapping file
+        File file = folder.newFile("mapping.txt");
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < 100000; i++) {
+                writer.write("com.example.app.Class" + i + " -> a.b" + i + ":\n");
+                writer.write("    void method" + i + "(int) -> c\n");
+            }
+        }
+        return file;
+    }
+
+    private static final class CheckingOutputStream extends OutputStream {
+        // Count the streamed bytes and check the markers of the sparse file
+
+        private final long[] expectedMarkers;
+        long count = 0;
+        int markers = 0;
+
+        CheckingOutputStream(long... expectedMarkers) {
+            this.expectedMarkers = expectedMarkers;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            for (long marker : expectedMarkers) {
+                if (marker >= count && marker < count + len) {
+                    Assert.assertEquals((byte) 1, b[off + (int) (marker - count)]);
+                    markers++;
+                }
+            }
+            count += len;
+        }
+    }
+
+    /**
+     * Test the streaming of a multi-GB file
+     * <p>
+     * Stream a sparse file of 3 GiB through a local channel
+     * Verify that every byte is written to the request, in order, and that the transfer is measured
+     * </p>
+     */
+    @Test()
+    public void testStreamSparseFile() throws IOException {
+        File file = folder.newFile("build.ipa");
+        try (RandomAccessFile sparse = new RandomAccessFile(file, "rw")) {
+            sparse.setLength(SPARSE_FILE_SIZE);
+            for (long marker : MARKERS) {
+                sparse.seek(marker);
+                sparse.write(1);
+            }
+        }
+
+        RemoteAgentStreamBody body = new RemoteAgentStreamBody(
+                agentFile(file), ContentType.DEFAULT_BINARY, file.getName(), describe(file)
+        );
+        CheckingOutputStream out = new CheckingOutputStream(MARKERS);
+        body.writeTo(out);
+
+        Assert.assertEquals(SPARSE_FILE_SIZE, out.count);
+        Assert.assertEquals(MARKERS.length, out.markers);
+        Assert.assertEquals(SPARSE_FILE_SIZE, body.getLastTransfer().getBytes());
+        Assert.assertTrue(body.getLastTransfer().getMebibytesPerSecond() > 0);
+    }
+
+    /**
+     * Test that a failure of the request stops the agent
+     * <p>
+     * Verify that the error of the request is raised and that the next transfer still works
+     * </p>
+     */
+    @Test()
+    public void testRequestFailure() throws IOException {
+        File file = folder.newFile("build.apk");
+        try (RandomAccessFile sparse = new RandomAccessFile(file, "rw")) {
+            sparse.setLength(64L * 1024 * 1024);
+        }
+        RemoteAgentStreamBody body = new RemoteAgentStreamBody(agentFile(file), ContentType.DEFAULT_BINARY, "build.apk");
+
+        try {
+            body.writeTo(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    throw new IOException("Connection reset");
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    throw new IOException("Connection reset");
+                }
+            });
+            Assert.fail("The request error should be raised");
+        } catch (IOException e) {
+            Assert.assertEquals("Connection reset", e.getMessage());
+        }
+
+        CheckingOutputStream out = new CheckingOutputStream();
+        body.writeTo(out);
+        Assert.assertEquals(64L * 1024 * 1024, out.count);
+    }
+
+    /**
+     * Test the interruption of the upload
+     * <p>
+     * Verify that writeTo raises an InterruptedIOException and keeps the interrupted status of the thread
+     * </p>
+     */
+    @Test()
+    public void testInterrupted() throws IOException {
+        File file = folder.newFile("build.apk");
+        try (RandomAccessFile sparse = new RandomAccessFile(file, "rw")) {
+            sparse.setLength(64L * 1024 * 1024);
+        }
+        RemoteAgentStreamBody body = new RemoteAgentStreamBody(agentFile(file), ContentType.DEFAULT_BINARY, "build.apk");
+
+        try {
+            body.writeTo(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    Thread.currentThread().interrupt();
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    // The build is aborted while the first block is sent
+                    Thread.currentThread().interrupt();
+                }
+            });
+            Assert.fail("The interruption should be raised");
+        } catch (InterruptedIOException e) {
+            Assert.assertTrue(Thread.interrupted());
+        }
+    }
+
+    /**
+     * Test the length of a file found without metadata
+     * <p>
+     * Verify that the agent is only asked once for the length, even when the file disappears afterwards
+     * </p>
+     */
+    @Test()
+    public void testContentLengthResolvedOnce() throws IOException {
+        File file = folder.newFile("build.apk");
+        Files.write(file.toPath(), new byte[1234]);
+        RemoteAgentStreamBody body = new RemoteAgentStreamBody(agentFile(file), ContentType.DEFAULT_BINARY, "build.apk");
+
+        Assert.assertEquals(1234L, body.getContentLength());
+        Assert.assertTrue(file.delete());
+        Assert.assertEquals(1234L, body.getContentLength());
+    }
+
+    /**
+     * Test the upload of a file modified after the search
+     * <p>
+     * Verify that nothing is streamed when the size of the file doesn't match its metadata
+     * </p>
+     */
+    @Test()
+    public void testFileChangedSinceSearch() throws IOException {
+        File file = folder.newFile("build.apk");
+        Files.write(file.toPath(), new byte[1234]);
+        RemoteAgentStreamBody body = new RemoteAgentStreamBody(
+                agentFile(file), ContentType.DEFAULT_BINARY, "build.apk", describe(file)
+        );
+        Files.write(file.toPath(), new byte[4321]);
+
+        Assert.assertEquals(1234L, body.getContentLength());
+        CheckingOutputStream out = new CheckingOutputStream();
+        try {
+            body.writeTo(out);
+            Assert.fail("The modification of the file should be detected");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("changed since it was found"));
+        }
+        Assert.assertEquals(0L, out.count);
+    }
+
+    /**
+     * Test the compression of the remoting channel
+     * <p>
+     * Verify that the request receives the original file while fewer bytes come from the agent
+     * </p>
+     */
+    @Test()
+    public void testRemotingCompression() throws IOException {
+        File file = mappingFile();
+        RemoteAgentStreamBody body = new RemoteAgentStreamBody(
+                agentFile(file), ContentType.DEFAULT_TEXT, file.getName(), describe(file)
+        );
+        body.setCompression(RemoteAgentStreamBody.Compression.REMOTING);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+
+        Assert.assertEquals(file.length(), body.getContentLength());
+        Assert.assertArrayEquals(Files.readAllBytes(file.toPath()), out.toByteArray());
+        Assert.assertEquals(file.length(), body.getLastTransfer().getBytes());
+        Assert.assertTrue(body.getLastTransfer().getReceivedBytes() < file.length() / 4);
+    }
+
+    /**
+     * Test the gzip compression of the request
+     * <p>
+     * Verify that the request receives the gzip stream of the file and that its length is left unknown
+     * </p>
+     */
+    @Test()
+    public void testGzipCompression() throws IOException {
+        File file = mappingFile();
+        RemoteAgentStreamBody body = new RemoteAgentStreamBody(
+                agentFile(file), ContentType.DEFAULT_TEXT, file.getName(), describe(file)
+        );
+        body.setCompression(RemoteAgentStreamBody.Compression.GZIP);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+
+        Assert.assertEquals(-1L, body.getContentLength());
+        Assert.assertTrue(out.size() < file.length() / 4);
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            Assert.assertArrayEquals(Files.readAllBytes(file.toPath()), IOUtils.toByteArray(in));
+        }
+    }
+
+    /**
+     * Test the error raised when the file can't be read on the agent
+     */
+    @Test(expected = IOException.class)
+    public void testMissingFile() throws IOException {
+        File file = new File(folder.getRoot(), "missing.apk");
+        new RemoteAgentStreamBody(agentFile(file), ContentType.DEFAULT_BINARY, "missing.apk")
+                .writeTo(new CheckingOutputStream());
+    }
+}
@@ -0,0 +1,414 @@
+package com.datatheorem.mobileappsecurity.jenkins.plugin.utils;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit Test of the workspace search resolving the files to upload
+ */
+public class ResolveUploadPlanTest {
+
+    @Rule
+    public TemporaryFolder workspace = new TemporaryFolder();
+
+    private File createFile(String relativePath, String content) throws IOException {
+        File file = new File(workspace.getRoot(), relativePath);
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /**
+     * Test that only the files respecting the patterns are returned
+     * <p>
+     * Create a workspace with matching and non matching files
+     * Verify that FindFiles returns the matching relative paths in a deterministic order
+     * </p>
+     */
+    @Test()
+    public void testFindFilesOnlyReturnsMatches() throws IOException {
+        createFile("app/build/outputs/apk/release/app-release.apk", "apk");
+        createFile("app/build/outputs/apk/debug/app-debug.apk", "apk");
+        createFile("node_modules/lib/build/outputs/apk/release/lib.apk", "apk");
+        createFile("README.md", "readme");
+
+        List<String> files = new FindFiles("app/build/outputs/apk/*/*.apk")
+                .invoke(workspace.getRoot(), null);
+
+        Assert.assertEquals(
+                Arrays.asList(
+                        "app/build/outputs/apk/debug/app-debug.apk",
+                        "app/build/outputs/apk/release/app-release.apk"
+                ),
+                files
+        );
+    }
+
+    /**
+     * Test that the parallel walk returns the same files in the same order as the sequential walk
+     * <p>
+     * Lower the parallel threshold so the workspace is walked by several threads after the first directory
+     * </p>
+     */
+    @Test()
+    public void testParallelWalkSameResultAsSequentialWalk() throws IOException {
+        for (int module = 0; module < 5; module++) {
+            for (int flavor = 0; flavor < 5; flavor++) {
+                createFile("module" + module + "/build/outputs/apk/flavor" + flavor + "/app.apk", "apk");
+                createFile("module" + module + "/build/outputs/apk/flavor" + flavor + "/output.json", "{}");
+            }
+            createFile("module" + module + "/app.apk", "apk");
+        }
+
+        FindFiles sequential = new FindFiles("**/*.apk");
+        sequential.setParallelism(1);
+        List<String> expected = sequential.invoke(workspace.getRoot(), null);
+        Assert.assertEquals(30, expected.size());
+
+        int threshold = FindFiles.PARALLEL_THRESHOLD;
+        try {
+            FindFiles.PARALLEL_THRESHOLD = 0;
+            FindFiles parallel = new FindFiles("**/*.apk");
+            parallel.setParallelism(4);
+            Assert.assertEquals(expected, parallel.invoke(workspace.getRoot(), null));
+        } finally {
+            FindFiles.PARALLEL_THRESHOLD = threshold;
+        }
+    }
+
+    /**
+     * Test that the build and the mapping file are resolved together with their metadata
+     * <p>
+     * Verify the path, the size and the digest of each file, and that a missing file is not part of the plan
+     * </p>
+     */
+    @Test()
+    public void testResolveUploadPlan() throws IOException {
+        File build = createFile("app/build/outputs/apk/release/app-release.apk", "apk content");
+        createFile("app/build/outputs/mapping/release/mapping.txt", "mapping content");
+
+        UploadPlan plan = new ResolveUploadPlan(
+                true,
+                "app/build/outputs/apk/release/*.apk",
+                "app/build/outputs/mapping/release/mapping.txt",
+                "**/*.ipa"
+        ).invoke(workspace.getRoot(), null);
+
+        FileMetadata buildMetadata = plan.get("app/build/outputs/apk/release/*.apk");
+        Assert.assertEquals("app/build/outputs/apk/release/app-release.apk", buildMetadata.getRelativePath());
+        Assert.assertEquals(build.length(), buildMetadata.getSize());
+        Assert.assertEquals(build.lastModified(), buildMetadata.getLastModified());
+        Assert.assertEquals(
+                org.apache.commons.codec.digest.DigestUtils.sha256Hex("apk content"),
+                buildMetadata.getSha256()
+        );
+
+        Assert.assertEquals(
+                "app/build/outputs/mapping/release/mapping.txt",
+                plan.get("app/build/outputs/mapping/release/mapping.txt").getRelativePath()
+        );
+        Assert.assertNull(plan.get("**/*.ipa"));
+    }
+
+    /**
+     * Test the restriction of the digest to some patterns
+     * <p>
+     * Verify that only the build is hashed, the mapping file is resolved without its digest
+     * </p>
+     */
+    @Test()
+    public void testDigestPatterns() throws IOException {
+        createFile("app/build/outputs/apk/release/app-release.apk", "apk content");
+        createFile("app/build/outputs/mapping/release/mapping.txt", "mapping content");
+
+        ResolveUploadPlan resolveUploadPlan = new ResolveUploadPlan(true, "**/*.apk", "**/mapping.txt");
+        resolveUploadPlan.setDigestPatterns(Collections.singletonList("**/*.apk"));
+        UploadPlan plan = resolveUploadPlan.invoke(workspace.getRoot(), null);
+
+        Assert.assertEquals(
+                org.apache.commons.codec.digest.DigestUtils.sha256Hex("apk content"),
+                plan.get("**/*.apk").getSha256()
+        );
+        Assert.assertNull(plan.get("**/mapping.txt").getSha256());
+    }
+
+    /**
+     * Test the search using the workspace index kept on the agent
+     * <p>
+     * Run a first search to create the index then change the workspace without updating the directory
+     * modification time, so the index is stale.
+     * Verify that the unchanged directories are not listed again and that the stale index falls back to a full search
+     * </p>
+     */
+    @Test()
+    public void testResolveUploadPlanWithWorkspaceIndex() throws IOException {
+        File root = workspace.newFolder("workspace");
+        File build = new File(root, "app/build/outputs/apk/release/app-release.apk");
+        Files.createDirectories(build.getParentFile().toPath());
+        Files.write(build.toPath(), "apk".getBytes(StandardCharsets.UTF_8));
+        File releaseDirectory = build.getParentFile();
+        long past = System.currentTimeMillis() - 60000L;
+        for (File directory = releaseDirectory; !directory.equals(workspace.getRoot()); directory = directory.getParentFile()) {
+            Assert.assertTrue(directory.setLastModified(past));
+        }
+
+        ResolveUploadPlan resolveUploadPlan = new ResolveUploadPlan(false, "app/build/outputs/apk/release/*.apk");
+        resolveUploadPlan.setUseWorkspaceIndex(true);
+        Assert.assertEquals(
+                "app/build/outputs/apk/release/app-release.apk",
+                resolveUploadPlan.invoke(root, null).get("app/build/outputs/apk/release/*.apk").getRelativePath()
+        );
+        Assert.assertTrue(WorkspaceIndex.indexFile(root).isFile());
+
+        // The unchanged directories are reused from the index
+        WorkspaceIndex index = WorkspaceIndex.load(root);
+        new FindFiles("app/build/outputs/apk/release/*.apk").walk(root, index);
+        Assert.assertEquals(6, index.getReusedListings());
+
+        // Replace the build without changing the directory modification time: the index is stale
+        Assert.assertTrue(build.delete());
+        Files.write(new File(releaseDirectory, "app-release-2.apk").toPath(), "apk".getBytes(StandardCharsets.UTF_8));
+        Assert.assertTrue(releaseDirectory.setLastModified(past));
+
+        Assert.assertEquals(
+                "app/build/outputs/apk/release/app-release-2.apk",
+                resolveUploadPlan.invoke(root, null).get("app/build/outputs/apk/release/*.apk").getRelativePath()
+        );
+    }
+
+    /**
+     * Test that the walk stops as soon as the first match is selected
+     * <p>
+     * Count the directories listed by the search: the directories after the first match are never listed
+     * </p>
+     */
+    @Test()
+    public void testFirstMatchStopsTheWalk() throws IOException {
+        createFile("a/build/app.apk", "apk");
+        createFile("b/build/app.apk", "apk");
+        createFile("c/build/app.apk", "apk");
+
+        List<String> listed = new ArrayList<>();
+        DirectoryLister lister = new DirectoryLister() {
+            @Override
+            public Listing list(File basedir, String relativeDirectory) {
+                listed.add(relativeDirectory);
+                return super.list(basedir, relativeDirectory);
+            }
+        };
+        List<String> matches = new ArrayList<>();
+        new FindFiles("**/*.apk").walk(workspace.getRoot(), lister, match -> !matches.add(match));
+
+        Assert.assertEquals(Collections.singletonList("a/build/app.apk"), matches);
+        Assert.assertEquals(Arrays.asList("", "a", "a/build"), listed);
+    }
+
+    /**
+     * Test the first match selection on a workspace walked in parallel
+     * <p>
+     * Lower the parallel threshold so the directories under the workspace root are walked by several threads.
+     * Verify that the first file of the walk order is selected, as by the sequential walk, even when another match
+     * is found first, and that the directories after the selected file are never listed
+     * </p>
+     */
+    @Test()
+    public void testFirstMatchBoundsTheParallelWalk() throws IOException {
+        createFile("a/x/y/app.apk", "apk");
+        createFile("b/app.apk", "apk");
+        for (int i = 0; i < 50; i++) {
+            createFile("z" + i + "/build/app.apk", "apk");
+        }
+
+        ResolveUploadPlan sequential = new ResolveUploadPlan(false, "**/*.apk");
+        sequential.setDiscoveryParallelism(1);
+        String expected = sequential.invoke(workspace.getRoot(), null).get("**/*.apk").getRelativePath();
+        Assert.assertEquals("a/x/y/app.apk", expected);
+
+        List<String> listed = Collections.synchronizedList(new ArrayList<>());
+        DirectoryLister lister = new DirectoryLister() {
+            @Override
+            public Listing list(File basedir, String relativeDirectory) {
+                listed.add(relativeDirectory);
+                return super.list(basedir, relativeDirectory);
+            }
+        };
+        int threshold = FindFiles.PARALLEL_THRESHOLD;
+        try {
+            FindFiles.PARALLEL_THRESHOLD = 0;
+            ResolveUploadPlan parallel = new ResolveUploadPlan(false, "**/*.apk");
+            parallel.setDiscoveryParallelism(4);
+            Assert.assertEquals(
+                    expected,
+                    parallel.resolve(workspace.getRoot(), lister).get("**/*.apk").getRelativePath()
+            );
+        } finally {
+            FindFiles.PARALLEL_THRESHOLD = threshold;
+        }
+        Assert.assertTrue(listed.containsAll(Arrays.asList("", "a", "a/x", "a/x/y", "b")));
+        for (String directory : listed) {
+            Assert.assertFalse("Listed after the selected file: " + directory, directory.startsWith("z"));
+        }
+    }
+
+    /**
+     * Test the selection of a file among several matches
+     * <p>
+     * Verify that FIRST returns the first file of the walk order, NEWEST the most recently modified file
+     * and that FAIL_ON_AMBIGUOUS returns the matches instead of a file
+     * </p>
+     */
+    @Test()
+    public void testMatchSelection() throws IOException {
+        createFile("a/app.apk", "apk");
+        File newest = createFile("b/app.apk", "apk");
+        createFile("c/app.apk", "apk");
+        createFile("mapping.txt", "mapping");
+        Assert.assertTrue(newest.setLastModified(System.currentTimeMillis() + 60000L));
+
+        ResolveUploadPlan first = new ResolveUploadPlan(false, "**/*.apk", "mapping.txt");
+        UploadPlan plan = first.invoke(workspace.getRoot(), null);
+        Assert.assertEquals("a/app.apk", plan.get("**/*.apk").getRelativePath());
+        Assert.assertEquals("mapping.txt", plan.get("mapping.txt").getRelativePath());
+
+        ResolveUploadPlan newestSelection = new ResolveUploadPlan(false, "**/*.apk", "mapping.txt");
+        newestSelection.setMatchSelection(MatchSelection.NEWEST);
+        plan = newestSelection.invoke(workspace.getRoot(), null);
+        Assert.assertEquals("b/app.apk", plan.get("**/*.apk").getRelativePath());
+
+        ResolveUploadPlan failOnAmbiguous = new ResolveUploadPlan(false, "**/*.apk", "mapping.txt");
+        failOnAmbiguous.setMatchSelection(MatchSelection.FAIL_ON_AMBIGUOUS);
+        plan = failOnAmbiguous.invoke(workspace.getRoot(), null);
+        Assert.assertNull(plan.get("**/*.apk"));
+        Assert.assertEquals(Arrays.asList("a/app.apk", "b/app.apk"), plan.getAmbiguousMatches("**/*.apk"));
+        Assert.assertEquals("mapping.txt", plan.get("mapping.txt").getRelativePath());
+        Assert.assertTrue(plan.getAmbiguousMatches("mapping.txt").isEmpty());
+    }
+
+    /**
+     * Test that the default and user excluded directories are not searched
+     * <p>
+     * Verify that a default exclude is still searched when the pattern explicitly goes through it
+     * </p>
+     */
+    @Test()
+    public void testExcludedDirectories() throws IOException {
+        createFile("app/app.apk", "apk");
+        createFile("node_modules/lib/lib.apk", "apk");
+        createFile("app/.gradle/cache.apk", "apk");
+        createFile("vendor/ios/Pods/Lib/lib.apk", "apk");
+        createFile("vendor/android/lib.apk", "apk");
+        createFile("cache/lib.apk", "apk");
+
+        FindFiles findFiles = new FindFiles("**/*.apk", "vendor/ios/Pods/Lib/*.apk");
+        findFiles.setExcludes(new DirectoryExcludes(DirectoryExcludes.parse("cache/, vendor/android")));
+
+        Assert.assertEquals(
+                Arrays.asList("app/app.apk", "vendor/ios/Pods/Lib/lib.apk"),
+                findFiles.invoke(workspace.getRoot(), null)
+        );
+    }
+
+    /**
+     * Test that the search ends on a workspace with a symbolic link cycle
+     * <p>
+     * Create a link from a sub directory to the workspace root and verify that the file is found once, by the
+     * sequential and the parallel walk, so a single build is not ambiguous
+     * </p>
+     */
+    @Test()
+    public void testSymbolicLinkCycle() throws IOException {
+        createFile("app/app.apk", "apk");
+        File loop = new File(workspace.getRoot(), "app/loop");
+        try {
+            Files.createSymbolicLink(loop.toPath(), workspace.getRoot().toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            Assume.assumeNoException(e);
+        }
+
+        List<String> expected = Collections.singletonList("app/app.apk");
+        Assert.assertEquals(expected, new FindFiles("**/*.apk").invoke(workspace.getRoot(), null));
+
+        int threshold = FindFiles.PARALLEL_THRESHOLD;
+        try {
+            FindFiles.PARALLEL_THRESHOLD = 0;
+            FindFiles parallel = new FindFiles("**/*.apk");
+            parallel.setParallelism(4);
+            Assert.assertEquals(expected, parallel.invoke(workspace.getRoot(), null));
+        } finally {
+            FindFiles.PARALLEL_THRESHOLD = threshold;
+        }
+
+        ResolveUploadPlan failOnAmbiguous = new ResolveUploadPlan(false, "**/*.apk");
+        failOnAmbiguous.setMatchSelection(MatchSelection.FAIL_ON_AMBIGUOUS);
+        UploadPlan plan = failOnAmbiguous.invoke(workspace.getRoot(), null);
+        Assert.assertEquals("app/app.apk", plan.get("**/*.apk").getRelativePath());
+        Assert.assertTrue(plan.getAmbiguousMatches("**/*.apk").isEmpty());
+    }
+
+    /**
+     * Test that a directory reached by two paths is searched once
+     * <p>
+     * Create a link to a sibling directory and verify that its file is only reported under the first path
+     * </p>
+     */
+    @Test()
+    public void testSymbolicLinkToSearchedDirectory() throws IOException {
+        createFile("b/app.apk", "apk");
+        File link = new File(workspace.getRoot(), "a");
+        try {
+            Files.createSymbolicLink(link.toPath(), new File(workspace.getRoot(), "b").toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            Assume.assumeNoException(e);
+        }
+
+        Assert.assertEquals(
+                Collections.singletonList("a/app.apk"),
+                new FindFiles("**/*.apk").invoke(workspace.getRoot(), null)
+        );
+    }
+
+    /**
+     * Test the location hinted by the previous search
+     * <p>
+     * Verify that the hinted file is selected without walking the workspace, and that a stale hint,
+     * a hint not respecting the pattern or a hint outside of the workspace falls back to the walk
+     * </p>
+     */
+    @Test()
+    public void testLocationHints() throws IOException {
+        createFile("workspace/a/app.apk", "apk");
+        createFile("workspace/b/app.apk", "apk");
+        createFile("workspace/b/app.txt", "txt");
+        createFile("outside.apk", "apk");
+        File root = new File(workspace.getRoot(), "workspace");
+
+        String[] hints = {"b/app.apk", "c/app.apk", "b/app.txt", "a/../../outside.apk"};
+        String[] expected = {"b/app.apk", "a/app.apk", "a/app.apk", "a/app.apk"};
+        for (int i = 0; i < hints.length; i++) {
+            ResolveUploadPlan resolveUploadPlan = new ResolveUploadPlan(false, "**/*.apk");
+            resolveUploadPlan.setLocationHints(Collections.singletonMap("**/*.apk", hints[i]));
+            Assert.assertEquals(
+                    expected[i],
+                    resolveUploadPlan.invoke(root, null).get("**/*.apk").getRelativePath()
+            );
+        }
+
+        // The hints are ignored when the whole workspace must be searched
+        ResolveUploadPlan failOnAmbiguous = new ResolveUploadPlan(false, "**/*.apk");
+        failOnAmbiguous.setMatchSelection(MatchSelection.FAIL_ON_AMBIGUOUS);
+        failOnAmbiguous.setLocationHints(Collections.singletonMap("**/*.apk", "b/app.apk"));
+        Assert.assertEquals(2, failOnAmbiguous.invoke(root, null).getAmbiguousMatches("**/*.apk").size());
+    }
+}